@@ -0,0 +1,317 @@
+package SocketBasedGame;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*This class reads an archive written by GameArchive, one row group at a time. Only the columns asked for are decoded,
+ *and the rest are skipped without being read into memory. Run on its own, it scans a whole archive and reports how
+ *the influence cards are used and how often a REPLACEMENT decides the winner:
+ *  java SocketBasedGame.ArchiveReader games.arc
+ *A row group cut short, e.g. by the server being killed while writing it, is treated as the end of the archive.*/
+public class ArchiveReader implements Closeable {
+
+    //The columns recording each game's board, always read so a game's cells can be turned back into rows and columns.
+    private static final String[] BOARD_COLUMNS = {"topology", "rows", "columns"};
+    //The columns the report needs.
+    private static final String[] REPORT_COLUMNS = {"seatCount", "moveCount", "winner", "mark", "score", "mover", "card", "taken"};
+
+    //The archive being read.
+    private final DataInputStream in;
+
+    //One column of a row group.
+    public static class Column {
+        //The different values of a dictionary column, or null for a column of plain numbers.
+        private final String[] dictionary;
+        //The numbers, or for a dictionary column the position of each value in the dictionary.
+        private final int[] values;
+
+        private Column(String[] dictionary, int[] values) {
+            this.dictionary = dictionary;
+            this.values = values;
+        }
+
+        //Returns the number of values in the column.
+        public int size() {
+            return values.length;
+        }
+
+        //Returns a value, or for a dictionary column its position in the dictionary.
+        public int get(int i) {
+            return values[i];
+        }
+
+        //Returns a value of a dictionary column.
+        public String getText(int i) {
+            return dictionary[values[i]];
+        }
+
+        //Returns the different values of a dictionary column, in the order of their positions.
+        public String[] getDictionary() {
+            return dictionary;
+        }
+    }
+
+    //The columns read from one row group, and the number of games, players and moves in it.
+    public static class RowGroup {
+        private final int games;
+        private final int seats;
+        private final int moves;
+        private final Map<String, Column> columns;
+
+        private RowGroup(int games, int seats, int moves) {
+            this.games = games;
+            this.seats = seats;
+            this.moves = moves;
+            columns = new HashMap<>();
+        }
+
+        //Returns the number of games in the group.
+        public int getGames() {
+            return games;
+        }
+
+        //Returns the number of players across all the games in the group.
+        public int getSeats() {
+            return seats;
+        }
+
+        //Returns the number of moves across all the games in the group.
+        public int getMoves() {
+            return moves;
+        }
+
+        //Returns the named column, or null if it wasn't asked for or isn't in the archive.
+        public Column getColumn(String name) {
+            return columns.get(name);
+        }
+
+        /*Returns the board a game was played on. A cell is row * getColumns() + column of this board, whatever board
+         *the server reading the archive uses.*/
+        public BoardTopology getBoard(int game) {
+            Column topology = columns.get("topology");
+            return BoardTopology.get(BoardTopology.Kind.valueOf(topology.getText(game)),
+                    columns.get("rows").get(game), columns.get("columns").get(game));
+        }
+    }
+
+    //ArchiveReader constructor to open an archive and check it is one.
+    public ArchiveReader(File path) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16));
+        if (in.readInt() != GameArchive.MAGIC) {
+            in.close();
+            throw new IOException(path + " is not a game archive.");
+        }
+    }
+
+    //Reads the next row group, decoding only the named columns. Returns null at the end of the archive.
+    public RowGroup next(String... wanted) throws IOException {
+        Set<String> names = new HashSet<>(Arrays.asList(wanted));
+        names.addAll(Arrays.asList(BOARD_COLUMNS));
+        try {
+            if (in.readInt() != GameArchive.GROUP_MAGIC) {
+                throw new IOException("Damaged row group.");
+            }
+            RowGroup group = new RowGroup(in.readInt(), in.readInt(), in.readInt());
+            int columns = in.readUnsignedByte();
+            for (int i = 0; i < columns; i++) {
+                String name = in.readUTF();
+                int encoding = in.readUnsignedByte();
+                int count = in.readInt();
+                int length = in.readInt();
+                if (!names.contains(name)) {
+                    skip(length);
+                } else if (encoding == GameArchive.PLAIN) {
+                    group.columns.put(name, readPlain(count));
+                } else if (encoding == GameArchive.SHORT) {
+                    group.columns.put(name, readShort(count));
+                } else if (encoding == GameArchive.DICTIONARY) {
+                    group.columns.put(name, readDictionary(count));
+                } else {
+                    throw new IOException("Unknown column encoding " + encoding + ".");
+                }
+            }
+            return group;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    //Skips over a column that wasn't asked for.
+    private void skip(int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            length -= skipped;
+        }
+    }
+
+    //Reads a column of unsigned bytes.
+    private Column readPlain(int count) throws IOException {
+        byte[] bytes = new byte[count];
+        in.readFully(bytes);
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = bytes[i] & 0xFF;
+        }
+        return new Column(null, values);
+    }
+
+    //Reads a column of unsigned two byte numbers.
+    private Column readShort(int count) throws IOException {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readUnsignedShort();
+        }
+        return new Column(null, values);
+    }
+
+    //Reads a dictionary column, unpacking each value's position in the dictionary.
+    private Column readDictionary(int count) throws IOException {
+        String[] dictionary = new String[in.readInt()];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = in.readUTF();
+        }
+        int width = in.readUnsignedByte();
+        byte[] packed = new byte[(int) (((long) count * width + 7) / 8)];
+        in.readFully(packed);
+        int[] values = new int[count];
+        long mask = (1L << width) - 1;
+        long bit = 0;
+        for (int i = 0; i < count; i++, bit += width) {
+            //A value of up to 32 bits, starting part way through a byte, is spread over at most 5 bytes.
+            int index = (int) (bit >>> 3);
+            long window = 0;
+            for (int k = 0; k < 5 && index + k < packed.length; k++) {
+                window |= (packed[index + k] & 0xFFL) << (8 * k);
+            }
+            values[i] = (int) ((window >>> (bit & 7)) & mask);
+        }
+        return new Column(dictionary, values);
+    }
+
+    //Closes the archive.
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /*Main method entry point. Takes the archive to scan, or reads ServerConfig.ARCHIVE_FILE. A REPLACEMENT decides the
+     *winner if, with every tile the winner took with one handed back to its owner, someone else would have won.*/
+    public static void main(String[] args) throws IOException {
+        String name = args.length > 0 ? args[0] : ServerConfig.ARCHIVE_FILE;
+        if (name.isEmpty()) {
+            System.out.println("Give the archive to scan, e.g. java SocketBasedGame.ArchiveReader games.arc");
+            return;
+        }
+        File path = new File(name);
+        long start = System.nanoTime();
+        long games = 0;
+        long moves = 0;
+        long[] cardUses = new long[InfluenceCard.values().length];
+        long winnerReplaced = 0;
+        long decided = 0;
+        //The number of games played on each board, as servers with different boards can share an archive.
+        Map<BoardTopology, Long> boards = new LinkedHashMap<>();
+
+        try (ArchiveReader reader = new ArchiveReader(path)) {
+            RowGroup group;
+            while ((group = reader.next(REPORT_COLUMNS)) != null) {
+                Column seatCount = group.getColumn("seatCount");
+                Column moveCount = group.getColumn("moveCount");
+                Column winner = group.getColumn("winner");
+                Column mark = group.getColumn("mark");
+                Column score = group.getColumn("score");
+                Column mover = group.getColumn("mover");
+                Column card = group.getColumn("card");
+                Column taken = group.getColumn("taken");
+                //Turn each dictionary into ordinals once per group, so the games are scanned as plain numbers.
+                int[] winnerMarks = ordinals(winner);
+                int[] seatMarks = ordinals(mark);
+                int[] moverMarks = ordinals(mover);
+                int[] takenMarks = ordinals(taken);
+                int[] cards = new int[card.getDictionary().length];
+                for (int i = 0; i < cards.length; i++) {
+                    cards[i] = InfluenceCard.valueOf(card.getDictionary()[i]).ordinal();
+                }
+
+                int[] scores = new int[PlayerMark.values().length];
+                int seat = 0;
+                int move = 0;
+                for (int g = 0; g < group.getGames(); g++) {
+                    Arrays.fill(scores, -1);
+                    for (int end = seat + seatCount.get(g); seat < end; seat++) {
+                        scores[seatMarks[mark.get(seat)]] = score.get(seat);
+                    }
+                    int won = winnerMarks[winner.get(g)];
+                    boolean replaced = false;
+                    for (int end = move + moveCount.get(g); move < end; move++) {
+                        int used = cards[card.get(move)];
+                        cardUses[used]++;
+                        int owner = takenMarks[taken.get(move)];
+                        if (used == InfluenceCard.REPLACEMENT.ordinal() && moverMarks[mover.get(move)] == won
+                                && owner != PlayerMark.NONE.ordinal() && scores[owner] >= 0) {
+                            replaced = true;
+                            scores[won]--;
+                            scores[owner]++;
+                        }
+                    }
+                    if (replaced) {
+                        winnerReplaced++;
+                        if (leader(scores) != won) {
+                            decided++;
+                        }
+                    }
+                    boards.merge(group.getBoard(g), 1L, Long::sum);
+                    games++;
+                }
+                moves += group.getMoves();
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println("games=" + games + " moves=" + moves + " bytes=" + path.length()
+                + " seconds=" + String.format("%.2f", seconds) + " gamesPerSecond=" + Math.round(games / seconds));
+        for (Map.Entry<BoardTopology, Long> board : boards.entrySet()) {
+            System.out.println("board=" + board.getKey().getKind() + " " + board.getKey().getRows() + "x"
+                    + board.getKey().getColumns() + " games=" + board.getValue());
+        }
+        for (InfluenceCard card : InfluenceCard.values()) {
+            System.out.println("card=" + card + " uses=" + cardUses[card.ordinal()]);
+        }
+        System.out.println("winnerUsedReplacement=" + winnerReplaced + " replacementDecidedWinner=" + decided
+                + " share=" + String.format("%.2f", games == 0 ? 0 : 100.0 * decided / games) + "%");
+    }
+
+    //Returns the mark ordinal of each entry in a dictionary column of marks.
+    private static int[] ordinals(Column marks) {
+        int[] ordinals = new int[marks.getDictionary().length];
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinals[i] = PlayerMark.valueOf(marks.getDictionary()[i]).ordinal();
+        }
+        return ordinals;
+    }
+
+    //Returns the mark ordinal of the highest score, where -1 is a mark not in the game. Ties go to the higher mark.
+    private static int leader(int[] scores) {
+        int leader = PlayerMark.NONE.ordinal();
+        for (int i = 1; i < scores.length; i++) {
+            if (scores[i] >= 0 && scores[i] >= scores[leader]) {
+                leader = i;
+            }
+        }
+        return leader;
+    }
+}
@@ -0,0 +1,184 @@
+package SocketBasedGame;
+
+import java.util.Base64;
+
+/*This class converts a game board to and from the full board messages sent by the server.
+ *TEXT:   BOARD M M M ...                 - One digit per tile, separated by spaces.
+ *PACKED: BOARD_PACKED rows columns data  - Each tile's mark packed into 3 bits, then Base64 encoded.
+ *RLE:    BOARD_RLE rows columns data     - As PACKED, but runs of the same mark are written as a single entry.
+ *In the RLE data the 3 bit value 7 (never a mark) starts a run: it is followed by the 3 bit mark and then the run
+ *length, minus MIN_RUN, written 3 bits at a time with a leading bit that is set when more groups follow.*/
+public class BoardCodec {
+
+    //The number of bits used for each mark.
+    private static final int MARK_BITS = 3;
+    //The value that starts a run in the RLE data. Marks only go up to 5 so this can never be a mark.
+    private static final int RUN = 7;
+    //Runs shorter than this are cheaper to write out tile by tile.
+    private static final int MIN_RUN = 4;
+
+    //Builds the full board message for the given encoding from a board of rows of marks. Used by the tests.
+    public static String encode(int[][] board, BoardEncoding encoding) {
+        int columns = board[0].length;
+        byte[] flat = new byte[board.length * columns];
+        for (int row = 0; row < board.length; row++) {
+            for (int column = 0; column < columns; column++) {
+                flat[(row * columns) + column] = (byte) board[row][column];
+            }
+        }
+        return encode(flat, columns, encoding);
+    }
+
+    //Builds the full board message for the given encoding from a board stored one mark per byte, row by row.
+    public static String encode(byte[] board, int columns, BoardEncoding encoding) {
+        int rows = board.length / columns;
+        if (encoding == BoardEncoding.PACKED) {
+            return "BOARD_PACKED " + rows + " " + columns + " " + packBoard(board, false);
+        } else if (encoding == BoardEncoding.RLE) {
+            return "BOARD_RLE " + rows + " " + columns + " " + packBoard(board, true);
+        } else {
+            //Marks are single digits, so they can be written as characters without going through Integer.toString.
+            StringBuilder text = new StringBuilder(6 + (board.length * 2));
+            text.append("BOARD");
+            for (byte pos : board) {
+                text.append(' ').append((char) ('0' + pos));
+            }
+            return text.toString();
+        }
+    }
+
+    //Returns true if the message is a full board message in any of the encodings.
+    public static boolean isBoard(String message) {
+        return message.startsWith("BOARD ") || message.startsWith("BOARD_PACKED ") || message.startsWith("BOARD_RLE ");
+    }
+
+    /*Decodes a full board message of any encoding straight into the given board array.
+     *The board must have the same dimensions as the board the message was built from.*/
+    public static void decode(String message, int[][] board) {
+        if (message.startsWith("BOARD ")) {
+            decodeText(message, board);
+        } else {
+            //The dimensions are in the message, but the data is all that's needed to fill the board.
+            String data = message.substring(message.lastIndexOf(' ') + 1);
+            unpackBoard(Base64.getDecoder().decode(data), board);
+        }
+    }
+
+    //Reads the tiles from a TEXT board message by walking the characters rather than splitting and parsing tokens.
+    private static void decodeText(String message, int[][] board) {
+        int columns = board[0].length;
+        int tile = 0;
+        int value = -1;
+        //Start after "BOARD ".
+        for (int i = 6; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+            } else if (value >= 0) {
+                board[tile / columns][tile % columns] = value;
+                tile++;
+                value = -1;
+            }
+        }
+        if (value >= 0) {
+            board[tile / columns][tile % columns] = value;
+        }
+    }
+
+    //Packs the board into bits, collapsing runs if asked to, and returns the Base64 text of the result.
+    private static String packBoard(byte[] board, boolean runLength) {
+        int tiles = board.length;
+        //A run entry is never longer than the tiles it replaces, so this is always large enough.
+        byte[] bits = new byte[((tiles * MARK_BITS) + 7) / 8];
+        int bitPos = 0;
+
+        int tile = 0;
+        while (tile < tiles) {
+            int mark = board[tile];
+            int run = 1;
+            if (runLength) {
+                while (tile + run < tiles && board[tile + run] == mark) {
+                    run++;
+                }
+            }
+
+            if (run >= MIN_RUN) {
+                bitPos = writeBits(bits, bitPos, RUN, MARK_BITS);
+                bitPos = writeBits(bits, bitPos, mark, MARK_BITS);
+                int length = run - MIN_RUN;
+                do {
+                    int group = length & 7;
+                    length >>>= 3;
+                    bitPos = writeBits(bits, bitPos, (length != 0 ? 8 : 0) | group, 4);
+                } while (length != 0);
+                tile += run;
+            } else {
+                //Short runs are written tile by tile.
+                for (int i = 0; i < run; i++) {
+                    bitPos = writeBits(bits, bitPos, mark, MARK_BITS);
+                }
+                tile += run;
+            }
+        }
+
+        byte[] used = bits;
+        if (((bitPos + 7) / 8) < bits.length) {
+            used = new byte[(bitPos + 7) / 8];
+            System.arraycopy(bits, 0, used, 0, used.length);
+        }
+        return Base64.getEncoder().encodeToString(used);
+    }
+
+    //Unpacks PACKED or RLE data into the board. PACKED data is just RLE data that never starts a run.
+    private static void unpackBoard(byte[] bits, int[][] board) {
+        int columns = board[0].length;
+        int tiles = board.length * columns;
+        int bitPos = 0;
+
+        int tile = 0;
+        while (tile < tiles) {
+            int value = readBits(bits, bitPos, MARK_BITS);
+            bitPos += MARK_BITS;
+            if (value == RUN) {
+                int mark = readBits(bits, bitPos, MARK_BITS);
+                bitPos += MARK_BITS;
+                int length = 0;
+                int shift = 0;
+                int group;
+                do {
+                    group = readBits(bits, bitPos, 4);
+                    bitPos += 4;
+                    length |= (group & 7) << shift;
+                    shift += 3;
+                } while ((group & 8) != 0);
+                for (int end = tile + length + MIN_RUN; tile < end && tile < tiles; tile++) {
+                    board[tile / columns][tile % columns] = mark;
+                }
+            } else {
+                board[tile / columns][tile % columns] = value;
+                tile++;
+            }
+        }
+    }
+
+    //Writes the lowest count bits of value at the given bit position, most significant bit first.
+    private static int writeBits(byte[] bits, int bitPos, int value, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            if (((value >>> i) & 1) != 0) {
+                bits[bitPos >>> 3] |= 0x80 >>> (bitPos & 7);
+            }
+            bitPos++;
+        }
+        return bitPos;
+    }
+
+    //Reads count bits starting at the given bit position, most significant bit first.
+    private static int readBits(byte[] bits, int bitPos, int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            value = (value << 1) | ((bits[bitPos >>> 3] >>> (7 - (bitPos & 7))) & 1);
+            bitPos++;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,7 @@
+package SocketBasedGame;
+
+/*This enum represents the ways a full board can be sent to a client. A client picks one with the ENCODING command.
+ *TEXT is the original BOARD message, PACKED sends 3 bits per tile and RLE also collapses runs of the same mark.*/
+public enum BoardEncoding {
+    TEXT, PACKED, RLE
+}
@@ -0,0 +1,159 @@
+package SocketBasedGame;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*This class holds game boards outside the Java heap, so the garbage collector never has to scan or copy them however
+ *many games the server holds. The memory is split into fixed size slots, one board per slot, and handed out in chunks
+ *of SLOTS_PER_CHUNK direct buffers as more are needed. A game keeps only the number of its slot, and gives the slot
+ *back when it ends so the next game can reuse it. Each slot is only used by one game, under that game's lock.
+ *A game that is dropped without ending, e.g. one whose players all went away, can't give its slot back itself, so the
+ *slab watches each game and reclaims the slot of any that has been garbage collected still holding one.*/
+public class BoardSlab {
+
+    //The number of slots in each chunk. A power of two, so a slot's chunk and position are found with shifts.
+    private static final int CHUNK_SHIFT = 12;
+    private static final int SLOTS_PER_CHUNK = 1 << CHUNK_SHIFT;
+
+    //The slab used for the boards of every game on the server.
+    private static final BoardSlab shared = new BoardSlab(Game.ROWS * Game.COLUMNS);
+
+    //The size of one slot in bytes.
+    private final int slotSize;
+    //The chunks of slots. Replaced by a larger array when a chunk is added, so readers never need a lock.
+    private volatile ByteBuffer[] chunks;
+    //The slots given back, ready to be reused, and the number of them.
+    private int[] free;
+    private int freeCount;
+    //The number of slots ever handed out. Slots past this haven't been used yet.
+    private int used;
+    //The owner of each slot handed out by allocate(owner) and not yet given back, indexed by slot.
+    private Owner[] owners;
+    //Where the owners that have been garbage collected are queued, ready for their slots to be reclaimed.
+    private final ReferenceQueue<Object> dropped;
+    //The number of slots reclaimed from owners that were garbage collected without giving them back.
+    private long reclaimed;
+
+    //Watches the owner of a slot without keeping it alive, and is queued once the owner has been garbage collected.
+    private static class Owner extends PhantomReference<Object> {
+        //The slot the owner was given.
+        private final int slot;
+
+        private Owner(Object owner, int slot, ReferenceQueue<Object> queue) {
+            super(owner, queue);
+            this.slot = slot;
+        }
+    }
+
+    //BoardSlab constructor. No memory is reserved until the first slot is needed.
+    public BoardSlab(int slotSize) {
+        this.slotSize = slotSize;
+        chunks = new ByteBuffer[0];
+        free = new int[SLOTS_PER_CHUNK];
+        freeCount = 0;
+        used = 0;
+        owners = new Owner[0];
+        dropped = new ReferenceQueue<>();
+        reclaimed = 0;
+    }
+
+    //Returns the slab used for the boards of every game, with one slot per board.
+    public static BoardSlab getShared() {
+        return shared;
+    }
+
+    /*Hands out a slot as allocate() does, and watches its owner. If the owner is garbage collected without giving the
+     *slot back, the slot is reclaimed by a later call to allocate.*/
+    public synchronized int allocate(Object owner) {
+        int slot = allocate();
+        if (slot >= owners.length) {
+            owners = Arrays.copyOf(owners, Math.max(slot + 1, owners.length * 2));
+        }
+        owners[slot] = new Owner(owner, slot, dropped);
+        return slot;
+    }
+
+    //Hands out a slot with every byte set to 0, reusing a slot that was given back if there is one.
+    public synchronized int allocate() {
+        reclaim();
+        int slot;
+        if (freeCount > 0) {
+            slot = free[--freeCount];
+        } else {
+            slot = used++;
+            if ((slot >> CHUNK_SHIFT) == chunks.length) {
+                ByteBuffer[] grown = new ByteBuffer[chunks.length + 1];
+                System.arraycopy(chunks, 0, grown, 0, chunks.length);
+                grown[chunks.length] = ByteBuffer.allocateDirect(SLOTS_PER_CHUNK * slotSize);
+                chunks = grown;
+            }
+        }
+        for (int i = 0; i < slotSize; i++) {
+            put(slot, i, (byte) 0);
+        }
+        return slot;
+    }
+
+    //Gives a slot back so it can be reused. The slot must not be used again by whoever gave it back.
+    public synchronized void free(int slot) {
+        //Forgetting the owner also drops its reference, so it is never queued and the slot can't be given back twice.
+        if (slot < owners.length) {
+            owners[slot] = null;
+        }
+        if (freeCount == free.length) {
+            int[] grown = new int[free.length * 2];
+            System.arraycopy(free, 0, grown, 0, freeCount);
+            free = grown;
+        }
+        free[freeCount++] = slot;
+    }
+
+    //Gives back the slots of owners that were garbage collected without giving them back themselves.
+    private void reclaim() {
+        Reference<?> reference;
+        while ((reference = dropped.poll()) != null) {
+            Owner owner = (Owner) reference;
+            if (owners[owner.slot] == owner) {
+                free(owner.slot);
+                reclaimed++;
+            }
+        }
+    }
+
+    //Returns the number of slots reclaimed from owners that were garbage collected without giving them back.
+    public synchronized long getReclaimed() {
+        return reclaimed;
+    }
+
+    //Returns the byte at the given position in a slot.
+    public byte get(int slot, int index) {
+        return chunks[slot >> CHUNK_SHIFT].get(((slot & (SLOTS_PER_CHUNK - 1)) * slotSize) + index);
+    }
+
+    //Sets the byte at the given position in a slot.
+    public void put(int slot, int index, byte value) {
+        chunks[slot >> CHUNK_SHIFT].put(((slot & (SLOTS_PER_CHUNK - 1)) * slotSize) + index, value);
+    }
+
+    //Copies a whole slot into an array at least slotSize long.
+    public void read(int slot, byte[] into) {
+        ByteBuffer chunk = chunks[slot >> CHUNK_SHIFT];
+        int offset = (slot & (SLOTS_PER_CHUNK - 1)) * slotSize;
+        for (int i = 0; i < slotSize; i++) {
+            into[i] = chunk.get(offset + i);
+        }
+    }
+
+    //Returns the number of slots in use.
+    public synchronized int getSlotsInUse() {
+        return used - freeCount;
+    }
+
+    //Returns the number of bytes reserved outside the heap.
+    public synchronized long getReservedBytes() {
+        return (long) chunks.length * SLOTS_PER_CHUNK * slotSize;
+    }
+}
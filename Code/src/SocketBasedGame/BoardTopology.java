@@ -0,0 +1,174 @@
+package SocketBasedGame;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*This class says which tiles of a board touch each other. The neighbours of every tile are worked out once per board
+ *shape and kept in one flat table, so the rule checks on the server and the clients just walk a tile's slice of the
+ *table, with no edge cases and no bounds checks. Tiles are numbered row * columns + column. The neighbours of a tile
+ *are neighbours[first[tile]] up to, but not including, neighbours[first[tile + 1]]:
+ *  for (int k = first[tile]; k < first[tile + 1]; k++) { ... board[neighbours[k]] ... }*/
+public class BoardTopology {
+
+    //The most tiles a board can have, as FreeCells keeps the empty tiles as shorts.
+    public static final int MAX_TILES = Short.MAX_VALUE;
+
+    //The ways the tiles of a board can touch.
+    public enum Kind {
+        //The 8 tiles around a tile, including diagonally. The edges of the board are edges. This is the original game.
+        RECTANGULAR,
+        //The same 8 tiles, but the board wraps around, so the left edge touches the right and the top the bottom.
+        TOROIDAL,
+        //A board of hexagons, with every other row shifted half a tile to the right, so each tile touches 6 others.
+        HEX,
+        //Only the 4 tiles above, below, left and right of a tile.
+        VON_NEUMANN
+    }
+
+    //The tables already built, by kind and dimensions, so each board shape is only worked out once.
+    private static final Map<String, BoardTopology> built = new HashMap<>();
+
+    //The kind of topology and the dimensions of the board.
+    private final Kind kind;
+    private final int rows;
+    private final int columns;
+    //Where each tile's neighbours start in neighbours, with one extra entry at the end.
+    private final int[] first;
+    //The neighbours of every tile, one tile after another.
+    private final int[] neighbours;
+
+    //BoardTopology constructor to work out the neighbours of every tile. Use get(), so each shape is only built once.
+    private BoardTopology(Kind kind, int rows, int columns) {
+        this.kind = kind;
+        this.rows = rows;
+        this.columns = columns;
+        int tiles = rows * columns;
+        first = new int[tiles + 1];
+        int[] table = new int[tiles * 8];
+        int size = 0;
+        for (int tile = 0; tile < tiles; tile++) {
+            first[tile] = size;
+            int x = tile / columns;
+            int y = tile % columns;
+            for (int[] offset : offsets(kind, x)) {
+                int i = x + offset[0];
+                int j = y + offset[1];
+                if (kind == Kind.TOROIDAL) {
+                    i = (i + rows) % rows;
+                    j = (j + columns) % columns;
+                } else if (i < 0 || i >= rows || j < 0 || j >= columns) {
+                    continue;
+                }
+                int neighbour = (i * columns) + j;
+                //On a board only 1 or 2 tiles across, wrapping around can reach a tile twice, or the tile itself.
+                boolean seen = neighbour == tile;
+                for (int k = first[tile]; k < size && !seen; k++) {
+                    seen = table[k] == neighbour;
+                }
+                if (!seen) {
+                    table[size++] = neighbour;
+                }
+            }
+        }
+        first[tiles] = size;
+        neighbours = new int[size];
+        System.arraycopy(table, 0, neighbours, 0, size);
+    }
+
+    //Returns the topology for a board shape, building its table the first time the shape is asked for.
+    public static synchronized BoardTopology get(Kind kind, int rows, int columns) {
+        if (rows < 1 || columns < 1 || rows * columns > MAX_TILES) {
+            throw new IllegalArgumentException("A board must have between 1 and " + MAX_TILES + " tiles, not "
+                    + rows + "x" + columns + ".");
+        }
+        String key = kind + " " + rows + " " + columns;
+        BoardTopology topology = built.get(key);
+        if (topology == null) {
+            topology = new BoardTopology(kind, rows, columns);
+            built.put(key, topology);
+        }
+        return topology;
+    }
+
+    //Returns the row and column offsets of the tiles that can touch a tile in the given row.
+    private static int[][] offsets(Kind kind, int row) {
+        switch (kind) {
+            case VON_NEUMANN:
+                return new int[][]{{-1, 0}, {0, -1}, {0, 1}, {1, 0}};
+            case HEX:
+                //An odd row is shifted right, so it touches columns y and y + 1 of the rows around it.
+                //An even row touches columns y - 1 and y.
+                int shift = row % 2 == 0 ? -1 : 0;
+                return new int[][]{{-1, shift}, {-1, shift + 1}, {0, -1}, {0, 1}, {1, shift}, {1, shift + 1}};
+            default:
+                return new int[][]{{-1, -1}, {-1, 0}, {-1, 1}, {0, -1}, {0, 1}, {1, -1}, {1, 0}, {1, 1}};
+        }
+    }
+
+    //Returns the kind of topology.
+    public Kind getKind() {
+        return kind;
+    }
+
+    //Returns the number of rows on the board.
+    public int getRows() {
+        return rows;
+    }
+
+    //Returns the number of columns on the board.
+    public int getColumns() {
+        return columns;
+    }
+
+    //Returns the number of tiles on the board.
+    public int getTiles() {
+        return rows * columns;
+    }
+
+    //Returns where each tile's neighbours start in getNeighbours(), with one extra entry at the end. Don't change it.
+    public int[] getFirst() {
+        return first;
+    }
+
+    //Returns the neighbours of every tile, one tile after another. Don't change it.
+    public int[] getNeighbours() {
+        return neighbours;
+    }
+
+    //Counts the tiles touching a tile that have the given mark, on a board with one byte per tile.
+    public int touching(byte[] board, int tile, int mark) {
+        int count = 0;
+        for (int k = first[tile]; k < first[tile + 1]; k++) {
+            if (board[neighbours[k]] == mark) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    //Checks if any tile touching a tile has the given mark, on a board with one byte per tile.
+    public boolean touches(byte[] board, int tile, int mark) {
+        for (int k = first[tile]; k < first[tile + 1]; k++) {
+            if (board[neighbours[k]] == mark) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Checks if any tile touching a tile has the given mark, on a board held as rows of marks.
+    public boolean touches(int[][] board, int tile, int mark) {
+        for (int k = first[tile]; k < first[tile + 1]; k++) {
+            int neighbour = neighbours[k];
+            if (board[neighbour / columns][neighbour % columns] == mark) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Returns the TOPOLOGY message describing the board, e.g. TOPOLOGY HEX 6 10.
+    public String toMessage() {
+        return "TOPOLOGY " + kind + " " + rows + " " + columns;
+    }
+}
@@ -0,0 +1,117 @@
+package SocketBasedGame;
+
+import javax.swing.*;
+import java.awt.*;
+
+/*This class extends JComponent to draw the whole game board as one component, rather than one component per tile.
+ *It keeps its own copy of the marks, so when the board is updated only the tiles whose mark changed are repainted,
+ *and painting only draws the tiles inside the area being repainted. Its copy of the board, and its shape, are only
+ *used on the GUI thread, so a board given from any other thread is copied and drawn there.*/
+public class BoardView extends JComponent {
+
+    //The version of this class, as JComponent is Serializable.
+    private static final long serialVersionUID = 1L;
+
+    //Color array to colour the GUI in the colours corresponding to the player marks.
+    private static final Color[] colours = new Color[]{Color.WHITE, Color.RED, Color.GREEN, Color.BLUE, Color.BLACK, Color.PINK};
+    //The width of the black lines between the tiles. Smaller tiles get thinner lines so the tiles stay visible.
+    private static final int GAP = 2;
+
+    //The dimensions of the board. They change if the server's board is a different shape. Only used on the GUI thread.
+    private int rows;
+    private int columns;
+    //The mark currently drawn on each tile, indexed by row * columns + column.
+    private int[] marks;
+
+    //BoardView constructor to set up an empty board with the given dimensions.
+    public BoardView(int rows, int columns) {
+        this.rows = rows;
+        this.columns = columns;
+        marks = new int[rows * columns];
+        setPreferredSize(new Dimension(500, 300));
+        setOpaque(true);
+    }
+
+    /*Updates every tile from the given board. Only the tiles that changed are repainted, unless the shape changed.
+     *Called from any other thread, the board is copied, as the caller may carry on changing it, and drawn on the GUI
+     *thread later.*/
+    public void setBoard(int[][] board) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            int[][] copy = new int[board.length][];
+            for (int i = 0; i < board.length; i++) {
+                copy[i] = board[i].clone();
+            }
+            SwingUtilities.invokeLater(() -> setBoard(copy));
+            return;
+        }
+        if (board.length != rows || board[0].length != columns) {
+            rows = board.length;
+            columns = board[0].length;
+            marks = new int[rows * columns];
+            repaint();
+        }
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                setMark(i, j, board[i][j]);
+            }
+        }
+    }
+
+    //Updates the mark on one tile, and repaints the tile if the mark changed. Must be called on the GUI thread.
+    private void setMark(int row, int column, int mark) {
+        int tile = (row * columns) + column;
+        if (marks[tile] != mark) {
+            marks[tile] = mark;
+            repaint(tileX(column), tileY(row), tileX(column + 1) - tileX(column), tileY(row + 1) - tileY(row));
+        }
+    }
+
+    /*Returns the row of the tile at a y position on the component. This is the last row whose top edge, as worked out
+     *by tileY(), is at or above y, so a click always lands on the tile drawn under it.*/
+    public int rowAt(int y) {
+        return Math.min(rows - 1, Math.max(0, (((y + 1) * rows) - 1) / Math.max(1, getHeight())));
+    }
+
+    //Returns the column of the tile at an x position on the component, rounded in the same way as tileX().
+    public int columnAt(int x) {
+        return Math.min(columns - 1, Math.max(0, (((x + 1) * columns) - 1) / Math.max(1, getWidth())));
+    }
+
+    //Returns the x position of the left edge of a column. The tiles share the width as evenly as possible.
+    private int tileX(int column) {
+        return (column * getWidth()) / columns;
+    }
+
+    //Returns the y position of the top edge of a row.
+    private int tileY(int row) {
+        return (row * getHeight()) / rows;
+    }
+
+    //Paints the black lines and then each tile inside the area being repainted, leaving out the rest of the board.
+    @Override
+    protected void paintComponent(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        g.setColor(Color.BLACK);
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+        int gap = Math.min(GAP, Math.min(getWidth() / columns, getHeight() / rows) / 4);
+        int firstRow = rowAt(clip.y);
+        int lastRow = rowAt(clip.y + clip.height - 1);
+        int firstColumn = columnAt(clip.x);
+        int lastColumn = columnAt(clip.x + clip.width - 1);
+        for (int i = firstRow; i <= lastRow; i++) {
+            int y = tileY(i);
+            //The last row and column have no line after them.
+            int height = tileY(i + 1) - y - (i < rows - 1 ? gap : 0);
+            for (int j = firstColumn; j <= lastColumn; j++) {
+                int x = tileX(j);
+                int width = tileX(j + 1) - x - (j < columns - 1 ? gap : 0);
+                g.setColor(colours[marks[(i * columns) + j]]);
+                g.fillRect(x, y, width, height);
+            }
+        }
+    }
+}
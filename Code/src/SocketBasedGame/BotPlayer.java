@@ -0,0 +1,325 @@
+package SocketBasedGame;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*This class is a bot that plays a seat in a game inside the server, with no client, connection or thread of its own.
+ *When it is told it is its turn, its move is queued on the shared BotPool, which chooses and makes it. A move is due
+ *ServerConfig.BOT_MOVE_MILLIS after the turn started. If the bot only gets a thread after that, it takes the first
+ *legal move it finds instead of looking for the best one, so a busy pool slows the bots' play rather than the games.*/
+public class BotPlayer implements Player {
+
+    //The start of every bot's token, so a bot read back from disk can be told apart from a client's seat.
+    private static final String TOKEN_PREFIX = "bot-";
+
+    //The game the bot is playing, and the pool that plays it.
+    private final Game game;
+    private final BotPool pool;
+    //The bot's mark and a token naming its seat. Nobody can reconnect with a bot's token.
+    private final PlayerMark playerMark;
+    private final String token;
+    //The influence cards the bot still has, one bit per card, indexed by the cards ordinal.
+    private int cards;
+    //A boolean to flag if the bot is blocked.
+    private boolean isBlocked;
+    //A boolean to flag that a move has been queued and not yet started, so a bot is never queued twice.
+    private final AtomicBoolean queued;
+    //The time, in nanoseconds, the queued move was asked for.
+    private volatile long askedAt;
+    //A boolean to flag that the bot's seat has been given back to the pool.
+    private final AtomicBoolean released;
+    //A boolean to flag that the queued move is the second half of a DOUBLE. Only used under the game lock.
+    private boolean secondHalf;
+
+    //BotPlayer constructor for a new seat. The seat must already have been reserved in the pool.
+    public BotPlayer(Game game, PlayerMark playerMark, BotPool pool) {
+        this.game = game;
+        this.pool = pool;
+        this.playerMark = playerMark;
+        token = TOKEN_PREFIX + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        cards = (1 << InfluenceCard.DOUBLE.ordinal()) | (1 << InfluenceCard.REPLACEMENT.ordinal())
+                | (1 << InfluenceCard.FREEDOM.ordinal());
+        isBlocked = false;
+        queued = new AtomicBoolean(false);
+        released = new AtomicBoolean(false);
+        secondHalf = false;
+    }
+
+    //BotPlayer constructor for a bot whose game is being read back from disk, reading the state written by writeTo().
+    public BotPlayer(Game game, String token, DataInputStream in) throws IOException {
+        this.game = game;
+        this.token = token;
+        pool = BotPool.getShared();
+        pool.claim();
+        playerMark = PlayerMark.values()[in.readByte()];
+        cards = in.readByte();
+        isBlocked = in.readBoolean();
+        queued = new AtomicBoolean(false);
+        released = new AtomicBoolean(false);
+        secondHalf = false;
+    }
+
+    //Checks if a token belongs to a bot.
+    public static boolean isBot(String token) {
+        return token.startsWith(TOKEN_PREFIX);
+    }
+
+    //Writes the bot's own state for Game.writeTo(): mark, cards and blocked.
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(playerMark.ordinal());
+        out.writeByte(cards);
+        out.writeBoolean(isBlocked);
+    }
+
+    /*Places the bot's first tile and tells the game it is ready, as a GameService does when its thread starts. If the
+     *pool won't take the work, the bot leaves, so the game can still start without it.*/
+    public void start() {
+        boolean accepted = pool.submit(() -> {
+            synchronized (game) {
+                if (!game.placeInitialTile(playerMark.ordinal())) {
+                    game.setBlocked(playerMark.ordinal());
+                }
+                game.sendBoard();
+                game.checkBlocked();
+                if (game.isGameOver()) {
+                    game.endGame();
+                    return;
+                }
+            }
+            game.playerReady(this);
+        });
+        if (!accepted) {
+            game.abandon(this);
+        }
+    }
+
+    //Queues a move when it is the bot's turn. Called under the game lock, so it only queues the move.
+    public void informClientOfTurn(PlayerMark mark) {
+        if (mark == playerMark && !isBlocked && queued.compareAndSet(false, true)) {
+            askedAt = System.nanoTime();
+            //A move the pool won't take isn't queued, so the bot can be queued again.
+            if (!pool.submit(this::play)) {
+                queued.set(false);
+            }
+        }
+    }
+
+    /*Chooses and makes a move. The board is copied under the game lock and the move chosen without it, so other
+     *players aren't held up. Nobody else can move while it is the bot's turn, so the board is the same when the move
+     *is made.*/
+    private void play() {
+        long start = System.nanoTime();
+        long deadline = askedAt + ServerConfig.BOT_MOVE_MILLIS * 1000000L;
+        queued.set(false);
+        byte[] board;
+        boolean doubled;
+        synchronized (game) {
+            doubled = secondHalf;
+            secondHalf = false;
+            if (!isMyTurn()) {
+                return;
+            }
+            board = game.getBoard();
+        }
+        int[] move = chooseMove(board, deadline);
+        synchronized (game) {
+            //A bot's move counts as activity, as a client's command does, so a game being played isn't written to disk.
+            if (!isMyTurn() || !game.touch()) {
+                return;
+            }
+            if (move == null && doubled) {
+                /*The first half of a DOUBLE can take the last tile the bot could reach without it being blocked, as
+                 *it may still have cards it can't use. The second half is passed rather than the bot leaving.*/
+                game.nextPlayer();
+                return;
+            }
+            int cell = move == null ? -1 : move[1];
+            if (move == null || !makeMove(InfluenceCard.values()[move[0]], cell / Game.COLUMNS, cell % Game.COLUMNS)) {
+                //The bot isn't blocked, so there should always be a move. If not, it leaves rather than hold up the game.
+                EventLog.log(LogLevel.WARN, "botStuck", "mark", playerMark);
+                game.abandon(this);
+                return;
+            }
+        }
+        long end = System.nanoTime();
+        pool.recordMove(end - start, end > deadline);
+    }
+
+    //Checks if the bot can move now. Called under the game lock.
+    private boolean isMyTurn() {
+        return game.getPlayerMarkTurn() == playerMark && !isBlocked && !game.isFinished() && !game.isHibernated();
+    }
+
+    /*Makes a move with Game.playMove(), as GameService.move() does, so the other players can't tell it from a client's
+     *move. Called under the game lock. After a DOUBLE the turn stays with the bot without being announced again, so
+     *the second half is queued here. Returns false if the move wasn't legal.*/
+    private boolean makeMove(InfluenceCard card, int x, int y) {
+        if (!game.playMove(this, card, x, y)) {
+            return false;
+        }
+        if (card == InfluenceCard.DOUBLE && isMyTurn()) {
+            secondHalf = true;
+            informClientOfTurn(playerMark);
+        }
+        return true;
+    }
+
+    //Uses up the card the bot's move was made with.
+    public void moveMade(InfluenceCard card) {
+        if (card != InfluenceCard.NONE) {
+            cards &= ~(1 << card.ordinal());
+        }
+    }
+
+    /*Chooses a move on a copy of the board, returned as the card ordinal and the tile. The bot grows into the empty
+     *tile next to its own with the most empty tiles around it, so it keeps room to move, and uses DOUBLE once half the
+     *board is taken. With no such tile it uses FREEDOM on the most open empty tile, or REPLACEMENT to take a tile from
+     *the player with the most tiles. After the deadline it takes the first tile it finds. Returns null if there is
+     *no legal move.*/
+    int[] chooseMove(byte[] board, long deadline) {
+        int mine = playerMark.ordinal();
+        int[] counts = new int[PlayerMark.values().length];
+        for (byte tile : board) {
+            counts[tile]++;
+        }
+        int empty = counts[PlayerMark.NONE.ordinal()];
+        boolean late = System.nanoTime() > deadline;
+
+        //Grow from the bot's own tiles.
+        int best = -1;
+        int bestScore = -1;
+        int choices = 0;
+        for (int cell = 0; cell < board.length && !(late && best >= 0); cell++) {
+            if (board[cell] == PlayerMark.NONE.ordinal() && Game.TOPOLOGY.touches(board, cell, mine)) {
+                choices++;
+                int score = Game.TOPOLOGY.touching(board, cell, PlayerMark.NONE.ordinal());
+                if (score > bestScore) {
+                    best = cell;
+                    bestScore = score;
+                }
+                late = late || System.nanoTime() > deadline;
+            }
+        }
+        if (best >= 0) {
+            boolean useDouble = hasCard(InfluenceCard.DOUBLE) && choices >= 2 && empty * 2 <= board.length;
+            return new int[]{(useDouble ? InfluenceCard.DOUBLE : InfluenceCard.NONE).ordinal(), best};
+        }
+
+        //Jump to the most open empty tile.
+        if (hasCard(InfluenceCard.FREEDOM) && empty > 0) {
+            for (int cell = 0; cell < board.length && !(late && best >= 0); cell++) {
+                if (board[cell] == PlayerMark.NONE.ordinal()) {
+                    int score = Game.TOPOLOGY.touching(board, cell, PlayerMark.NONE.ordinal());
+                    if (score > bestScore) {
+                        best = cell;
+                        bestScore = score;
+                    }
+                }
+            }
+            return new int[]{InfluenceCard.FREEDOM.ordinal(), best};
+        }
+
+        //Take a tile next to the bot's own, from whoever holds the most.
+        if (hasCard(InfluenceCard.REPLACEMENT)) {
+            for (int cell = 0; cell < board.length && !(late && best >= 0); cell++) {
+                if (board[cell] != mine && Game.TOPOLOGY.touches(board, cell, mine)) {
+                    int score = counts[board[cell]];
+                    if (score > bestScore) {
+                        best = cell;
+                        bestScore = score;
+                    }
+                }
+            }
+            if (best >= 0) {
+                return new int[]{InfluenceCard.REPLACEMENT.ordinal(), best};
+            }
+        }
+        return null;
+    }
+
+    //Gives the bot's seat back to the pool, once.
+    private void release() {
+        if (released.compareAndSet(false, true)) {
+            pool.release();
+        }
+    }
+
+    //The game has ended, so the seat is given back.
+    public void end(String scores) {
+        release();
+    }
+
+    //The game has been written to disk, so this copy of the bot is finished with. The copy read back takes a new seat.
+    public void hibernate() {
+        release();
+    }
+
+    //Returns the bot's mark.
+    public PlayerMark getPlayerMark() {
+        return playerMark;
+    }
+
+    //Bots aren't rated, so they have no name.
+    public String getPlayerName() {
+        return null;
+    }
+
+    //Returns the token naming the bot's seat.
+    public String getToken() {
+        return token;
+    }
+
+    //Returns the influence cards the bot still has.
+    public int getCards() {
+        return cards;
+    }
+
+    //Checks if the bot still has an influence card.
+    public boolean hasCard(InfluenceCard card) {
+        return (cards & (1 << card.ordinal())) != 0;
+    }
+
+    //Returns whether the bot is blocked or not.
+    public boolean isBlocked() {
+        return isBlocked;
+    }
+
+    //Sets isBlocked to true.
+    public void setBlocked() {
+        isBlocked = true;
+    }
+
+    //A bot reads the board when it moves, so it is never sent updates.
+    public boolean wantsScores() {
+        return false;
+    }
+
+    //A bot reads the board when it moves, so it is never sent updates.
+    public boolean wantsMoveResults() {
+        return false;
+    }
+
+    //Returns null, as a bot reads the board when it moves, so the game doesn't encode the board for it.
+    public BoardEncoding getBoardEncoding() {
+        return null;
+    }
+
+    //Ignored, as the bot reads the board when it moves.
+    public void updateBoard(String board) {
+    }
+
+    //Ignored, as the bot reads the board when it moves.
+    public void updateScores(String scores) {
+    }
+
+    //Ignored, as the bot reads the board when it moves.
+    public void sendMoveResult(String result, boolean isReply) {
+    }
+
+    //Ignored, as a bot never misses anything.
+    public void replay(long seq, String event) {
+    }
+}
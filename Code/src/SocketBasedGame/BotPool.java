@@ -0,0 +1,123 @@
+package SocketBasedGame;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*This class is the pool of threads that plays every BotPlayer on the server. A bot only needs a thread while it is
+ *working out a move, so a few threads can play thousands of bot seats. The number of seats is capped at
+ *ServerConfig.MAX_BOT_SEATS, and each seat has at most one move waiting at a time, so the queue of moves only grows
+ *with the seats. The queue itself has no bound, as bots read back from disk take seats past the cap.*/
+public class BotPool {
+
+    //The pool used by the server, started the first time it is needed.
+    private static BotPool shared;
+
+    //The threads that play the bots, and the moves waiting for one.
+    private final ThreadPoolExecutor executor;
+    //The most bot seats, and the number taken.
+    private final int maxSeats;
+    private final AtomicInteger seats;
+    //The number of moves made, the number made after their deadline, and the time spent choosing them, for reports.
+    private final AtomicLong moves;
+    private final AtomicLong lateMoves;
+    private final AtomicLong thinkNanos;
+
+    //BotPool constructor to start the given number of threads, for up to maxSeats bot seats.
+    public BotPool(int threads, int maxSeats) {
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                task -> {
+                    Thread thread = new Thread(task, "Bot-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.maxSeats = maxSeats;
+        seats = new AtomicInteger();
+        moves = new AtomicLong();
+        lateMoves = new AtomicLong();
+        thinkNanos = new AtomicLong();
+    }
+
+    //Returns the pool used by the server, starting it the first time.
+    public static synchronized BotPool getShared() {
+        if (shared == null) {
+            shared = new BotPool(ServerConfig.BOT_THREADS, ServerConfig.MAX_BOT_SEATS);
+        }
+        return shared;
+    }
+
+    //Takes n bot seats if that many are free. Returns false, taking none, if they aren't.
+    public boolean reserve(int n) {
+        while (true) {
+            int taken = seats.get();
+            if (taken + n > maxSeats) {
+                return false;
+            }
+            if (seats.compareAndSet(taken, taken + n)) {
+                return true;
+            }
+        }
+    }
+
+    /*Takes a bot seat whether or not one is free, so the seats taken can go past maxSeats. Used for bots read back
+     *from disk, whose game already exists.*/
+    public void claim() {
+        seats.incrementAndGet();
+    }
+
+    //Gives back a bot seat once its game has ended or been written to disk.
+    public void release() {
+        seats.decrementAndGet();
+    }
+
+    //Returns the number of bot seats not taken.
+    public int getFreeSeats() {
+        return Math.max(0, maxSeats - seats.get());
+    }
+
+    //Queues a bot's work to be run by one of the threads. Returns false if the work was turned away.
+    public boolean submit(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            //The queue has no bound, so this only happens once the pool has been shut down.
+            EventLog.log(LogLevel.WARN, "botRejected", "queued", executor.getQueue().size());
+            return false;
+        }
+    }
+
+    //Records a move made by a bot, how long it took to choose, and whether it was made after its deadline.
+    void recordMove(long nanos, boolean late) {
+        moves.incrementAndGet();
+        thinkNanos.addAndGet(nanos);
+        if (late) {
+            lateMoves.incrementAndGet();
+        }
+    }
+
+    //Returns the number of moves made by bots.
+    public long getMoves() {
+        return moves.get();
+    }
+
+    //Returns the number of moves made after their deadline, having waited too long for a thread.
+    public long getLateMoves() {
+        return lateMoves.get();
+    }
+
+    //Returns the average time, in nanoseconds, taken to choose a move.
+    public long getThinkNanos() {
+        long made = moves.get();
+        return made == 0 ? 0 : thinkNanos.get() / made;
+    }
+
+    //Stops the threads once the moves already queued have been made.
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
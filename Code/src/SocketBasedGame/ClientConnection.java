@@ -0,0 +1,219 @@
+package SocketBasedGame;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+/*This class handles a clients connection to the server. It removes the sequence number from each message the server
+ *sends and remembers the latest one. If the connection is lost, it reconnects and sends RESUME with the session token
+ *from the MARK message, so the client carries on as the same player and is only sent what it missed.
+ *If the server writes an idle game to disk it sends HIBERNATED and closes the connection. The client then waits, and
+ *only reconnects when it next sends a command, which brings the game back.*/
+public class ClientConnection {
+
+    //The number of times in a row the client will try to reconnect before giving up.
+    private static final int RESUME_ATTEMPTS = 5;
+    //The time, in milliseconds, to wait before each attempt to reconnect.
+    private static final int RESUME_DELAY = 1000;
+
+    //The IP and port of the server.
+    private final String server;
+    private final int port;
+    //This is the socket used to communicate with the connected server.
+    private Socket connection;
+    //This is used to receive responses from the server.
+    private BufferedReader input;
+    //This is used to send commands to the server.
+    private PrintWriter output;
+    //The session token sent with the MARK message. Null until the client has joined a game.
+    private String token;
+    //The sequence number of the latest message received.
+    private long lastSeen;
+    //The number of times the client has tried to reconnect since it last received its mark.
+    private int failures;
+    //A boolean to flag if the client has closed the connection itself, so it shouldn't reconnect.
+    private boolean closed;
+    //A boolean to flag if the server wrote the game to disk, so the client waits to reconnect until it sends a command.
+    private boolean hibernated;
+    //The request ID given to the last command sent with sendRequest().
+    private int lastRequest;
+    //The request ID the last message read was a response to, or 0 if it wasn't a response to a request.
+    private int replyTo;
+    //Held while reconnecting to a game the server wrote to disk, so only one command reconnects.
+    private final Object wakeLock;
+
+    //ClientConnection constructor to connect to the server and get the streams from the socket.
+    public ClientConnection(String server, int port) throws IOException {
+        this.server = server;
+        this.port = port;
+        token = null;
+        lastSeen = 0;
+        failures = 0;
+        closed = false;
+        hibernated = false;
+        lastRequest = 0;
+        replyTo = 0;
+        wakeLock = new Object();
+        open();
+    }
+
+    //Opens a new connection to the server.
+    private void open() throws IOException {
+        connection = new Socket(server, port);
+        input = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+        output = new PrintWriter(connection.getOutputStream(), true);
+    }
+
+    /*Sends a command to the server. Throws an IOException if the game was written to disk and the client couldn't
+     *reconnect to bring it back, in which case the command wasn't sent.*/
+    public void send(String command) throws IOException {
+        wake();
+        synchronized (this) {
+            output.println(command);
+        }
+    }
+
+    /*Sends a command to the server with a new request ID and returns the ID. The server starts its responses to the
+     *command with the same ID, so commands can be sent without waiting for the replies to earlier ones. Throws an
+     *IOException if the command couldn't be sent, as send() does.*/
+    public int sendRequest(String command) throws IOException {
+        wake();
+        synchronized (this) {
+            lastRequest++;
+            output.println("#" + lastRequest + " " + command);
+            return lastRequest;
+        }
+    }
+
+    //Returns the request ID the last message read was a response to, or 0 if it wasn't a response to a request.
+    public int getReplyTo() {
+        return replyTo;
+    }
+
+    /*Returns the next message from the server without its sequence number. If the connection is lost, this reconnects
+     *and carries on reading from the new connection. Throws an IOException if the client couldn't reconnect.*/
+    public String readLine() throws IOException {
+        while (true) {
+            String line;
+            try {
+                line = input.readLine();
+            } catch (IOException e) {
+                line = null;
+            }
+            if (line == null) {
+                if (!awaitWake()) {
+                    reconnect();
+                }
+                continue;
+            }
+
+            line = line.trim();
+            if (line.startsWith("@")) {
+                int space = line.indexOf(' ');
+                lastSeen = Long.parseLong(line.substring(1, space));
+                line = line.substring(space + 1);
+            }
+            replyTo = 0;
+            if (line.startsWith("#")) {
+                int space = line.indexOf(' ');
+                replyTo = Integer.parseInt(line.substring(1, space));
+                line = line.substring(space + 1);
+            }
+            if (line.equals("HIBERNATED")) {
+                synchronized (this) {
+                    hibernated = true;
+                }
+                return "MESSAGE The game was idle and has been paused. It carries on when you next make a move.";
+            }
+            if (line.startsWith("MARK ")) {
+                //The server sends the mark and token on joining and again once a reconnect has been accepted.
+                String[] mark = line.split(" ");
+                if (mark.length == 3) {
+                    token = mark[2];
+                }
+                failures = 0;
+            }
+            return line;
+        }
+    }
+
+    /*Waits for a command to be sent after the server wrote the game to disk, which reconnects. Returns false straight
+     *away if the game wasn't written to disk, as the connection was lost instead. Throws an IOException if the client
+     *closes the connection while waiting.*/
+    private synchronized boolean awaitWake() throws IOException {
+        if (!hibernated) {
+            return false;
+        }
+        while (hibernated && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while the game was paused.");
+            }
+        }
+        if (closed) {
+            throw new IOException("Connection closed.");
+        }
+        return true;
+    }
+
+    /*Reconnects and resumes the session before a command is sent, if the server wrote the game to disk. Reading the
+     *game back happens as part of the RESUME, so the command that follows is handled by the game as normal. The new
+     *connection is opened without holding this object's lock, so a slow server doesn't hold up the reader. Throws an
+     *IOException if the client couldn't connect, and stays paused so the next command tries again.*/
+    private void wake() throws IOException {
+        synchronized (wakeLock) {
+            synchronized (this) {
+                if (!hibernated) {
+                    return;
+                }
+            }
+            Socket socket = new Socket(server, port);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            synchronized (this) {
+                connection = socket;
+                input = reader;
+                output = writer;
+                output.println("RESUME " + token + " " + lastSeen);
+                hibernated = false;
+                notifyAll();
+            }
+        }
+    }
+
+    //Tries to reconnect to the server and resume the session. Throws an IOException if it can't.
+    private void reconnect() throws IOException {
+        if (closed || token == null) {
+            throw new IOException("Connection lost.");
+        }
+        while (failures < RESUME_ATTEMPTS) {
+            failures++;
+            try {
+                Thread.sleep(RESUME_DELAY);
+                synchronized (this) {
+                    open();
+                    output.println("RESUME " + token + " " + lastSeen);
+                }
+                System.out.println("Reconnected. Resuming from " + lastSeen);
+                return;
+            } catch (IOException e) {
+                System.out.println("Reconnect failed. Trying again.");
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        throw new IOException("Could not reconnect.");
+    }
+
+    //Closes the connection to the server.
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        connection.close();
+    }
+}
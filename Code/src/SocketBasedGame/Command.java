@@ -0,0 +1,237 @@
+package SocketBasedGame;
+
+/*This class holds one message of the protocol, split into its words. It is reused for every message read from a
+ *connection, so reading a message doesn't create any objects once its buffers are big enough. The words are kept as
+ *positions in the messages characters, and are only turned into numbers, cards or marks when asked for. A word that
+ *isn't valid gives back INVALID or null rather than throwing an exception.
+ *If the first word is a request ID, e.g. #12, it is taken off and the message is treated as starting after it.*/
+public class Command {
+
+    //Returned by getInt() for a word that isn't a number.
+    public static final int INVALID = Integer.MIN_VALUE;
+    //Returned by getRequestId() for a message without a request ID.
+    public static final int NO_REQUEST = -1;
+
+    //The values of each enum, kept so looking up a word doesn't copy them each time.
+    private static final Opcode[] OPCODES = Opcode.values();
+    private static final InfluenceCard[] CARDS = InfluenceCard.values();
+    private static final PlayerMark[] MARKS = PlayerMark.values();
+    private static final BoardEncoding[] ENCODINGS = BoardEncoding.values();
+    private static final BoardTopology.Kind[] TOPOLOGIES = BoardTopology.Kind.values();
+
+    //The characters of the message. Grown if a message doesn't fit.
+    private char[] chars;
+    //The number of characters in the message.
+    private int length;
+    //The start and end of each word in chars.
+    private int[] starts;
+    private int[] ends;
+    //The number of words, not counting the request ID.
+    private int size;
+    //The first word of the message.
+    private Opcode opcode;
+    //The request ID of the message, or NO_REQUEST.
+    private int requestId;
+
+    //Command constructor. The buffers start big enough for any message a client sends.
+    public Command() {
+        chars = new char[128];
+        starts = new int[16];
+        ends = new int[16];
+        clear();
+    }
+
+    //Empties the command so a new message can be read into it.
+    public void clear() {
+        length = 0;
+        size = 0;
+        opcode = Opcode.UNKNOWN;
+        requestId = NO_REQUEST;
+    }
+
+    //Adds a character to the end of the message. Returns false if the message is already as long as allowed.
+    public boolean append(char c, int maxLength) {
+        if (length == maxLength) {
+            return false;
+        }
+        if (length == chars.length) {
+            char[] bigger = new char[Math.min(chars.length * 2, Math.max(maxLength, chars.length + 1))];
+            System.arraycopy(chars, 0, bigger, 0, length);
+            chars = bigger;
+        }
+        chars[length++] = c;
+        return true;
+    }
+
+    //Replaces the message with the given line and splits it into words. Returns this command.
+    public Command parse(String line) {
+        clear();
+        if (line.length() > chars.length) {
+            chars = new char[line.length()];
+        }
+        line.getChars(0, line.length(), chars, 0);
+        length = line.length();
+        tokenize();
+        return this;
+    }
+
+    //Splits the message into words and looks up its request ID and opcode.
+    public void tokenize() {
+        tokenize(Integer.MAX_VALUE);
+    }
+
+    /*Splits off just enough of the message to look up its request ID and opcode, without splitting the rest. Used to
+     *decide what to do with a message that may be dropped. Call tokenize() before reading any other words.*/
+    public void tokenizeHead() {
+        tokenize(2);
+    }
+
+    //Splits the first maxWords words of the message, counting the request ID, and looks up its request ID and opcode.
+    private void tokenize(int maxWords) {
+        size = 0;
+        int i = 0;
+        while (i < length && size < maxWords) {
+            while (i < length && chars[i] == ' ') {
+                i++;
+            }
+            if (i == length) {
+                break;
+            }
+            int start = i;
+            while (i < length && chars[i] != ' ') {
+                i++;
+            }
+            if (size == starts.length) {
+                starts = grow(starts);
+                ends = grow(ends);
+            }
+            starts[size] = start;
+            ends[size] = i;
+            size++;
+        }
+
+        //A first word of # followed by a number is a request ID, and is taken off the words.
+        requestId = NO_REQUEST;
+        if (size > 1 && chars[starts[0]] == '#') {
+            int id = parseInt(starts[0] + 1, ends[0]);
+            if (id >= 0) {
+                requestId = id;
+                System.arraycopy(starts, 1, starts, 0, size - 1);
+                System.arraycopy(ends, 1, ends, 0, size - 1);
+                size--;
+            }
+        }
+        opcode = size == 0 ? Opcode.UNKNOWN : lookup(OPCODES, 0, Opcode.UNKNOWN);
+    }
+
+    //Returns the first word of the message, or UNKNOWN if it isn't part of the protocol.
+    public Opcode getOpcode() {
+        return opcode;
+    }
+
+    //Returns the request ID of the message, or NO_REQUEST if it didn't have one.
+    public int getRequestId() {
+        return requestId;
+    }
+
+    //Returns the number of words in the message, including the opcode.
+    public int size() {
+        return size;
+    }
+
+    //Returns word i as a number, or INVALID if it isn't one or is out of range of an int.
+    public int getInt(int i) {
+        return i < size ? parseInt(starts[i], ends[i]) : INVALID;
+    }
+
+    //Returns word i as an influence card, or null if it isn't one.
+    public InfluenceCard getCard(int i) {
+        return lookup(CARDS, i, null);
+    }
+
+    //Returns word i as a player mark, or null if it isn't one.
+    public PlayerMark getMark(int i) {
+        return lookup(MARKS, i, null);
+    }
+
+    //Returns word i as a board encoding, or null if it isn't one.
+    public BoardEncoding getEncoding(int i) {
+        return lookup(ENCODINGS, i, null);
+    }
+
+    //Returns word i as a kind of board topology, or null if it isn't one.
+    public BoardTopology.Kind getTopology(int i) {
+        return lookup(TOPOLOGIES, i, null);
+    }
+
+    //Checks if word i is the given word.
+    public boolean wordEquals(int i, String word) {
+        if (i >= size || ends[i] - starts[i] != word.length()) {
+            return false;
+        }
+        for (int j = 0; j < word.length(); j++) {
+            if (chars[starts[i] + j] != word.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Returns word i as a String. This creates a new String, so it is only used for words kept as text, like names.
+    public String getString(int i) {
+        return new String(chars, starts[i], ends[i] - starts[i]);
+    }
+
+    //Returns words from up to, but not including, to as a String, separated by single spaces.
+    public String getString(int from, int to) {
+        if (from >= to) {
+            return "";
+        }
+        return new String(chars, starts[from], ends[to - 1] - starts[from]);
+    }
+
+    //Returns the whole message, without its request ID.
+    @Override
+    public String toString() {
+        return getString(0, size);
+    }
+
+    //Returns the value whose name matches word i, or notFound if none do.
+    private <E extends Enum<E>> E lookup(E[] values, int i, E notFound) {
+        if (i >= size) {
+            return notFound;
+        }
+        for (E value : values) {
+            if (wordEquals(i, value.name())) {
+                return value;
+            }
+        }
+        return notFound;
+    }
+
+    //Parses the characters from start up to end as a number. Returns INVALID if they aren't a number that fits an int.
+    private int parseInt(int start, int end) {
+        boolean negative = start < end && chars[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end || end - i > 10) {
+            return INVALID;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            char c = chars[i];
+            if (c < '0' || c > '9') {
+                return INVALID;
+            }
+            value = value * 10 + (c - '0');
+        }
+        value = negative ? -value : value;
+        return value > Integer.MAX_VALUE || value <= INVALID ? INVALID : (int) value;
+    }
+
+    //Returns a copy of the array twice the size.
+    private static int[] grow(int[] array) {
+        int[] bigger = new int[array.length * 2];
+        System.arraycopy(array, 0, bigger, 0, array.length);
+        return bigger;
+    }
+}
@@ -0,0 +1,68 @@
+package SocketBasedGame;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/*This class reads messages from a connection one line at a time into a reused Command, through its own reused
+ *character buffer, so reading a message doesn't create a String or any other object. A line longer than the limit is
+ *cut short, so a client can't make the server use up memory by never ending a line.*/
+public class CommandReader {
+
+    //The longest line kept. The rest of a longer line is skipped.
+    public static final int MAX_LINE = 4096;
+
+    //The connection's reader.
+    private final Reader reader;
+    //The characters read from the connection but not yet used.
+    private final char[] buffer;
+    //The position of the next character to use in buffer, and the number of characters in it.
+    private int position;
+    private int limit;
+
+    //CommandReader constructor. The reader may already hold characters read before this was created.
+    public CommandReader(Reader reader) {
+        this.reader = reader;
+        buffer = new char[8192];
+        position = 0;
+        limit = 0;
+    }
+
+    /*Reads the next line into the command and splits it into words. Returns false if the connection ended before a
+     *line was read.*/
+    public boolean read(Command command) throws IOException {
+        if (!readLine(command)) {
+            return false;
+        }
+        command.tokenize();
+        return true;
+    }
+
+    /*Reads the next line into the command without splitting it into words, so a line that is then dropped costs no
+     *more than reading it. Returns false if the connection ended before a line was read.*/
+    public boolean readLine(Command command) throws IOException {
+        command.clear();
+        boolean any = false;
+        while (true) {
+            if (position == limit) {
+                limit = reader.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    if (!any) {
+                        return false;
+                    }
+                    //The last line didn't end with a new line.
+                    return true;
+                }
+            }
+            char c = buffer[position++];
+            any = true;
+            if (c == '\n') {
+                return true;
+            }
+            if (c != '\r') {
+                command.append(c, MAX_LINE);
+            }
+        }
+    }
+}
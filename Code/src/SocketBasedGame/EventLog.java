@@ -0,0 +1,242 @@
+package SocketBasedGame;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/*This class logs server events without holding up the thread that logs them. Events are put in a ring of preallocated
+ *entries and written out by a single background thread, so logging never does any I/O on a game thread. An event is a
+ *name and up to two key value pairs, which are only turned into text by the writer, and an event below the configured
+ *level returns straight away without building anything.
+ *Each event is written as one line of key=value fields, e.g. time=1700000000000 level=INFO event=blocked mark=RED.
+ *If the ring is full, new events are dropped and counted rather than making the caller wait.*/
+public class EventLog {
+
+    //The lowest level of event that is kept.
+    private static final LogLevel LEVEL = LogLevel.valueOf(ServerConfig.LOG_LEVEL);
+    //Which of the time, level, thread and event fields are written, as well as the events own key value pairs.
+    private static final boolean WRITE_TIME = ServerConfig.LOG_FIELDS.contains("time");
+    private static final boolean WRITE_LEVEL = ServerConfig.LOG_FIELDS.contains("level");
+    private static final boolean WRITE_THREAD = ServerConfig.LOG_FIELDS.contains("thread");
+
+    //The ring of entries. Entries are reused, so logging doesn't create any objects.
+    private static final Entry[] ring = new Entry[ServerConfig.LOG_CAPACITY];
+    //The number of entries ever added to, and ever taken from, the ring. The next entry to use is head % ring.length.
+    private static long head;
+    private static long tail;
+    //The number of events dropped because the ring was full, since the writer last reported it.
+    private static long dropped;
+
+    //The file being written to, or null if events are written to standard error or output.
+    private static File file;
+    //Where the events are written.
+    private static Writer out;
+    //The number of bytes written to the current file.
+    private static long written;
+
+    //One logged event.
+    private static class Entry {
+        //The time the event was logged, in milliseconds.
+        private long time;
+        //How important the event is.
+        private LogLevel level;
+        //The name of the thread that logged the event.
+        private String thread;
+        //The name of the event.
+        private String event;
+        //The events key value pairs. Unused keys are null.
+        private String key1;
+        private Object value1;
+        private String key2;
+        private Object value2;
+    }
+
+    static {
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = new Entry();
+        }
+        try {
+            if (ServerConfig.LOG_FILE.isEmpty()) {
+                out = new BufferedWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8));
+            } else if (ServerConfig.LOG_FILE.equals("-")) {
+                out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            } else {
+                file = new File(ServerConfig.LOG_FILE);
+                written = file.length();
+                out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            out = new BufferedWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8));
+        }
+        Thread writer = new Thread(EventLog::writeEntries, "EventLog");
+        writer.setDaemon(true);
+        writer.start();
+        //Write anything still in the ring when the server stops.
+        Runtime.getRuntime().addShutdownHook(new Thread(EventLog::flush, "EventLogFlush"));
+    }
+
+    //Checks if events at the given level are being kept, for callers that need to work something out to log it.
+    public static boolean isEnabled(LogLevel level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    //Logs an event with no key value pairs.
+    public static void log(LogLevel level, String event) {
+        log(level, event, null, null, null, null);
+    }
+
+    //Logs an event with one key value pair.
+    public static void log(LogLevel level, String event, String key, Object value) {
+        log(level, event, key, value, null, null);
+    }
+
+    //Logs an event with two key value pairs. The values must not change after being logged, as they are read later.
+    public static void log(LogLevel level, String event, String key1, Object value1, String key2, Object value2) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        long time = System.currentTimeMillis();
+        String thread = Thread.currentThread().getName();
+        synchronized (ring) {
+            if (head - tail == ring.length) {
+                dropped++;
+                return;
+            }
+            Entry entry = ring[(int) (head % ring.length)];
+            entry.time = time;
+            entry.level = level;
+            entry.thread = thread;
+            entry.event = event;
+            entry.key1 = key1;
+            entry.value1 = value1;
+            entry.key2 = key2;
+            entry.value2 = value2;
+            head++;
+        }
+    }
+
+    //Writes out the ring on a timer. Run by the writer thread.
+    private static void writeEntries() {
+        while (true) {
+            flush();
+            try {
+                Thread.sleep(ServerConfig.LOG_FLUSH_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /*Writes every entry in the ring and flushes the output. Entries are turned into text outside the ring lock, so
+     *loggers only wait for the entries to be copied.*/
+    public static synchronized void flush() {
+        StringBuilder line = new StringBuilder();
+        Entry entry = new Entry();
+        try {
+            while (true) {
+                long lost;
+                synchronized (ring) {
+                    if (tail == head && dropped == 0) {
+                        break;
+                    }
+                    lost = dropped;
+                    dropped = 0;
+                    if (tail != head) {
+                        Entry next = ring[(int) (tail % ring.length)];
+                        copy(next, entry);
+                        //Clear the values so the ring doesn't keep them alive.
+                        next.value1 = null;
+                        next.value2 = null;
+                        tail++;
+                    } else {
+                        entry.event = null;
+                    }
+                }
+                if (lost > 0) {
+                    //Reported as an event of its own, so it is written with the same fields as every other line.
+                    Entry report = new Entry();
+                    report.time = System.currentTimeMillis();
+                    report.level = LogLevel.WARN;
+                    report.thread = Thread.currentThread().getName();
+                    report.event = "dropped";
+                    report.key1 = "count";
+                    report.value1 = lost;
+                    write(format(report, line));
+                }
+                if (entry.event != null) {
+                    write(format(entry, line));
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //Copies one entry to another.
+    private static void copy(Entry from, Entry to) {
+        to.time = from.time;
+        to.level = from.level;
+        to.thread = from.thread;
+        to.event = from.event;
+        to.key1 = from.key1;
+        to.value1 = from.value1;
+        to.key2 = from.key2;
+        to.value2 = from.value2;
+    }
+
+    //Builds the line for an entry with the configured fields.
+    private static StringBuilder format(Entry entry, StringBuilder line) {
+        if (WRITE_TIME) {
+            line.append("time=").append(entry.time).append(' ');
+        }
+        if (WRITE_LEVEL) {
+            line.append("level=").append(entry.level).append(' ');
+        }
+        if (WRITE_THREAD) {
+            line.append("thread=").append(entry.thread).append(' ');
+        }
+        line.append("event=").append(entry.event);
+        if (entry.key1 != null) {
+            line.append(' ').append(entry.key1).append('=').append(entry.value1);
+        }
+        if (entry.key2 != null) {
+            line.append(' ').append(entry.key2).append('=').append(entry.value2);
+        }
+        return line;
+    }
+
+    //Writes a line, and starts a new file first if the current one is full.
+    private static void write(StringBuilder line) throws IOException {
+        line.append('\n');
+        if (file != null && written + line.length() > ServerConfig.LOG_MAX_BYTES) {
+            rotate();
+        }
+        out.append(line);
+        written += line.length();
+        line.setLength(0);
+    }
+
+    /*Closes the current file and renames it to name.1, moving name.1 to name.2 and so on. The oldest file is deleted
+     *so there are never more than ServerConfig.LOG_FILES files.*/
+    private static void rotate() throws IOException {
+        out.close();
+        for (int i = ServerConfig.LOG_FILES - 1; i >= 1; i--) {
+            File older = new File(file.getPath() + "." + i);
+            if (i == ServerConfig.LOG_FILES - 1) {
+                older.delete();
+            }
+            File newer = i == 1 ? file : new File(file.getPath() + "." + (i - 1));
+            if (newer.exists()) {
+                newer.renameTo(older);
+            }
+        }
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, false), StandardCharsets.UTF_8));
+        written = 0;
+    }
+}
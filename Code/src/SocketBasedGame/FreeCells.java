@@ -0,0 +1,77 @@
+package SocketBasedGame;
+
+import java.util.Random;
+
+/*This class holds the empty tiles of a board, so a random empty tile can be picked without searching the board.
+ *The tiles are kept packed at the front of an array, and each tile's position in that array is kept too. A tile is
+ *removed by moving the last tile into its place, so adding, removing and picking a tile all take the same time
+ *however big or full the board is. Tiles are numbered row * COLUMNS + column.*/
+public class FreeCells {
+
+    //The empty tiles, in no particular order. Only the first size entries are used. Shorts keep resident games small.
+    private final short[] cells;
+    //The position of each tile in cells, indexed by tile, or -1 if the tile isn't empty.
+    private final short[] positions;
+    //The number of empty tiles.
+    private int size;
+
+    //FreeCells constructor. Every one of the count tiles starts empty. There can be at most BoardTopology.MAX_TILES.
+    public FreeCells(int count) {
+        if (count < 0 || count > BoardTopology.MAX_TILES) {
+            throw new IllegalArgumentException("FreeCells holds tiles as shorts, so can't hold " + count + " tiles.");
+        }
+        cells = new short[count];
+        positions = new short[count];
+        for (int i = 0; i < count; i++) {
+            cells[i] = (short) i;
+            positions[i] = (short) i;
+        }
+        size = count;
+    }
+
+    //Marks a tile as empty. Does nothing if it already is.
+    public void add(int cell) {
+        if (positions[cell] >= 0) {
+            return;
+        }
+        cells[size] = (short) cell;
+        positions[cell] = (short) size;
+        size++;
+    }
+
+    //Marks a tile as taken, by moving the last empty tile into its place. Does nothing if it is already taken.
+    public void remove(int cell) {
+        int position = positions[cell];
+        if (position < 0) {
+            return;
+        }
+        size--;
+        short last = cells[size];
+        cells[position] = last;
+        positions[last] = (short) position;
+        positions[cell] = -1;
+    }
+
+    //Checks if a tile is empty.
+    public boolean contains(int cell) {
+        return positions[cell] >= 0;
+    }
+
+    //Returns the number of empty tiles.
+    public int size() {
+        return size;
+    }
+
+    //Returns a random empty tile, or -1 if there are none.
+    public int random(Random random) {
+        return size == 0 ? -1 : cells[random.nextInt(size)];
+    }
+
+    //Marks every tile as taken, before the empty tiles are added back from a new board.
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            positions[cells[i]] = -1;
+        }
+        size = 0;
+    }
+}
@@ -1,94 +1,232 @@
 package SocketBasedGame;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
 
 /*This class represents the game that the clients interact with via the GameService.
  *As well as maintaining/changing the state, it has methods for triggering updates for all players.*/
 public class Game {
 
-    //Constants for the game boards dimensions.
-    public static final int ROWS = 6;
-    public static final int COLUMNS = 10;
-    //A list of all GameServices (Players) playing the current game.
-    private List<GameService> players;
-    //An int array to hold the marks at each position on the board.
-    private int[][] gameBoard;
-    /*A boolean array where each element corresponds to a player, indexed by the players mark.
-     *E.g. PlayerMark.RED has ordinal value 1 so isBlocked[1] will indicate if the Red player is blocked (true)*/
-    private boolean[] isBlocked;
-    /*A boolean array to represent if a player has had their first mark placed. Allows GameService to place the initial
+    //Constants for the game boards dimensions, set by ServerConfig.
+    public static final int ROWS = ServerConfig.BOARD_ROWS;
+    public static final int COLUMNS = ServerConfig.BOARD_COLUMNS;
+    //Which tiles of the board touch each other, used by every rule that needs a tile next to another.
+    public static final BoardTopology TOPOLOGY =
+            BoardTopology.get(BoardTopology.Kind.valueOf(ServerConfig.BOARD_TOPOLOGY), ROWS, COLUMNS);
+    //The slab holding the boards of the games being played.
+    private static final BoardSlab slab = BoardSlab.getShared();
+    //A board read out of the slab to be encoded, one per thread, so sending a board doesn't allocate a copy.
+    private static final ThreadLocal<byte[]> boardBuffer = ThreadLocal.withInitial(() -> new byte[ROWS * COLUMNS]);
+    //Identifies a game written to disk by writeTo().
+    private static final int HIBERNATE_MAGIC = 0x48494234;
+    /*The bytes used to record one move: mover, card, tile, the mark the tile held before, and the players it blocked.
+     *The tile takes two bytes, high byte first, so it can be any tile of a board up to BoardTopology.MAX_TILES.*/
+    static final int MOVE_BYTES = 6;
+    /*A list of all Players playing the current game, both GameServices and BotPlayers. Broadcasts iterate over a
+     *snapshot of the list, so a player joining part way through a broadcast can't interrupt it.*/
+    private List<Player> players;
+    /*The slot in the shared BoardSlab holding the mark at each position on the board, one byte per tile, indexed by
+     *row * COLUMNS + column. The board is kept outside the heap, so a server holding a very large number of games that
+     *are waiting on slow players doesn't slow down the garbage collector.*/
+    private final int boardSlot;
+    //The board once the game has ended and its slot has been given back, or null while the game is being played.
+    private byte[] finalBoard;
+    /*The players who are blocked, one bit per player, indexed by the players mark.
+     *E.g. PlayerMark.RED has ordinal value 1 so bit 1 will indicate if the Red player is blocked (set)*/
+    private int blocked;
+    /*The players who have had their first mark placed, one bit per player. Allows GameService to place the initial
      *mark without checking for matching adjacent marks (which there wouldn't be if its the first move).*/
-    private boolean[] hadFirst;
+    private int hadFirst;
     //A boolean flag to indicate if the game has finished.
-    private boolean finished;
+    private volatile boolean finished;
     //A PlayerMark to hold the mark of the player who's turn it currently is. Used to handle concurrent access.
     private PlayerMark playerMarkTurn;
     //Tracks the number of players in the game. A primary use is to ensure a game can't start with only 1 player.
     private int playerCount;
-
-    //Game constructor to initialise data members.
+    /*The number of tiles held by each mark, indexed by the marks ordinal. Index 0 (NONE) counts the empty tiles.
+     *Kept up to date on every placement so scores and boardFull() never need to scan the board.*/
+    private int[] tileCounts;
+    //The empty tiles, indexed by row * COLUMNS + column, so a player's first tile can be placed without searching.
+    private FreeCells freeCells;
+    //The recent game events, numbered in order, so a player who reconnects can be sent only what they missed.
+    private ReplayBuffer events;
+    //The tiles changed since the board was last sent, indexed by row * COLUMNS + column.
+    private BitSet changedTiles;
+    /*A boolean to flag that a move is being applied. Players who asked for MOVE_RESULT are not sent the separate
+     *BOARD, TURN and END messages for it, and get one MOVE_RESULT message once the move is finished instead.*/
+    private boolean moveInProgress;
+    //The tiles changed by the move in progress, as x y mark triples each preceded by a space.
+    private String moveCells;
+    //The marks of the players blocked by the move in progress, each preceded by a space.
+    private StringBuilder moveBlocked;
+    //Limits how often all the players in this game together can send commands.
+    private final TokenBucket commandLimit;
+    //The number of players the game was formed for, and the number who have placed their first tile or left.
+    private final int tableSize;
+    private int readyCount;
+    //The players counted in readyCount, one bit per player, indexed by the players mark, so none is counted twice.
+    private int readied;
+    //The time, in milliseconds, a player last sent a command. Used to find games that have been left idle.
+    private long lastActive;
+    //A boolean to flag that the game has been written to disk and dropped. The copy read back is a new Game.
+    private boolean hibernated;
+    /*Every move made, MOVE_BYTES each, in the order they were made, for the archive of finished games. Grown as
+     *needed, so a game that ends early only holds what it used.*/
+    private byte[] moves;
+    private int moveCount;
+
+    //Game constructor for a game that is started by hand. Used by the tests.
     public Game() {
-        players = new ArrayList<>();
-        gameBoard = new int[ROWS][COLUMNS];
-        isBlocked = new boolean[]{true, false, false, false, false, false};
-        hadFirst = new boolean[]{false, false, false, false, false, false};
+        this(0);
+    }
+
+    //Game constructor to initialise data members. The game starts once tableSize players have placed their first tile.
+    public Game(int tableSize) {
+        this.tableSize = tableSize;
+        readyCount = 0;
+        readied = 0;
+        lastActive = System.currentTimeMillis();
+        hibernated = false;
+        players = new CopyOnWriteArrayList<>();
+        boardSlot = slab.allocate(this);
+        finalBoard = null;
+        //The NONE player is always blocked.
+        blocked = 1 << PlayerMark.NONE.ordinal();
+        hadFirst = 0;
         finished = false;
         playerMarkTurn = PlayerMark.NONE;
         playerCount = 0;
+        tileCounts = new int[PlayerMark.values().length];
+        tileCounts[PlayerMark.NONE.ordinal()] = ROWS * COLUMNS;
+        freeCells = new FreeCells(ROWS * COLUMNS);
+        events = new ReplayBuffer(ServerConfig.REPLAY_CAPACITY);
+        changedTiles = new BitSet(ROWS * COLUMNS);
+        moveInProgress = false;
+        moves = new byte[0];
+        moveCount = 0;
+        commandLimit = new TokenBucket(ServerConfig.GAME_COMMANDS_PER_SECOND, ServerConfig.GAME_COMMAND_BURST);
     }
 
-    //Adds a player (GameService) to the players list, increases the player count and starts the game if needed.
-    public void addPlayer(GameService gameService) {
-        players.add(gameService);
+    //Returns the players in the game, in the order they joined.
+    public List<Player> getPlayers() {
+        return new ArrayList<>(players);
+    }
+
+    //Adds a player (GameService or BotPlayer) to the players list and increases the player count.
+    public void addPlayer(Player player) {
+        players.add(player);
         playerCount += 1;
-        if (playerCount == 2) {
-            //This executes the startGame() method is a separate thread to allow it to wait 10 seconds for more players.
-            new Thread(() -> {
-                try{
-                    Thread.sleep(10000);
-                    startGame();
-                } catch(InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }).start();
+    }
+
+    /*Called by each player once their first tile has been placed, and by abandon() for a player who leaves before
+     *then, so a departure never leaves the game waiting to start. The matchmaker only forms a game once its table is
+     *full, so the game starts as soon as every player is ready, without waiting for more players to join.*/
+    public synchronized void playerReady(Player player) {
+        int bit = 1 << player.getPlayerMark().ordinal();
+        if ((readied & bit) != 0 || readyCount >= tableSize) {
+            return;
+        }
+        readied |= bit;
+        readyCount++;
+        if (readyCount == tableSize) {
+            startGame();
         }
     }
 
-    //This sets the player turn to RED as RED is always first, then informs all players of who's turn it is.
-    private void startGame() {
+    /*This sets the player turn to RED as RED is always first, then informs all players of who's turn it is.
+     *If RED is already blocked (e.g. they left before the start), the turn moves on to the next player.*/
+    private synchronized void startGame() {
         playerMarkTurn = PlayerMark.RED;
-        informPlayersOfTurn();
+        if (isBlocked(PlayerMark.RED.ordinal())) {
+            nextPlayer();
+        } else {
+            informPlayersOfTurn();
+        }
     }
 
     //This instructs each player (GameService) currently connected to inform their clients of who's turn it is.
-    private void informPlayersOfTurn() {
-        for (GameService gameService : players) {
-            gameService.informClientOfTurn(playerMarkTurn);
+    private synchronized void informPlayersOfTurn() {
+        events.add("TURN " + playerMarkTurn);
+        Replicator.changed(this);
+        for (Player player : players) {
+            if (moveInProgress && player.wantsMoveResults()) {
+                continue;
+            }
+            player.informClientOfTurn(playerMarkTurn);
         }
     }
 
+    //Checks and makes a move with the influence card named by card.
+    public synchronized boolean makeMove(String card, int x, int y, int playerMark) {
+        return makeMove(InfluenceCard.valueOf(card), x, y, playerMark);
+    }
+
     /*Synchronised here means that this method cant be called at the same time by two threads. Stops new
      *players from filling a space which a player clicked on. Either the new player or current player gets it.
-     *This method checks if a move is valid with a given influence card and the players mark.*/
-    public synchronized boolean makeMove(String card, int x, int y, int playerMark) {
-        //This is the influence card being used in this move, InfluenceCard.
-        InfluenceCard curCard = InfluenceCard.valueOf(card);
+     *Checks and makes a move, and records it for the archive if it was made. The tile must be on the board.*/
+    public synchronized boolean makeMove(InfluenceCard curCard, int x, int y, int playerMark) {
+        return checkMove(curCard, x, y, playerMark);
+    }
+
+    /*Makes a player's move and everything that follows from it, as one update under the game lock. This is the whole
+     *of a move for a GameService, a BotPlayer and the GameFuzzer alike: the board is sent, blocked players are found,
+     *the turn moves on unless the card was DOUBLE, the player is told with moveMade(), and the game is ended if it is
+     *over. The move is always finished, even if applying it fails part way, so the game isn't left flagged as
+     *mid-move, which would stop it ever being written to disk, and MOVE_RESULT players still hear of it. Returns false,
+     *changing nothing, if the move isn't legal.*/
+    public synchronized boolean playMove(Player player, InfluenceCard card, int x, int y) {
+        if (!makeMove(card, x, y, player.getPlayerMark().ordinal())) {
+            return false;
+        }
+        beginMove();
+        try {
+            sendBoard();
+            checkBlocked();
+            if (card != InfluenceCard.DOUBLE) {
+                nextPlayer();
+            }
+            if (player.isBlocked()) {
+                nextPlayer();
+            }
+            player.moveMade(card);
+            if (isGameOver()) {
+                endGame();
+            }
+        } finally {
+            finishMove(player, card.toString());
+        }
+        return true;
+    }
+
+    /*This method checks if a move is valid with a given influence card and the players mark, and places it if so.
+     *Every legal move is placed through placeMove(), which records it.*/
+    private boolean checkMove(InfluenceCard curCard, int x, int y, int playerMark) {
 
         /*If the move is using no card or the double card, then only checking if the space is free and is adjacent
          *to another tile with the same mark as the one being placed.*/
         if (curCard == InfluenceCard.NONE || curCard == InfluenceCard.DOUBLE) {
             //This checks if the tile not occupied.
-            if (gameBoard[x][y] == PlayerMark.NONE.ordinal()) {
+            if (readTile((x * COLUMNS) + y) == PlayerMark.NONE.ordinal()) {
                 //This allows for a players first, random tile to be placed as they won't have an adjacent tile yet.
-                if (!hadFirst[playerMark]) {
-                    hadFirst[playerMark] = true;
-                    gameBoard[x][y] = playerMark;
+                if ((hadFirst & (1 << playerMark)) == 0) {
+                    hadFirst |= 1 << playerMark;
+                    placeMove(curCard, x, y, playerMark);
                     return true;
                 }
                 /*If the tile is free and its not the player first move, then check that there is an adjacent tile with
                  *with the same mark as the one being placed.*/
-                return checkAdjacent(x, y, playerMark);
+                if (!hasAdjacent((x * COLUMNS) + y, playerMark)) {
+                    return false;
+                }
+                placeMove(curCard, x, y, playerMark);
+                return true;
             } else {
                 //The tile was occupied, so return false.
                 return false;
@@ -97,16 +235,16 @@ public class Game {
             /*The replacement card is being used, so there is no need to check if the space is free. Only need to check
              *that there is an adjacent tile with the same mark and the tile being replaced is not one of their own.
              *Note: Can replace a free tile, but that is the players choice.*/
-            if (gameBoard[x][y] == playerMark) {
+            if (readTile((x * COLUMNS) + y) == playerMark || !hasAdjacent((x * COLUMNS) + y, playerMark)) {
                 return false;
-            } else {
-                return checkAdjacent(x, y, playerMark);
             }
+            placeMove(curCard, x, y, playerMark);
+            return true;
         } else if (curCard == InfluenceCard.FREEDOM) {
             /*The freedom card is being used, so there is no need to check the tile is adjacent to one with the same
              *mark. Only need to check the tile is not occupied.*/
-            if (gameBoard[x][y] == PlayerMark.NONE.ordinal()) {
-                gameBoard[x][y] = playerMark;
+            if (readTile((x * COLUMNS) + y) == PlayerMark.NONE.ordinal()) {
+                placeMove(curCard, x, y, playerMark);
                 return true;
             } else {
                 return false;
@@ -117,148 +255,440 @@ public class Game {
         }
     }
 
+    /*Records a move that checkMove() has found legal and places its tile. The mark the tile held before is read here,
+     *after the move has been checked and just before it is overwritten.*/
+    private void placeMove(InfluenceCard card, int x, int y, int playerMark) {
+        int cell = (x * COLUMNS) + y;
+        recordMove(playerMark, card, cell, readTile(cell));
+        placeMark(x, y, playerMark);
+    }
+
+    //Adds a move to the moves made. The players it blocks are added by block() as they are found.
+    private void recordMove(int playerMark, InfluenceCard card, int cell, int taken) {
+        if ((moveCount + 1) * MOVE_BYTES > moves.length) {
+            moves = Arrays.copyOf(moves, Math.max(moves.length * 2, 16 * MOVE_BYTES));
+        }
+        int offset = moveCount * MOVE_BYTES;
+        moves[offset] = (byte) playerMark;
+        moves[offset + 1] = (byte) card.ordinal();
+        moves[offset + 2] = (byte) (cell >>> 8);
+        moves[offset + 3] = (byte) cell;
+        moves[offset + 4] = (byte) taken;
+        moves[offset + 5] = 0;
+        moveCount++;
+    }
+
+    //Returns the tile of the move recorded at the given offset in a list of moves.
+    static int moveCell(byte[] moves, int offset) {
+        return ((moves[offset + 2] & 0xFF) << 8) | (moves[offset + 3] & 0xFF);
+    }
+
     /*Checks if a tile has a tile adjacent to it with the same mark. If so, it places the tile and returns true.
      *otherwise, returns false to indicate it wasn't placed.*/
     private boolean checkAdjacent(int x, int y, int playerMark) {
-        boolean valid = false;
-        for (int i = -1; i <= 1; i++) {
-            for (int j = -1; j <= 1; j++) {
-                try {
-                    //Attempts to check an adjacent tile.
-                    valid = gameBoard[x + i][y + j] == playerMark;
-                    if (valid) {
-                        gameBoard[x][y] = playerMark;
-                        return true;
-                    }
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    /*Catching an array index exception allows for the general method to be applied regardless of the
-                     *tile position, otherwise, checks for corner and edge tiles would be needed.*/
-                }
+        if (hasAdjacent((x * COLUMNS) + y, playerMark)) {
+            placeMark(x, y, playerMark);
+            return true;
+        }
+        return false;
+    }
+
+    /*Checks if any tile touching a tile has the given mark. Which tiles touch is looked up in the TOPOLOGY's table,
+     *which only holds tiles on the board, so there are no edges to check for.*/
+    private boolean hasAdjacent(int cell, int mark) {
+        int[] first = TOPOLOGY.getFirst();
+        int[] neighbours = TOPOLOGY.getNeighbours();
+        for (int k = first[cell]; k < first[cell + 1]; k++) {
+            if (readTile(neighbours[k]) == mark) {
+                return true;
             }
         }
         return false;
     }
 
+    /*Writes a mark to the board and moves the tile from the previous owner's count to the new owner's count.
+     *Every change to the board goes through here, including tiles taken with a REPLACEMENT card.*/
+    private void placeMark(int x, int y, int playerMark) {
+        int cell = (x * COLUMNS) + y;
+        tileCounts[readTile(cell)]--;
+        writeTile(cell, playerMark);
+        tileCounts[playerMark]++;
+        changedTiles.set(cell);
+        if (playerMark == PlayerMark.NONE.ordinal()) {
+            freeCells.add(cell);
+        } else {
+            freeCells.remove(cell);
+        }
+    }
+
+    //Returns the mark on a tile, indexed by row * COLUMNS + column.
+    private int readTile(int cell) {
+        return finalBoard != null ? finalBoard[cell] : slab.get(boardSlot, cell);
+    }
+
+    //Sets the mark on a tile, indexed by row * COLUMNS + column.
+    private void writeTile(int cell, int mark) {
+        if (finalBoard != null) {
+            finalBoard[cell] = (byte) mark;
+        } else {
+            slab.put(boardSlot, cell, (byte) mark);
+        }
+    }
+
+    //Returns a copy of the board, one byte per tile, that the caller can keep.
+    private byte[] copyBoard() {
+        if (finalBoard != null) {
+            return finalBoard.clone();
+        }
+        byte[] board = new byte[ROWS * COLUMNS];
+        slab.read(boardSlot, board);
+        return board;
+    }
+
+    /*Returns the board, one byte per tile, for encoding it to send to the players. An ended game's own board is
+     *returned as it is, and otherwise the board is read into this thread's buffer, so nothing is allocated. Only
+     *valid until this thread next calls it, and must not be changed.*/
+    private byte[] readBoard() {
+        if (finalBoard != null) {
+            return finalBoard;
+        }
+        byte[] board = boardBuffer.get();
+        slab.read(boardSlot, board);
+        return board;
+    }
+
+    //Returns a copy of the board, one byte per tile, indexed by row * COLUMNS + column. Used by bots to choose a move.
+    public synchronized byte[] getBoard() {
+        return copyBoard();
+    }
+
+    //Rebuilds the tile counts and the empty tiles from the board. Only needed when the whole board is swapped out.
+    private void countTiles() {
+        tileCounts = new int[PlayerMark.values().length];
+        freeCells.clear();
+        for (int cell = 0; cell < ROWS * COLUMNS; cell++) {
+            tileCounts[readTile(cell)]++;
+            if (readTile(cell) == PlayerMark.NONE.ordinal()) {
+                freeCells.add(cell);
+            }
+        }
+    }
+
+    /*Places a player's first tile on a random empty tile. The tile is picked straight from the empty tiles, so this
+     *takes the same time however full the board is. Returns false if the board is full.*/
+    public synchronized boolean placeInitialTile(int playerMark) {
+        int cell = freeCells.random(ThreadLocalRandom.current());
+        if (cell < 0) {
+            return false;
+        }
+        return makeMove(InfluenceCard.NONE, cell / COLUMNS, cell % COLUMNS, playerMark);
+    }
+
+    /*Records that a player has sent a command, so the game isn't treated as idle. Returns false if the game has been
+     *written to disk, in which case the command can't be handled and the player must reconnect to the copy on disk.*/
+    public synchronized boolean touch() {
+        if (hibernated) {
+            return false;
+        }
+        lastActive = System.currentTimeMillis();
+        return true;
+    }
+
+    //Returns the time, in milliseconds, a player last sent a command.
+    public synchronized long getLastActive() {
+        return lastActive;
+    }
+
+    //Checks if the game has been written to disk and dropped from memory.
+    public synchronized boolean isHibernated() {
+        return hibernated;
+    }
+
+    /*Checks if the game can be written to disk. Only games that have started and not yet finished are written, and
+     *never part way through a move.*/
+    public synchronized boolean canHibernate() {
+        return playerMarkTurn != PlayerMark.NONE && !finished && !hibernated && !moveInProgress;
+    }
+
+    /*Writes the game and its players in a compact form that readFrom() can turn back into a game:
+     *MAGIC, player count, each player's token, table size, the board's topology and dimensions, turn, blocked flags,
+     *hadFirst flags, latest event number, one byte per tile, each player's own state (see GameService.writeTo), then
+     *the move count and the moves. The tokens come first so the files can be indexed by token without reading the
+     *rest. Recent events aren't kept, so a reconnecting player who missed any is sent the whole board.*/
+    public synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(HIBERNATE_MAGIC);
+        out.writeByte(players.size());
+        for (Player player : players) {
+            out.writeUTF(player.getToken());
+        }
+        out.writeByte(tableSize);
+        out.writeByte(TOPOLOGY.getKind().ordinal());
+        out.writeShort(ROWS);
+        out.writeShort(COLUMNS);
+        out.writeByte(playerMarkTurn.ordinal());
+        out.writeInt(blocked);
+        out.writeInt(hadFirst);
+        out.writeLong(events.getLatest());
+        for (int cell = 0; cell < ROWS * COLUMNS; cell++) {
+            out.writeByte(readTile(cell));
+        }
+        for (Player player : players) {
+            player.writeTo(out);
+        }
+        out.writeShort(moveCount);
+        out.write(moves, 0, moveCount * MOVE_BYTES);
+    }
+
+    //Reads the session tokens from the start of a game written by writeTo().
+    public static String[] readTokens(DataInputStream in) throws IOException {
+        if (in.readInt() != HIBERNATE_MAGIC) {
+            throw new IOException("Not a hibernated game.");
+        }
+        String[] tokens = new String[in.readByte()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = in.readUTF();
+        }
+        return tokens;
+    }
+
+    /*Reads back a game written by writeTo(). Its players are waiting for their clients to reconnect, and each one is
+     *started when they do. The game carries on from where it was, counted as active from now.*/
+    public static Game readFrom(DataInputStream in) throws IOException {
+        String[] tokens = readTokens(in);
+        int tableSize = in.readByte();
+        //The tiles are only numbered the same way on a board of the same shape.
+        if (in.readByte() != TOPOLOGY.getKind().ordinal() || in.readShort() != ROWS || in.readShort() != COLUMNS) {
+            throw new IOException("The game was written for a different board.");
+        }
+        Game game = new Game(tableSize);
+        game.readyCount = game.tableSize;
+        game.playerMarkTurn = PlayerMark.values()[in.readByte()];
+        game.blocked = in.readInt();
+        game.hadFirst = in.readInt();
+        game.events.skipTo(in.readLong());
+        for (int cell = 0; cell < ROWS * COLUMNS; cell++) {
+            game.writeTile(cell, in.readByte());
+        }
+        game.countTiles();
+        for (String token : tokens) {
+            if (BotPlayer.isBot(token)) {
+                game.addPlayer(new BotPlayer(game, token, in));
+            } else {
+                game.addPlayer(new GameService(game, token, in));
+            }
+        }
+        game.moveCount = in.readUnsignedShort();
+        game.moves = new byte[game.moveCount * MOVE_BYTES];
+        in.readFully(game.moves);
+        //A bot whose turn it was carries on now the game is back. Players with a client wait for it to reconnect.
+        for (Player player : game.players) {
+            if (player instanceof BotPlayer) {
+                player.informClientOfTurn(game.playerMarkTurn);
+            }
+        }
+        return game;
+    }
+
+    /*Marks the game as written to disk and gives its board slot back. Each player is then told and disconnected by
+     *the caller, outside the game lock.*/
+    public synchronized List<Player> hibernate() {
+        hibernated = true;
+        finalBoard = copyBoard();
+        slab.free(boardSlot);
+        return new ArrayList<>(players);
+    }
+
     /*Get the winner and the scores, then pass that information to the client by calling each players end method.
-     *Set finished flag to true to flag the game has ended.*/
-    public void endGame() {
+     *Set finished flag to true to flag the game has ended. Only the first call has any effect.*/
+    public synchronized void endGame() {
+        if (finished || hibernated) {
+            return;
+        }
         String scores = getScoresAndWinner();
-        for (GameService gameService : players) {
-            gameService.end(scores);
+        events.add("END " + scores);
+        Replicator.changed(this);
+        rate();
+        GameArchive.finished(toArchiveRow());
+        for (Player player : players) {
+            if (moveInProgress && player.wantsMoveResults()) {
+                continue;
+            }
+            player.end(scores);
         }
-        System.out.println("WINNER IS: " + scores);
         finished = true;
-        System.out.println("GAME OVER.");
+        //The board is still needed for players who reconnect, so it is moved onto the heap before its slot is reused.
+        finalBoard = copyBoard();
+        slab.free(boardSlot);
+        EventLog.log(LogLevel.INFO, "gameOver", "scores", scores);
     }
 
-    /*This method constructs a string of the format PlayerMark Score Score, where the player mark is the mark of the
-     *player who has the highest score and the scores are the scores of the players in order of joining.*/
-    private String getScoresAndWinner() {
-        //Get the scores of each player by counting their marked tiles.
-        int[] scores = new int[playerCount];
-        for (int[] row : gameBoard) {
-            for (int position : row) {
-                if (position != 0) {
-                    scores[position - 1]++;
-                }
+    /*Queues the result for rating if at least two players gave a name. Players without a name, or using a name already
+     *used in this game, are left out. The ratings are updated in the background, so this doesn't hold up the game.*/
+    private void rate() {
+        List<String> names = new ArrayList<>();
+        List<Integer> scores = new ArrayList<>();
+        for (Player player : players) {
+            String name = player.getPlayerName();
+            if (name != null && !names.contains(name)) {
+                names.add(name);
+                scores.add(tileCounts[player.getPlayerMark().ordinal()]);
+            }
+        }
+        RatingStore ratings = names.size() >= 2 ? RatingStore.getShared() : null;
+        if (ratings != null) {
+            int[] scoresArray = new int[scores.size()];
+            for (int i = 0; i < scoresArray.length; i++) {
+                scoresArray[i] = scores.get(i);
             }
+            ratings.submit(names.toArray(new String[0]), scoresArray);
         }
+    }
 
-        //Track the highest score value and who has that score.
-        int highestScore = 0;
-        String curWinner = "";
+    //Returns the players, final scores and moves of the game, for the archive of finished games.
+    private GameArchive.Row toArchiveRow() {
+        int seats = players.size();
+        byte[] marks = new byte[seats];
+        String[] names = new String[seats];
+        int[] scores = new int[seats];
+        byte[] cardsLeft = new byte[seats];
+        for (int i = 0; i < seats; i++) {
+            Player player = players.get(i);
+            marks[i] = (byte) player.getPlayerMark().ordinal();
+            names[i] = player.getPlayerName();
+            scores[i] = tileCounts[marks[i]];
+            cardsLeft[i] = (byte) player.getCards();
+        }
+        return new GameArchive.Row(tableSize, TOPOLOGY, getLeader(), marks, names, scores, cardsLeft,
+                Arrays.copyOf(moves, moveCount * MOVE_BYTES));
+    }
 
-        //Represents the string being constructed for output from this method.
-        String scoresString = " ";
+    /*This method constructs a string of the format PlayerMark Score Score, where the player mark is the mark of the
+     *player who has the highest score and the scores are the scores of the players in order of joining.
+     *It reads the live tile counts, so it can be used at any point in the game as well as at the end.*/
+    public synchronized String getScoresAndWinner() {
+        StringBuilder scoresString = new StringBuilder(getLeader().toString()).append(' ');
+        for (int i = 1; i <= playerCount; i++) {
+            scoresString.append(tileCounts[i]).append(' ');
+        }
+
+        return scoresString.toString();
+    }
 
-        //Check for the highest score and the corresponding player and construct the string to be returned.
-        for (int i = 0; i < scores.length; i++) {
-            scoresString += scores[i] + " ";
-            if (scores[i] >= highestScore) {
-                highestScore = scores[i];
-                curWinner = PlayerMark.values()[1 + i].toString();
+    /*Returns the mark of the player with the most tiles. Ties go to the player who joined last, as RED always has the
+     *first move. Returns NONE if there are no players.*/
+    public synchronized PlayerMark getLeader() {
+        return playerCount == 0 ? PlayerMark.NONE : PlayerMark.values()[leaderOf(tileCounts, 1, playerCount + 1)];
+    }
+
+    /*Returns the index of the highest score from index from up to, but not including, index to. Ties go to the later
+     *index. This is the one tie rule for deciding who won, used by getLeader() and by RatingStore for rated wins.*/
+    static int leaderOf(int[] scores, int from, int to) {
+        int leader = from;
+        for (int i = from + 1; i < to; i++) {
+            if (scores[i] >= scores[leader]) {
+                leader = i;
             }
         }
+        return leader;
+    }
 
-        return curWinner + scoresString;
+    //Returns the limit on how often all the players in this game together can send commands.
+    public TokenBucket getCommandLimit() {
+        return commandLimit;
     }
 
-    //Sets a player as blocked by changing their blocked value to true in the isBlocked array.
+    //Returns the number of tiles currently held by a player.
+    public synchronized int getScore(PlayerMark mark) {
+        return tileCounts[mark.ordinal()];
+    }
+
+    //Sets a player as blocked by setting their bit in the blocked flags.
     public void setBlocked(int i) {
-        isBlocked[i] = true;
+        blocked |= 1 << i;
+    }
+
+    //Checks if the player with the given mark is blocked.
+    private boolean isBlocked(int i) {
+        return (blocked & (1 << i)) != 0;
     }
 
     //Check if a player is blocked and mark them as blocked if they are.
     public void checkBlocked() {
-        for (GameService player : players) {
+        checkBlocked(false);
+    }
+
+    /*Checks every player for being blocked, timed as a BlockCheckEvent. If gameOverCheck is true, returns whether all
+     *the players are now blocked, otherwise false.*/
+    private boolean checkBlocked(boolean gameOverCheck) {
+        GameEvents.BlockCheckEvent event = new GameEvents.BlockCheckEvent();
+        event.begin();
+        int before = blocked;
+        findBlocked();
+        boolean gameOver = gameOverCheck && allBlocked();
+        event.end();
+        if (event.shouldCommit()) {
+            event.players = players.size();
+            event.newlyBlocked = Integer.bitCount(blocked & ~before);
+            event.gameOverCheck = gameOverCheck;
+            event.gameOver = gameOver;
+            event.commit();
+        }
+        return gameOver;
+    }
+
+    //Marks every player who can no longer move as blocked.
+    private void findBlocked() {
+        for (Player player : players) {
             if (player.isBlocked()) {
                 //This player is already blocked, so no need to perform further checks.
-            } else if (player.availableCards()[InfluenceCard.REPLACEMENT.ordinal()]) {
+            } else if (player.hasCard(InfluenceCard.REPLACEMENT)) {
                 //A player can never be blocked if they have a replacement card.
             } else if (boardFull()) {
                 /*If the board is full and the player doesn't have a replacement card, then neither a double nor a
                  *freedom can unblock the player so the player is are blocked.*/
-                System.out.println(player.getPlayerMark() + " is blocked");
-                isBlocked[player.getPlayerMark().ordinal()] = true;
-                player.setBlocked();
-            } else if (player.availableCards()[InfluenceCard.FREEDOM.ordinal()]) {
+                block(player);
+            } else if (player.hasCard(InfluenceCard.FREEDOM)) {
                 /*If the board is not full (implied by this point) and the player has a freedom, then the player is not
                  *blocked.*/
             } else {
                 //Check if a player has an empty space adjacent to one of their tiles.
                 PlayerMark mark = player.getPlayerMark();
 
-                //Allows the check to exit the loops as soon as an empty adjacent space is found
+                //Check each tile marked by the current player for an empty tile next to it, stopping at the first.
                 boolean hasSpace = false;
-
-                /*Check each tile for a tile marked by the current player. Then check if there is an empty tile adjacent
-                 *to it. Break out of the loops if at least one is found.*/
-                for (int row = 0; row < Game.ROWS; row++) {
-                    if (hasSpace) {
-                        break;
-                    }
-                    for (int column = 0; column < Game.COLUMNS; column++) {
-                        if (hasSpace) {
-                            break;
-                        }
-                        if (gameBoard[row][column] == mark.ordinal()) {
-                            //Check adjacent tiles for an empty one.
-                            for (int i = -1; i < 2; i++) {
-                                if (hasSpace) {
-                                    break;
-                                }
-                                for (int j = -1; j < 2; j++) {
-                                    try {
-                                        if (gameBoard[row + i][column + j] == PlayerMark.NONE.ordinal()) {
-                                            hasSpace = true;
-                                            break;
-                                        }
-                                    } catch (ArrayIndexOutOfBoundsException e) {
-                                        /*Catching an array index exception allows for the general method to be applied
-                                         *regardless of the tile position, otherwise, checks for corner and edge tiles
-                                         *would be needed.*/
-                                    }
-                                }
-                            }
-                        }
+                for (int cell = 0; cell < ROWS * COLUMNS && !hasSpace; cell++) {
+                    if (readTile(cell) == mark.ordinal()) {
+                        hasSpace = hasAdjacent(cell, PlayerMark.NONE.ordinal());
                     }
                 }
 
                 //If hasSpace is false at this point, then the player is blocked.
                 if (!hasSpace) {
-                    System.out.println(player.getPlayerMark() + " is blocked");
-                    isBlocked[player.getPlayerMark().ordinal()] = true;
-                    player.setBlocked();
+                    block(player);
                 }
             }
         }
     }
 
+    //Marks a player as blocked, noting them as blocked by the move in progress if there is one.
+    private void block(Player player) {
+        EventLog.log(LogLevel.INFO, "blocked", "mark", player.getPlayerMark());
+        setBlocked(player.getPlayerMark().ordinal());
+        player.setBlocked();
+        //Players are only ever found to be blocked by a move, so the block is counted against the latest one.
+        if (moveCount > 0) {
+            moves[(moveCount - 1) * MOVE_BYTES + 5] |= 1 << player.getPlayerMark().ordinal();
+        }
+        if (moveInProgress) {
+            moveBlocked.append(' ').append(player.getPlayerMark());
+        }
+    }
+
     //Checks if all the players currently in the game are blocked.
     private boolean allBlocked() {
         //Start at one because index 0 is for the NONE player who is always blocked.
         for (int i = 1; i <= playerCount; i++) {
-            if (!isBlocked[i]) {
+            if (!isBlocked(i)) {
                 //If at least one player isn't blocked, then they are not all blocked.
                 return false;
             }
@@ -270,25 +700,12 @@ public class Game {
 
     //Checks if there are any empty tiles left on the board.
     public boolean boardFull() {
-        for (int[] row : gameBoard) {
-            for (int tile : row) {
-                if (tile == PlayerMark.NONE.ordinal()) {
-                    return false;
-                }
-            }
-        }
-
-        return true;
+        return tileCounts[PlayerMark.NONE.ordinal()] == 0;
     }
 
     //Checks if the game is over by checking if all players are blocked.
     public boolean isGameOver() {
-        checkBlocked();
-        if (allBlocked()) {
-            return true;
-        } else {
-            return false;
-        }
+        return checkBlocked(true);
     }
 
     //Checks if the game has been flagged as finished.
@@ -296,19 +713,70 @@ public class Game {
         return finished;
     }
 
-    //Flattens the game board array into a single string to be sent to the players to update their clients.
-    public void sendBoard() {
-        //Constructs flattened array as a string.
-        String board = "";
-        for (int[] row : gameBoard) {
-            for (int pos : row) {
-                board += pos + " ";
+    /*Encodes the game board in the encoding each player asked for and sends it to them to update their clients.
+     *Each encoding is only built once per update, however many players use it.*/
+    public synchronized void sendBoard() {
+        GameEvents.BroadcastEvent event = new GameEvents.BroadcastEvent();
+        event.begin();
+        int changed = changedTiles.cardinality();
+        int recipients = 0;
+        int encodings = 0;
+        long bytes = 0;
+
+        //Record the tiles that changed, so a player who reconnects can be sent just those.
+        if (!changedTiles.isEmpty()) {
+            StringBuilder cells = new StringBuilder("CELLS");
+            for (int tile = changedTiles.nextSetBit(0); tile >= 0; tile = changedTiles.nextSetBit(tile + 1)) {
+                cells.append(' ').append(tile / COLUMNS).append(' ').append(tile % COLUMNS)
+                        .append(' ').append(readTile(tile));
+            }
+            changedTiles.clear();
+            events.add(cells.toString());
+            Replicator.changed(this);
+            if (moveInProgress) {
+                moveCells = cells.substring("CELLS".length());
             }
         }
 
+        String[] frames = new String[BoardEncoding.values().length];
+        byte[] board = null;
+
         //Sends the game board to all players.
-        for (GameService gameService : players) {
-            gameService.updateBoard(board);
+        for (Player player : players) {
+            if (moveInProgress && player.wantsMoveResults() || player.getBoardEncoding() == null) {
+                continue;
+            }
+            int encoding = player.getBoardEncoding().ordinal();
+            if (frames[encoding] == null) {
+                if (board == null) {
+                    board = readBoard();
+                }
+                frames[encoding] = BoardCodec.encode(board, COLUMNS, player.getBoardEncoding());
+                encodings++;
+            }
+            player.updateBoard(frames[encoding]);
+            recipients++;
+            bytes += frames[encoding].length();
+        }
+
+        //Only players who asked for scores receive them, and the string is only built if someone did.
+        String scores = null;
+        for (Player player : players) {
+            if (player.wantsScores() && !(moveInProgress && player.wantsMoveResults())) {
+                if (scores == null) {
+                    scores = getScoresAndWinner();
+                }
+                player.updateScores(scores);
+            }
+        }
+        //The counts are only filled in if the broadcast is going to be recorded.
+        event.end();
+        if (event.shouldCommit()) {
+            event.changedTiles = changed;
+            event.recipients = recipients;
+            event.encodings = encodings;
+            event.bytes = bytes;
+            event.commit();
         }
     }
 
@@ -319,6 +787,9 @@ public class Game {
 
     //Determines who the next player should be by skipping the next player if that player is blocked.
     public void nextPlayer() {
+        GameEvents.TurnEvent event = new GameEvents.TurnEvent();
+        event.begin();
+
         //The current player who just made a move.
         PlayerMark player = playerMarkTurn;
 
@@ -326,43 +797,142 @@ public class Game {
         PlayerMark nextPlayer = player.ordinal() == playerCount ? PlayerMark.values()[1] : PlayerMark.values()[playerMarkTurn.ordinal() + 1];
 
         //Check the next player isn't blocked and return if they are not. Otherwise, move on another player.
+        int skipped = 0;
         while (nextPlayer.ordinal() != player.ordinal()) {
-            if (isBlocked[nextPlayer.ordinal()]) {
+            if (isBlocked(nextPlayer.ordinal())) {
                 nextPlayer = nextPlayer.ordinal() == playerCount ? PlayerMark.values()[1] : PlayerMark.values()[nextPlayer.ordinal() + 1];
+                skipped++;
             } else {
                 playerMarkTurn = nextPlayer;
                 informPlayersOfTurn();
+                commitTurn(event, player, skipped, false);
                 return;
             }
         }
 
         /*If this point is reached then all players next in line are blocked.
          *Now check if the current player is blocked.*/
-        if (isBlocked[player.ordinal()]) {
+        if (isBlocked(player.ordinal())) {
             //All players are blocked. Call endGame().
             endGame();
+            commitTurn(event, player, skipped, true);
+            return;
         }
 
         /*if this point is reached, then only the player who lasted moved is not blocked.
          *So keep the current player as it is so they can still play until they are blocked.
          *This is needed for the bots to continue playing to the end*/
         informPlayersOfTurn();
+        commitTurn(event, player, skipped, false);
+    }
+
+    //Records the turn moving on from a player, if TurnEvents are being recorded.
+    private void commitTurn(GameEvents.TurnEvent event, PlayerMark from, int skipped, boolean ended) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.from = from.toString();
+            event.to = playerMarkTurn.toString();
+            event.skipped = skipped;
+            event.ended = ended;
+            event.commit();
+        }
+    }
+
+    /*Starts collecting the effects of a move for players who asked for MOVE_RESULT. playMove() holds the game lock
+     *from here until finishMove(), so the move is applied as a whole, and calls finishMove() in a finally block.*/
+    private void beginMove() {
+        moveInProgress = true;
+        moveCells = "";
+        moveBlocked = new StringBuilder();
+    }
+
+    /*Sends one MOVE_RESULT message to each player who asked for them, holding everything the move changed: the tiles,
+     *the next turn, the card used, the players it blocked and, if it ended the game, the final scores.
+     *Format: MOVE_RESULT mover card turn CELLS x y M ... BLOCKED M ... [SCORE Leader Score ...] [END Winner Score ...]*/
+    private void finishMove(Player mover, String card) {
+        //Cleared first, so a failure below can't leave the game looking mid-move, which canHibernate() refuses.
+        moveInProgress = false;
+        String result = "MOVE_RESULT " + mover.getPlayerMark() + " " + card + " " + playerMarkTurn + " CELLS" + moveCells + " BLOCKED" + moveBlocked;
+        String end = finished ? " END " + getScoresAndWinner() : "";
+        String scores = null;
+        for (Player player : players) {
+            if (player.wantsMoveResults()) {
+                if (player.wantsScores()) {
+                    if (scores == null) {
+                        scores = " SCORE " + getScoresAndWinner();
+                    }
+                    player.sendMoveResult(result + scores + end, player == mover);
+                } else {
+                    player.sendMoveResult(result + end, player == mover);
+                }
+            }
+        }
+    }
+
+    //Returns the sequence number of the latest game event. Every message sent to a client is numbered with this.
+    public synchronized long getSeq() {
+        return events.getLatest();
+    }
+
+    /*Sends a reconnected player what they missed since the event numbered lastSeen. If some of those events are no
+     *longer held, they are sent the whole board and the current turn instead.*/
+    public synchronized void catchUp(Player player, long lastSeen) {
+        String[] missed = events.since(lastSeen);
+        if (missed == null) {
+            player.updateBoard(BoardCodec.encode(readBoard(), COLUMNS, player.getBoardEncoding()));
+            player.informClientOfTurn(playerMarkTurn);
+            if (finished) {
+                player.end(getScoresAndWinner());
+            }
+        } else {
+            for (int i = 0; i < missed.length; i++) {
+                player.replay(lastSeen + 1 + i, missed[i]);
+            }
+        }
+        if (player.wantsScores()) {
+            player.updateScores(getScoresAndWinner());
+        }
+    }
+
+    /*Called when a disconnected player doesn't come back in time. The player is treated as blocked so the game can
+     *carry on without them, and the game ends if that leaves everyone blocked.*/
+    public synchronized void abandon(Player player) {
+        if (finished || hibernated) {
+            return;
+        }
+        EventLog.log(LogLevel.INFO, "left", "mark", player.getPlayerMark());
+        GameEvents.connection("left", player.getPlayerMark(), null);
+        setBlocked(player.getPlayerMark().ordinal());
+        player.setBlocked();
+        if (playerMarkTurn == PlayerMark.NONE) {
+            //The game hasn't started, so the player leaving counts as them being ready, and may start it.
+            playerReady(player);
+        } else if (playerMarkTurn == player.getPlayerMark()) {
+            nextPlayer();
+        } else if (playerMarkTurn != PlayerMark.NONE && allBlocked()) {
+            endGame();
+        }
     }
 
     /*Methods to allow testing of the Game object
      *Allows the game board to be set to a specific state*/
     public void setGameBoard(int[][] board){
-        gameBoard = board;
+        for (int x = 0; x < ROWS; x++) {
+            for (int y = 0; y < COLUMNS; y++) {
+                writeTile((x * COLUMNS) + y, board[x][y]);
+            }
+        }
+        countTiles();
     }
 
     //Places a tile with a mark without checking if its valid
     public void setTile(int x, int y, int playerMark){
-        gameBoard[x][y] = playerMark;
+        placeMark(x, y, playerMark);
     }
 
     //Needed to ensure normal game rules apply (Don't get the first turn exemption)
     public void setHadFirstTrue(){
-        hadFirst = new boolean[]{true, true, true, true, true, true};
+        hadFirst = ~0;
     }
 
     //Allows public access to private method checkAdjacent()
@@ -0,0 +1,387 @@
+package SocketBasedGame;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*This class appends every finished game to an archive file for offline analysis, so it can be studied without
+ *touching the servers or reading their logs. Games are queued as they finish and written by a background thread in
+ *row groups of up to ServerConfig.ARCHIVE_ROW_GROUP games. Within a group each column is stored on its own, so a
+ *reader only reads the columns it needs and skips the rest. Marks, cards and names are dictionary encoded and
+ *bit-packed, so a mark takes 3 bits and a card 2. See ArchiveReader for reading the file back.
+ *File format: MAGIC, then row groups. Row group: GROUP_MAGIC, games, seats, moves, column count, then each column:
+ *name, encoding, value count, length in bytes, data. PLAIN data is one unsigned byte per value. SHORT data is two
+ *bytes per value, unsigned and high byte first. DICTIONARY data is the entry count, each entry, the bits per value,
+ *then the values packed lowest bit first.
+ *Columns with one value per game: table, topology, rows (SHORT), columns (SHORT), seatCount, moveCount (SHORT),
+ *winner. Servers with different boards can add to the same archive, so each game records the board it was played on.
+ *Columns with one value per player, in the order they joined: mark, name ("" if they had none), score (SHORT),
+ *cardsLeft.
+ *Columns with one value per move, in the order they were made, including each player's first tile: mover, card,
+ *cell (SHORT, row * columns + column of the game's board), taken (the mark the tile held before) and blocked (the
+ *players it blocked, one bit per mark ordinal).
+ *Each row group is built in memory and appended in one write. If the write fails part way, the file is cut back to
+ *where the group started, and a group left part written by a crash is cut off when the archive is next opened, so a
+ *reader never finds a broken group followed by good ones.*/
+public class GameArchive implements Runnable {
+
+    //Identifies an archive file, and the start of each row group in it.
+    static final int MAGIC = 0x47415243;
+    static final int GROUP_MAGIC = 0x52475250;
+    //The ways a column can be stored.
+    static final int PLAIN = 1;
+    static final int DICTIONARY = 2;
+    static final int SHORT = 3;
+    //How often, in milliseconds, the writer checks whether a part-filled row group is due to be written.
+    private static final int POLL_MILLIS = 100;
+
+    //The archive used by the server, or null if finished games aren't being archived.
+    private static volatile GameArchive shared;
+
+    //The archive file, opened for appending.
+    private final FileOutputStream file;
+    //The row group being written, built up in memory so it can be appended to the file in one write.
+    private final ByteArrayOutputStream buffer;
+    private final DataOutputStream out;
+    //The finished games waiting to be written.
+    private final BlockingQueue<Row> pending;
+    //The number of games ever queued, and the number the writer has finished with.
+    private final AtomicLong submitted;
+    private volatile long written;
+    //A boolean to flag that a part-filled row group should be written now rather than waiting for more games.
+    private volatile boolean flushWanted;
+
+    //The players, final scores and moves of one finished game.
+    static class Row {
+        //The number of players the game was formed for, the board it was played on and the player who won.
+        final int table;
+        final BoardTopology board;
+        final PlayerMark winner;
+        //Each player's mark ordinal, name, score and remaining cards, in the order they joined.
+        final byte[] marks;
+        final String[] names;
+        final int[] scores;
+        final byte[] cardsLeft;
+        //The moves, Game.MOVE_BYTES each: mover, card ordinal, cell as two bytes, taken and blocked.
+        final byte[] moves;
+
+        Row(int table, BoardTopology board, PlayerMark winner, byte[] marks, String[] names, int[] scores,
+            byte[] cardsLeft, byte[] moves) {
+            this.table = table;
+            this.board = board;
+            this.winner = winner;
+            this.marks = marks;
+            this.names = names;
+            this.scores = scores;
+            this.cardsLeft = cardsLeft;
+            this.moves = moves;
+        }
+    }
+
+    /*GameArchive constructor to open or create the archive file. New games are added after any already in it, once
+     *any row group left part written is cut off.*/
+    public GameArchive(File path) throws IOException {
+        long complete = path.length() > 0 ? completeLength(path) : 0;
+        file = new FileOutputStream(path, true);
+        buffer = new ByteArrayOutputStream();
+        out = new DataOutputStream(buffer);
+        if (complete < file.getChannel().size()) {
+            EventLog.log(LogLevel.WARN, "archiveTruncated", "file", path, "bytes", file.getChannel().size() - complete);
+            file.getChannel().truncate(complete);
+        }
+        if (complete == 0) {
+            out.writeInt(MAGIC);
+            append();
+        }
+        pending = new LinkedBlockingQueue<>();
+        submitted = new AtomicLong();
+        written = 0;
+        flushWanted = false;
+    }
+
+    //Makes this the archive finished games are added to.
+    public static void setShared(GameArchive archive) {
+        shared = archive;
+    }
+
+    //Returns the archive finished games are added to, or null if there isn't one.
+    public static GameArchive getShared() {
+        return shared;
+    }
+
+    //Queues a finished game to be archived, if there is an archive. This never blocks, so it is safe under the game lock.
+    public static void finished(Row row) {
+        GameArchive archive = shared;
+        if (archive != null) {
+            archive.submitted.incrementAndGet();
+            archive.pending.offer(row);
+        }
+    }
+
+    /*Waits until every game queued so far has been written to the file, or the time runs out. Returns false if the
+     *time ran out first. Used when the server stops, so the last part-filled row group isn't lost.*/
+    public boolean awaitWritten(long millis) {
+        flushWanted = true;
+        long deadline = System.currentTimeMillis() + millis;
+        while (written < submitted.get()) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*Collects queued games into row groups and writes each one once it is full. A group that has waited for
+     *ARCHIVE_FLUSH_MILLIS without filling is written anyway, so a quiet server's games still reach the file.*/
+    @Override
+    public void run() {
+        List<Row> group = new ArrayList<>();
+        long opened = 0;
+        while (true) {
+            try {
+                Row row = pending.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (row != null) {
+                    if (group.isEmpty()) {
+                        opened = System.currentTimeMillis();
+                    }
+                    group.add(row);
+                    pending.drainTo(group, ServerConfig.ARCHIVE_ROW_GROUP - group.size());
+                }
+                boolean due = flushWanted && pending.isEmpty()
+                        || System.currentTimeMillis() - opened >= ServerConfig.ARCHIVE_FLUSH_MILLIS;
+                if (group.size() >= ServerConfig.ARCHIVE_ROW_GROUP || !group.isEmpty() && due) {
+                    write(group);
+                    written += group.size();
+                    group.clear();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                //The group couldn't be written. It is dropped rather than held, so memory doesn't grow.
+                EventLog.log(LogLevel.ERROR, "archiveFailed", "games", group.size(), "error", e);
+                written += group.size();
+                group.clear();
+            }
+        }
+    }
+
+    /*Returns the length of an archive up to the end of its last complete row group. Throws an IOException if the file
+     *isn't an archive.*/
+    private static long completeLength(File path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + " is not a game archive.");
+            }
+            long complete = 4;
+            try {
+                while (in.readInt() == GROUP_MAGIC) {
+                    in.readInt();
+                    in.readInt();
+                    in.readInt();
+                    int columns = in.readUnsignedByte();
+                    long length = 17;
+                    for (int i = 0; i < columns; i++) {
+                        int name = in.readUnsignedShort();
+                        skip(in, name + 1 + 4);
+                        int data = in.readInt();
+                        skip(in, data);
+                        length += 2 + name + 1 + 4 + 4 + data;
+                    }
+                    complete += length;
+                }
+            } catch (EOFException e) {
+                //The file ends part way through a group.
+            }
+            return complete;
+        }
+    }
+
+    //Skips over the given number of bytes, throwing an EOFException if the file ends first.
+    private static void skip(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            length -= skipped;
+        }
+    }
+
+    /*Appends what has been built up in the buffer to the file in one write. If the write fails, the file is cut back
+     *to where it was, so it never holds part of a group.*/
+    private void append() throws IOException {
+        long start = file.getChannel().size();
+        try {
+            buffer.writeTo(file);
+        } catch (IOException e) {
+            file.getChannel().truncate(start);
+            throw e;
+        } finally {
+            buffer.reset();
+        }
+    }
+
+    //Writes one row group holding the given games.
+    void write(List<Row> group) throws IOException {
+        //Anything left from a group that failed part way through being built is thrown away.
+        buffer.reset();
+        int seats = 0;
+        int moves = 0;
+        for (Row row : group) {
+            seats += row.marks.length;
+            moves += row.moves.length / Game.MOVE_BYTES;
+        }
+
+        byte[] table = new byte[group.size()];
+        String[] topology = new String[group.size()];
+        int[] rows = new int[group.size()];
+        int[] columns = new int[group.size()];
+        byte[] seatCount = new byte[group.size()];
+        //A game can have more moves than its board has tiles, and a player can hold more than 255, so these are SHORT.
+        int[] moveCount = new int[group.size()];
+        String[] winner = new String[group.size()];
+        String[] mark = new String[seats];
+        String[] name = new String[seats];
+        int[] score = new int[seats];
+        byte[] cardsLeft = new byte[seats];
+        String[] mover = new String[moves];
+        String[] card = new String[moves];
+        int[] cell = new int[moves];
+        String[] taken = new String[moves];
+        byte[] blocked = new byte[moves];
+
+        PlayerMark[] marks = PlayerMark.values();
+        InfluenceCard[] cards = InfluenceCard.values();
+        int seat = 0;
+        int move = 0;
+        for (int i = 0; i < group.size(); i++) {
+            Row row = group.get(i);
+            table[i] = (byte) row.table;
+            topology[i] = row.board.getKind().toString();
+            rows[i] = row.board.getRows();
+            columns[i] = row.board.getColumns();
+            seatCount[i] = (byte) row.marks.length;
+            moveCount[i] = row.moves.length / Game.MOVE_BYTES;
+            winner[i] = row.winner.toString();
+            for (int j = 0; j < row.marks.length; j++, seat++) {
+                mark[seat] = marks[row.marks[j]].toString();
+                name[seat] = row.names[j] == null ? "" : row.names[j];
+                score[seat] = row.scores[j];
+                cardsLeft[seat] = row.cardsLeft[j];
+            }
+            for (int offset = 0; offset < row.moves.length; offset += Game.MOVE_BYTES, move++) {
+                mover[move] = marks[row.moves[offset]].toString();
+                card[move] = cards[row.moves[offset + 1]].toString();
+                cell[move] = Game.moveCell(row.moves, offset);
+                taken[move] = marks[row.moves[offset + 4]].toString();
+                blocked[move] = row.moves[offset + 5];
+            }
+        }
+
+        out.writeInt(GROUP_MAGIC);
+        out.writeInt(group.size());
+        out.writeInt(seats);
+        out.writeInt(moves);
+        out.writeByte(16);
+        writePlain("table", table);
+        writeDictionary("topology", topology);
+        writeShort("rows", rows);
+        writeShort("columns", columns);
+        writePlain("seatCount", seatCount);
+        writeShort("moveCount", moveCount);
+        writeDictionary("winner", winner);
+        writeDictionary("mark", mark);
+        writeDictionary("name", name);
+        writeShort("score", score);
+        writePlain("cardsLeft", cardsLeft);
+        writeDictionary("mover", mover);
+        writeDictionary("card", card);
+        writeShort("cell", cell);
+        writeDictionary("taken", taken);
+        writePlain("blocked", blocked);
+        append();
+    }
+
+    //Writes a column of small numbers, one byte each.
+    private void writePlain(String name, byte[] values) throws IOException {
+        out.writeUTF(name);
+        out.writeByte(PLAIN);
+        out.writeInt(values.length);
+        out.writeInt(values.length);
+        out.write(values);
+    }
+
+    //Writes a column of numbers up to 65535, two bytes each.
+    private void writeShort(String name, int[] values) throws IOException {
+        out.writeUTF(name);
+        out.writeByte(SHORT);
+        out.writeInt(values.length);
+        out.writeInt(values.length * 2);
+        for (int value : values) {
+            out.writeShort(value);
+        }
+    }
+
+    /*Writes a column of strings as a dictionary of the different values, in the order they first appear, followed by
+     *each value's position in the dictionary packed into as few bits as the dictionary needs.*/
+    private void writeDictionary(String name, String[] values) throws IOException {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        int[] codes = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            Integer code = dictionary.get(values[i]);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.put(values[i], code);
+            }
+            codes[i] = code;
+        }
+        int width = 32 - Integer.numberOfLeadingZeros(Math.max(dictionary.size() - 1, 0));
+        byte[] packed = new byte[(int) (((long) values.length * width + 7) / 8)];
+        long bit = 0;
+        for (int code : codes) {
+            for (int b = 0; b < width; b++, bit++) {
+                if ((code & (1 << b)) != 0) {
+                    packed[(int) (bit >>> 3)] |= 1 << (bit & 7);
+                }
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(dictionary.size());
+        for (String entry : dictionary.keySet()) {
+            data.writeUTF(entry);
+        }
+        data.writeByte(width);
+        data.write(packed);
+        out.writeUTF(name);
+        out.writeByte(DICTIONARY);
+        out.writeInt(values.length);
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    //Closes the archive file. Any games still queued are not written.
+    public void close() throws IOException {
+        file.close();
+    }
+}
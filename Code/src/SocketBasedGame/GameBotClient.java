@@ -2,11 +2,7 @@ package SocketBasedGame;
 
 import javax.swing.*;
 import java.awt.*;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
 import java.util.Random;
 
 /*This class extends JFrame to allow it to be used to present a GUI to the client to play the game.
@@ -18,14 +14,8 @@ public class GameBotClient extends JFrame {
     private static final String SERVER = "localhost";
     //The port the client will connect to the server through.
     private static final int PORT = 8080;
-    //Color array to colour the GUI in the colours corresponding to the player marks.
-    private static Color[] colours = new Color[]{Color.WHITE, Color.RED, Color.GREEN, Color.BLUE, Color.BLACK, Color.PINK};
-    //This is the socket used to communicate with the connected server.
-    private Socket connection;
-    //This is used to receive responses from the server.
-    private BufferedReader input;
-    //This is used to send commands to the server.
-    private PrintWriter output;
+    //This is the connection to the server. It is used to receive responses and send commands, and reconnects if lost.
+    private ClientConnection server;
     //Represents if a card is present. [DOUBLE, REPLACEMENT, FREEDOM].
     private boolean[] cards;
     //Holds the currently selected influence card.
@@ -34,12 +24,18 @@ public class GameBotClient extends JFrame {
     private PlayerMark playerMark;
     //This is the player mark of the player whose turn it currently is.
     private PlayerMark playerTurn;
+    //The number of moves sent to the server that haven't been answered yet.
+    private int pendingMoves;
+    //The second half of a double move, sent once the server has accepted the first half, or null if there isn't one.
+    private String secondHalf;
 
     //Java GUI related data members:
-    //Represents the board as Tile objects so they can be made clickable and be repainted.
-    private Tile[][] board = new Tile[Game.ROWS][Game.COLUMNS];
+    //Draws the board. Only the tiles that change are repainted.
+    private final BoardView boardView = new BoardView(Game.ROWS, Game.COLUMNS);
     //This is the board represented as ints which indicate the mark at that position. Used by the bot.
     private int[][] gameBoard = new int[Game.ROWS][Game.COLUMNS];
+    //The shape of the board and which tiles touch, until the server sends its own.
+    private BoardTopology topology = Game.TOPOLOGY;
     //Radio buttons for selecting the influence cards.
     private final JLabel none;
     private final JLabel dCard;
@@ -53,9 +49,7 @@ public class GameBotClient extends JFrame {
     public GameBotClient() {
         try {
             System.out.println("Getting connection");
-            connection = new Socket(SERVER, PORT);
-            input = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            output = new PrintWriter(connection.getOutputStream(), true);
+            server = new ClientConnection(SERVER, PORT);
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this, "Connection Failed. You Are Not Connected.", "Connection Failure", JOptionPane.ERROR_MESSAGE);
             e.printStackTrace();
@@ -63,6 +57,7 @@ public class GameBotClient extends JFrame {
         }
 
         cards = new boolean[]{true, true, true};
+        secondHalf = null;
         selectedCard = InfluenceCard.NONE;
 
         //Setup the basic GUI frame.
@@ -111,36 +106,36 @@ public class GameBotClient extends JFrame {
         toolbar.add(t2);
         getContentPane().add(toolbar, BorderLayout.SOUTH);
 
-        //Create a panel for the Tile objects to be placed in.
-        JPanel boardPanel = new JPanel();
-        boardPanel.setPreferredSize(new Dimension(500, 300));
-        //Gives the appearance of black lines between the tiles.
-        boardPanel.setBackground(Color.BLACK);
-        boardPanel.setLayout(new GridLayout(Game.ROWS, Game.COLUMNS, 2, 2));
-
-        /*For each point on the game board, create a Tile object for it and add it to the boardPanel.
-         *In the bot implementation, the tiles do not need a mouse listener.*/
-        for (int i = 0; i < Game.ROWS; i++) {
-            for (int j = 0; j < Game.COLUMNS; j++) {
-                board[i][j] = new Tile();
-                boardPanel.add(board[i][j]);
-            }
-        }
-
-        //Add the board panel to the centre of the frame.
-        getContentPane().add(boardPanel, BorderLayout.CENTER);
+        //Add the board to the centre of the frame. In the bot implementation, the board does not need a mouse listener.
+        getContentPane().add(boardView, BorderLayout.CENTER);
         //Set the width and height to fit the contents of the frame.
         pack();
     }
 
     //Initialises the client object to start taking commands and allow the player to player the game from the GUI.
     private void play() {
-        String[] response;
+        String line;
+        //Each response is split into the same Command object.
+        Command response = new Command();
         String action;
         try {
+            //Ask for the smallest board encoding and a single message per move.
+            server.send("ENCODING RLE");
+            server.send("RESULTS");
             while (true) {
-                response = input.readLine().trim().split(" ");
-                System.out.println("Server Response: " + buildResponse(response));
+                line = server.readLine();
+                if (BoardCodec.isBoard(line)) {
+                    //Full boards are decoded straight into the board array without splitting the message.
+                    BoardCodec.decode(line, gameBoard);
+                    updateTiles();
+                    continue;
+                }
+                response.parse(line);
+                System.out.println("Server Response: " + line);
+                //A reply with a request ID answers one of the moves the bot sent.
+                if (server.getReplyTo() != 0 && pendingMoves > 0) {
+                    pendingMoves--;
+                }
                 action = parseResponse(response);
                 //If parseResponse returns PLAY, then it is the bots turn.
                 if (action.equals("PLAY")) {
@@ -153,7 +148,7 @@ public class GameBotClient extends JFrame {
             e.printStackTrace();
         } finally {
             try {
-                connection.close();
+                server.close();
             } catch (IOException e) {
                 //Shouldn't be reached.
                 e.printStackTrace();
@@ -162,21 +157,42 @@ public class GameBotClient extends JFrame {
     }
 
     //This method coordinates the moves made by the bot when it is the bots turn.
-    private void botPlay(){
+    private void botPlay() throws IOException {
         System.out.println("Entered botPlay");
         Random r = new Random();
-        int x = r.nextInt(Game.ROWS);
-        int y = r.nextInt(Game.COLUMNS);
+        int x = r.nextInt(topology.getRows());
+        int y = r.nextInt(topology.getColumns());
 
         if(mustUseReplacement()){
-            output.println("MOVE REPLACEMENT " + x + " " + y);
-        } else if(mustUseFreedom() || countEmptyTiles() < ((Game.ROWS * Game.COLUMNS)/2) && cards[InfluenceCard.FREEDOM.ordinal()]) {
-            output.println("MOVE FREEDOM " + x + " " + y);
-        } else if(countEmptyTiles() > 2 && r.nextInt(20) < 5 && cards[InfluenceCard.DOUBLE.ordinal()]) {
-            output.println("MOVE DOUBLE " + x + " " + y);
+            sendMove("MOVE REPLACEMENT " + x + " " + y);
+        } else if(mustUseFreedom() || countEmptyTiles() < (topology.getTiles()/2) && cards[InfluenceCard.FREEDOM.ordinal()]) {
+            sendMove("MOVE FREEDOM " + x + " " + y);
+        } else if(countEmptyTiles() > 2 && r.nextInt(20) < 5 && cards[InfluenceCard.DOUBLE.ordinal()]
+                && hasNeighbours(x, y)) {
+            /*The second half of a double move is only sent once the first half is accepted, as the turn moves on if it
+             *isn't. The second tile is next to the first so it is likely to be legal.*/
+            int[] first = topology.getFirst();
+            int tile = (x * topology.getColumns()) + y;
+            int next = topology.getNeighbours()[first[tile] + r.nextInt(first[tile + 1] - first[tile])];
+            secondHalf = "MOVE NONE " + (next / topology.getColumns()) + " " + (next % topology.getColumns());
+            sendMove("MOVE DOUBLE " + x + " " + y);
         } else{
-            output.println("MOVE NONE " + x + " " + y);
+            sendMove("MOVE NONE " + x + " " + y);
+        }
+    }
+
+    //Sends a move with a request ID and counts it until it is answered.
+    private void sendMove(String move) throws IOException {
+        pendingMoves++;
+        server.sendRequest(move);
+    }
+
+    //Returns PLAY if it is the bots turn and all of its moves have been answered.
+    private String myTurnToPlay() {
+        if (pendingMoves == 0 && playerMark == playerTurn) {
+            return "PLAY";
         }
+        return "NOPLAY";
     }
 
     //Checks if the bot must use the replacement card. If the board is full or the don't have an adjacent tile.
@@ -212,10 +228,10 @@ public class GameBotClient extends JFrame {
 
     //Checks if a bot player has any free tiles adjacent to one of their own tiles.
     private boolean hasNoAdjacents(){
-        for(int x = 0; x < Game.ROWS; x++) {
-            for(int y = 0; y < Game.COLUMNS; y++) {
+        for(int x = 0; x < topology.getRows(); x++) {
+            for(int y = 0; y < topology.getColumns(); y++) {
                 if(gameBoard[x][y] == playerMark.ordinal()){
-                    if(checkFreeAdjacent(x, y)){
+                    if(topology.touches(gameBoard, (x * topology.getColumns()) + y, PlayerMark.NONE.ordinal())){
                         return false;
                     }
                 }
@@ -226,24 +242,10 @@ public class GameBotClient extends JFrame {
         return true;
     }
 
-    //Checks a tile for adjacent tiles with the same mark
-    private boolean checkFreeAdjacent(int x, int y) {
-        boolean valid = false;
-        for (int i = -1; i <= 1; i++) {
-            for (int j = -1; j <= 1; j++) {
-                try {
-                    //Attempts to check an adjacent tile.
-                    valid = gameBoard[x + i][y + j] == PlayerMark.NONE.ordinal();
-                    if (valid) {
-                        return true;
-                    }
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    /*Catching an array index exception allows for the general method to be applied regardless of the
-                     *tile position, otherwise, checks for corner and edge tiles would be needed.*/
-                }
-            }
-        }
-        return false;
+    //Checks if a tile has any tiles touching it. Only a board one tile across has tiles with none.
+    private boolean hasNeighbours(int x, int y) {
+        int tile = (x * topology.getColumns()) + y;
+        return topology.getFirst()[tile + 1] > topology.getFirst()[tile];
     }
 
     //Count the number of empty tiles remaining on the board.
@@ -261,105 +263,139 @@ public class GameBotClient extends JFrame {
     }
 
     //Takes and response and parses it to perform the appropriate actions.
-    private String parseResponse(String[] response) {
-        if (response[0].equals("LEGAL_MOVE")) {
-            System.out.println("Client Output: legal move. Update influence cards.");
-            InfluenceCard card = InfluenceCard.valueOf(response[1]);
-            String ifDouble = "";
-            //Remove the correct influence card, if any, and prevent selecting of that card.
-            if (card == InfluenceCard.DOUBLE) {
-                cards[card.ordinal()] = false;
-                dCard.setText(dCard.getText() + " - USED");
-                dCard.setEnabled(false);
-                lastCardUsed.setText("Last Card: " + card.toString());
-                try{
-                    Thread.sleep(1500);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+    private String parseResponse(Command response) throws IOException {
+        switch (response.getOpcode()) {
+            case LEGAL_MOVE:
+                System.out.println("Client Output: legal move. Update influence cards.");
+                InfluenceCard card = response.getCard(1);
+                //Remove the correct influence card, if any, and prevent selecting of that card.
+                if (card == InfluenceCard.DOUBLE) {
+                    cards[card.ordinal()] = false;
+                    dCard.setText(dCard.getText() + " - USED");
+                    dCard.setEnabled(false);
+                } else if (card == InfluenceCard.REPLACEMENT) {
+                    cards[card.ordinal()] = false;
+                    rCard.setText(rCard.getText() + " - USED");
+                    rCard.setEnabled(false);
+                } else if (card == InfluenceCard.FREEDOM) {
+                    cards[card.ordinal()] = false;
+                    fCard.setText(fCard.getText() + " - USED");
+                    fCard.setEnabled(false);
                 }
-                ifDouble = "PLAY";
-            } else if (card == InfluenceCard.REPLACEMENT) {
-                cards[card.ordinal()] = false;
-                rCard.setText(rCard.getText() + " - USED");
-                rCard.setEnabled(false);
-            } else if (card == InfluenceCard.FREEDOM) {
-                cards[card.ordinal()] = false;
-                fCard.setText(fCard.getText() + " - USED");
-                fCard.setEnabled(false);
-            }
-            lastCardUsed.setText("Last Card: " + card.toString());
-            return ifDouble;
-        } else if (response[0].equals("ILLEGAL_MOVE")) {
-            //Tell the client the move was illegal.
-            System.out.println("Client Output: Illegal Move.");
-            //If this response was sent, then the bot made an illegal move so should try again.
-            return "PLAY";
-        } else if (response[0].equals("INVALID_MOVE")) {
-            //Tell the client the move was invalid
-            System.out.println("Client Output: Invalid Move.");
-        } else if (response[0].equals("BOARD")) {
-            //Update the clients board and repaint the GUI tiles the corresponding colours.
-            int index;
-            for (int i = 0; i < Game.ROWS; i++) {
-                for (int j = 0; j < Game.COLUMNS; j++) {
-                    index = Integer.parseInt(response[1 + ((i * Game.COLUMNS) + j)]);
-                    gameBoard[i][j] = index;
-                    board[i][j].setColor(colours[index]);
-                    board[i][j].repaint();
+                lastCardUsed.setText("Last Card: " + card);
+                //The first half of a double move was accepted, so the turn is still the bot's for the second half.
+                if (card == InfluenceCard.DOUBLE && secondHalf != null) {
+                    sendMove(secondHalf);
+                    secondHalf = null;
                 }
-            }
-        } else if (response[0].equals("MARK")) {
-            //Adds the players mark.
-            System.out.println("Client Output: Adding player playerMark");
-            playerMark = PlayerMark.valueOf(response[1]);
-        } else if (response[0].equals("TURN")) {
-            //Updates the mark indicating the player whose turn it currently is.
-            playerTurn = PlayerMark.valueOf(response[1]);
-            updateTurnIndicator();
-            //If the marks are the same, then its the bots turn. So return PLAY.
-            if(playerMark.ordinal() == playerTurn.ordinal()){
-                try{
-                    Thread.sleep(1500);
+                return myTurnToPlay();
+            case ILLEGAL_MOVE:
+                //Tell the client the move was illegal.
+                System.out.println("Client Output: Illegal Move.");
+                secondHalf = null;
+                //If this response was sent, then the bot made an illegal move so should try again once nothing is pending.
+                return myTurnToPlay();
+            case INVALID_MOVE:
+                //Tell the client the move was invalid
+                System.out.println("Client Output: Invalid Move.");
+                secondHalf = null;
+                return myTurnToPlay();
+            case LIMITED:
+                //The bot is sending too fast. A refused move is answered, so wait a moment and try again.
+                System.out.println("Client Output: Limited.");
+                secondHalf = null;
+                try {
+                    Thread.sleep(1000);
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
-                System.out.println("Bot should play");
-                return "PLAY";
-            } else {
-                return "NOPLAY";
-            }
-        } else if (response[0].equals("MESSAGE")) {
-            //Output the message sent from the server.
-            System.out.println("Client Output: " + buildResponse(response));
-        } else if (response[0].equals("END")) {
-            //Decide if the player is a winner or a loser and display an appropriate message in a pop-up box.
-            String scores = "";
-            for (int i = 2; i < response.length; i++) {
-                scores += PlayerMark.values()[i - 1].toString() + ":" + response[i] + " | ";
-            }
-            if (response[1].equals(playerMark.toString())) {
-                JOptionPane.showMessageDialog(this, "WINNER! " + scores, "Game Finished. Final Scores", JOptionPane.INFORMATION_MESSAGE);
-            } else {
-                JOptionPane.showMessageDialog(this, "LOSER! " + scores, "Game Finished. Final Scores", JOptionPane.INFORMATION_MESSAGE);
+                return myTurnToPlay();
+            case CELLS:
+                //Update the tiles that changed while the client was reconnecting.
+                for (int i = 1; i + 2 < response.size(); i += 3) {
+                    MoveResult.applyCell(gameBoard, response.getInt(i), response.getInt(i + 1), response.getInt(i + 2));
+                }
+                updateTiles();
+                break;
+            case MOVE_RESULT:
+                //A whole move in one message. Apply it in the same way as the separate responses it replaces.
+                MoveResult result = new MoveResult(response);
+                result.applyCells(gameBoard);
+                updateTiles();
+                lastCardUsed.setText("Last Card: " + result.getCard());
+                for (PlayerMark mark : result.getBlocked()) {
+                    System.out.println("Client Output: " + mark + " is blocked.");
+                }
+                if (result.getMover() == playerMark) {
+                    parseResponse(response.parse("LEGAL_MOVE " + result.getCard()));
+                }
+                if (result.getEnd() != null) {
+                    return parseResponse(response.parse(result.getEnd()));
+                }
+                return parseResponse(response.parse("TURN " + result.getTurn()));
+            case MARK:
+                //Adds the players mark.
+                System.out.println("Client Output: Adding player playerMark");
+                playerMark = response.getMark(1);
+                break;
+            case TOPOLOGY:
+                //The server's board may be a different shape. A new board is filled in by the next board update.
+                BoardTopology.Kind kind = response.getTopology(1);
+                if (kind != null) {
+                    topology = BoardTopology.get(kind, response.getInt(2), response.getInt(3));
+                    if (gameBoard.length != topology.getRows() || gameBoard[0].length != topology.getColumns()) {
+                        gameBoard = new int[topology.getRows()][topology.getColumns()];
+                    }
+                }
+                break;
+            case TURN:
+                //Updates the mark indicating the player whose turn it currently is.
+                playerTurn = response.getMark(1);
+                updateTurnIndicator();
+                //If the marks are the same and no moves are waiting on a reply, then its the bots turn. So return PLAY.
+                if(myTurnToPlay().equals("PLAY")){
+                    try{
+                        Thread.sleep(1500);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    System.out.println("Bot should play");
+                    return "PLAY";
+                } else {
+                    return "NOPLAY";
+                }
+            case MESSAGE:
+                //Output the message sent from the server.
+                System.out.println("Client Output: " + response.getString(1, response.size()));
+                break;
+            case END:
+                //Decide if the player is a winner or a loser and display an appropriate message in a pop-up box.
+                StringBuilder scores = new StringBuilder();
+                for (int i = 2; i < response.size(); i++) {
+                    scores.append(PlayerMark.values()[i - 1]).append(':').append(response.getInt(i)).append(" | ");
+                }
+                if (response.getMark(1) == playerMark) {
+                    JOptionPane.showMessageDialog(this, "WINNER! " + scores, "Game Finished. Final Scores", JOptionPane.INFORMATION_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(this, "LOSER! " + scores, "Game Finished. Final Scores", JOptionPane.INFORMATION_MESSAGE);
 
-            }
-            System.out.println("Client Output: Ending session.");
-            //Tell the server to end their connection too.
-            output.println("END");
-            //Return end to exit the loop in the play() method.
-            return "END";
+                }
+                System.out.println("Client Output: Ending session.");
+                //Tell the server to end their connection too.
+                server.send("END");
+                //Return end to exit the loop in the play() method.
+                return "END";
+            default:
+                break;
         }
         //Return OK to continue the loop in the play() method.
         return "OK";
     }
 
-    //Construct a single string from all the command elements.
-    private String buildResponse(String[] response) {
-        String rspString = "";
-        for (String word : response) {
-            rspString += word + " ";
-        }
-        return rspString;
+    /*Repaint the GUI tiles whose marks changed in the clients board. This runs on the network thread, so the board view
+     *takes a copy of the board and draws it on the GUI thread.*/
+    private void updateTiles() {
+        boardView.setBoard(gameBoard);
     }
 
     //Update the turn indicator to display the correct players turn.
@@ -373,18 +409,6 @@ public class GameBotClient extends JFrame {
         }
     }
 
-    //A simple inner class that extends JPanel to be drawn on the GUI. Can have its colour changed.
-    class Tile extends JPanel {
-
-        public Tile() {
-            setBackground(Color.WHITE);
-        }
-
-        public void setColor(Color color) {
-            setBackground(color);
-        }
-    }
-
 //    //Allows this class to be used to handle the selection of the influence cards via the radio buttons.
 //    @Override
 //    public void actionPerformed(ActionEvent e) {
@@ -6,29 +6,31 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /*This class extends JFrame to allow it to be used to present a GUI to the client to play the game.
  *Also implements ActionListener to allow it to be used to handle the influence card selection via the radio buttons.
- *Takes user input, sends commands to the server and presents the games board on a GUI.*/
+ *Takes user input, sends commands to the server and presents the games board on a GUI.
+ *Responses are read on a separate network thread, which only updates the game state. The GUI is refreshed from that
+ *state on the Swing event thread at most once per frame, however many responses arrive in that time.*/
 public class GameClient extends JFrame implements ActionListener {
 
     //The IP that the client will use to connect to the server.
     private static final String SERVER = "localhost";
     //The port the client will connect to the server through.
     private static final int PORT = 8080;
-    //Color array to colour the GUI in the colours corresponding to the player marks.
-    private static Color[] colours = new Color[]{Color.WHITE, Color.RED, Color.GREEN, Color.BLUE, Color.BLACK, Color.PINK};
-    //This is the socket used to communicate with the connected server.
-    private Socket connection;
-    //This is used to receive responses from the server.
-    private BufferedReader input;
-    //This is used to send commands to the server.
-    private PrintWriter output;
+    //The time between refreshes of the GUI, in milliseconds. Roughly one refresh per display frame.
+    private static final int FRAME_MILLIS = 16;
+    //This is the connection to the server. It is used to receive responses and send commands, and reconnects if lost.
+    private ClientConnection server;
+    //Sends the commands from the GUI, one at a time, so the GUI thread never waits on the server.
+    private final ExecutorService sender = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "CommandSender");
+        thread.setDaemon(true);
+        return thread;
+    });
     //Represents if a card is present. [DOUBLE, REPLACEMENT, FREEDOM].
     private boolean[] cards;
     //Holds the currently selected influence card.
@@ -37,10 +39,20 @@ public class GameClient extends JFrame implements ActionListener {
     private PlayerMark playerMark;
     //This is the player mark of the player whose turn it currently is.
     private PlayerMark playerTurn;
+    //The current scores of all players, ready to be shown.
+    private String scores;
+
+    /*The game state above and the board below are written by the network thread and read by the GUI, so both sides
+     *hold this lock while using them.*/
+    private final Object state = new Object();
+    //A boolean to flag that the state has changed since the GUI was last refreshed.
+    private boolean stateChanged;
+    //A boolean to flag that a move was accepted, so the GUI should go back to selecting no card.
+    private boolean moveAccepted;
 
     //Java GUI related data members:
-    //Represents the board as Tile objects so they can be made clickable and be repainted.
-    private Tile[][] board = new Tile[Game.ROWS][Game.COLUMNS];
+    //Draws the board. Only the tiles that change are repainted.
+    private final BoardView boardView = new BoardView(Game.ROWS, Game.COLUMNS);
     //This is the board represented as ints which indicate the mark at that position. Used by the bot.
     private int[][] gameBoard = new int[Game.ROWS][Game.COLUMNS];
     //Radio buttons for selecting the influence cards.
@@ -50,14 +62,14 @@ public class GameClient extends JFrame implements ActionListener {
     private final JRadioButton fCard;
     //Label to indicate to the player whose turn it is.
     private final JLabel turnIndicator;
+    //Label to show the current scores of all players.
+    private final JLabel scoreIndicator;
 
     //GameClient constructor to initialise data members and get the streams from the socket.
     public GameClient() {
         try {
             System.out.println("Getting connection");
-            connection = new Socket(SERVER, PORT);
-            input = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            output = new PrintWriter(connection.getOutputStream(), true);
+            server = new ClientConnection(SERVER, PORT);
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this, "Connection Failed. You Are Not Connected.", "Connection Failure", JOptionPane.ERROR_MESSAGE);
             e.printStackTrace();
@@ -66,6 +78,9 @@ public class GameClient extends JFrame implements ActionListener {
 
         cards = new boolean[]{true, true, true};
         selectedCard = InfluenceCard.NONE;
+        scores = "";
+        stateChanged = false;
+        moveAccepted = false;
 
         //Setup the basic GUI frame.
         setTitle("Client GameService Window");
@@ -100,75 +115,83 @@ public class GameClient extends JFrame implements ActionListener {
 
         //Instantiate the label for indicating the player whose turn it is.
         turnIndicator = new JLabel();
+        //Instantiate the label for the live scores.
+        scoreIndicator = new JLabel();
 
         //Add all radio buttons and the turn indicator label to a panel to add to the south of the frame.
         JPanel toolbar = new JPanel();
-        toolbar.setLayout(new GridLayout(1, 5, 2, 2));
+        toolbar.setLayout(new GridLayout(1, 6, 2, 2));
         toolbar.add(none);
         toolbar.add(dCard);
         toolbar.add(rCard);
         toolbar.add(fCard);
         toolbar.add(turnIndicator);
+        toolbar.add(scoreIndicator);
         getContentPane().add(toolbar, BorderLayout.SOUTH);
 
-        //Create a panel for the Tile objects to be placed in.
-        JPanel boardPanel = new JPanel();
-        boardPanel.setPreferredSize(new Dimension(500, 300));
-        //Gives the appearance of black lines between the tiles.
-        boardPanel.setBackground(Color.BLACK);
-        boardPanel.setLayout(new GridLayout(Game.ROWS, Game.COLUMNS, 2, 2));
-
-        /*For each point on the game board, create a Tile object for it and add it to the boardPanel.
-         *Before each tile is selected add a MouseListener to allow it to be clicked.*/
-        for (int i = 0; i < Game.ROWS; i++) {
-            for (int j = 0; j < Game.COLUMNS; j++) {
-                final int fi = i, fj = j;
-                board[i][j] = new Tile();
-                board[i][j].addMouseListener(new MouseAdapter() {
-                    @Override
-                    public void mousePressed(MouseEvent e) {
-                        //Depending on the card being used, send the appropriate command with the coords of this tile.
-                        if (selectedCard == InfluenceCard.NONE) {
-                            output.println("MOVE NONE " + fi + " " + fj);
-                        } else if (selectedCard == InfluenceCard.DOUBLE) {
-                            if (cards[InfluenceCard.DOUBLE.ordinal()]) {
-                                output.println("MOVE DOUBLE " + fi + " " + fj);
-                            } else {
-                                System.out.println("Card Not Available");
-                            }
-                        } else if (selectedCard == InfluenceCard.REPLACEMENT) {
-                            if (cards[InfluenceCard.REPLACEMENT.ordinal()]) {
-                                output.println("MOVE REPLACEMENT " + fi + " " + fj);
-                            } else {
-                                System.out.println("Card Not Available");
-                            }
-                        } else if (selectedCard == InfluenceCard.FREEDOM) {
-                            if (cards[InfluenceCard.FREEDOM.ordinal()]) {
-                                output.println("MOVE FREEDOM " + fi + " " + fj);
-                            } else {
-                                System.out.println("Card Not Available");
-                            }
-                        }
+        //Add a MouseListener to the board to allow its tiles to be clicked.
+        boardView.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                //Find the tile that was clicked.
+                int fi = boardView.rowAt(e.getY());
+                int fj = boardView.columnAt(e.getX());
+                //Depending on the card being used, pick the appropriate command with the coords of this tile.
+                String move = null;
+                synchronized (state) {
+                    if (selectedCard == InfluenceCard.NONE) {
+                        move = "MOVE NONE " + fi + " " + fj;
+                    } else if (cards[selectedCard.ordinal()]) {
+                        move = "MOVE " + selectedCard + " " + fi + " " + fj;
+                    } else {
+                        System.out.println("Card Not Available");
                     }
-                });
-                boardPanel.add(board[i][j]);
+                }
+                //The command is sent once the lock is released, and never on the GUI thread, as sending can block.
+                if (move != null) {
+                    sendInBackground(move);
+                }
             }
-        }
+        });
 
-        //Add the board panel to the centre of the frame.
-        getContentPane().add(boardPanel, BorderLayout.CENTER);
+        //Add the board to the centre of the frame.
+        getContentPane().add(boardView, BorderLayout.CENTER);
         //Set the width and height to fit the contents of the frame.
         pack();
+
+        //Refresh the GUI from the game state once per frame.
+        new Timer(FRAME_MILLIS, e -> refreshGUI()).start();
     }
 
-    //Initialises the client object to start taking commands and allow the player to player the game from the GUI.
+    /*Initialises the client object to start taking commands and allow the player to player the game from the GUI.
+     *This runs on the network thread and never touches the GUI directly.*/
     private void play() {
-        String[] response;
+        String line;
+        //Each response is split into the same Command object.
+        Command response = new Command();
         try {
+            /*Ask for the smallest board encoding, a single message per move and to be kept updated with the scores as
+             *the board changes.*/
+            server.send("ENCODING RLE");
+            server.send("RESULTS");
+            server.send("SCORE");
             while (true) {
-                response = input.readLine().trim().split(" ");
-                System.out.println("Server Response: " + buildResponse(response));
-                if (parseResponse(response).equals("END")) {
+                line = server.readLine();
+                if (BoardCodec.isBoard(line)) {
+                    //Full boards are decoded straight into the board array without splitting the message.
+                    synchronized (state) {
+                        BoardCodec.decode(line, gameBoard);
+                        stateChanged = true;
+                    }
+                    continue;
+                }
+                response.parse(line);
+                System.out.println("Server Response: " + line);
+                String action;
+                synchronized (state) {
+                    action = parseResponse(response);
+                }
+                if (action.equals("END")) {
                     break;
                 }
             }
@@ -176,7 +199,7 @@ public class GameClient extends JFrame implements ActionListener {
             e.printStackTrace();
         } finally {
             try {
-                connection.close();
+                server.close();
             } catch (IOException e) {
                 //Shouldn't be reached.
                 e.printStackTrace();
@@ -184,81 +207,152 @@ public class GameClient extends JFrame implements ActionListener {
         }
     }
 
-    //Takes and response and parses it to perform the appropriate actions.
-    private String parseResponse(String[] response) {
-        if (response[0].equals("LEGAL_MOVE")) {
-            System.out.println("Client Output: legal move. Update influence cards.");
-            InfluenceCard card = InfluenceCard.valueOf(response[1]);
-            //Remove the correct influence card, if any, and prevent selecting of that card.
-            if (card == InfluenceCard.DOUBLE) {
-                cards[card.ordinal()] = false;
-                dCard.setEnabled(false);
-            } else if (card == InfluenceCard.REPLACEMENT) {
-                cards[card.ordinal()] = false;
-                rCard.setEnabled(false);
-            } else if (card == InfluenceCard.FREEDOM) {
-                cards[card.ordinal()] = false;
-                fCard.setEnabled(false);
-            }
-            selectedCard = InfluenceCard.NONE;
-            none.setSelected(true);
-        } else if (response[0].equals("ILLEGAL_MOVE")) {
-            //Tell the client the move was illegal.
-            System.out.println("Client Output: Illegal Move.");
-        } else if (response[0].equals("INVALID_MOVE")) {
-            //Tell the client the move was invalid
-            System.out.println("Client Output: Invalid Move.");
-        } else if (response[0].equals("BOARD")) {
-            //Update the clients board and repaint the GUI tiles the corresponding colours.
-            int index;
-            for (int i = 0; i < Game.ROWS; i++) {
-                for (int j = 0; j < Game.COLUMNS; j++) {
-                    index = Integer.parseInt(response[1 + ((i * Game.COLUMNS) + j)]);
-                    gameBoard[i][j] = index;
-                    board[i][j].setColor(colours[index]);
-                    board[i][j].repaint();
+    /*Takes and response and parses it to update the game state. Called with the state lock held.
+     *Any change the GUI needs to show is picked up by the next refreshGUI().*/
+    private String parseResponse(Command response) throws IOException {
+        stateChanged = true;
+        switch (response.getOpcode()) {
+            case LEGAL_MOVE:
+                System.out.println("Client Output: legal move. Update influence cards.");
+                InfluenceCard card = response.getCard(1);
+                //Remove the correct influence card, if any. The GUI prevents selecting it on the next refresh.
+                if (card != null && card != InfluenceCard.NONE) {
+                    cards[card.ordinal()] = false;
                 }
-            }
-        } else if (response[0].equals("MARK")) {
-            //Adds the players mark.
-            System.out.println("Client Output: Adding player playerMark");
-            playerMark = PlayerMark.valueOf(response[1]);
-        } else if (response[0].equals("TURN")) {
-            //Updates the mark indicating the player whose turn it currently is.
-            playerTurn = PlayerMark.valueOf(response[1]);
-            updateTurnIndicator();
-        } else if (response[0].equals("MESSAGE")) {
-            //Output the message sent from the server.
-            System.out.println("Client Output: " + buildResponse(response));
-        } else if (response[0].equals("END")) {
-            //Decide if the player is a winner or a loser and display an appropriate message in a pop-up box.
-            String scores = "";
-            for (int i = 2; i < response.length; i++) {
-                scores += PlayerMark.values()[i - 1].toString() + ":" + response[i] + " | ";
-            }
-            if (response[1].equals(playerMark.toString())) {
-                JOptionPane.showMessageDialog(this, "WINNER! " + scores, "Game Finished. Final Scores", JOptionPane.INFORMATION_MESSAGE);
-            } else {
-                JOptionPane.showMessageDialog(this, "LOSER! " + scores, "Game Finished. Final Scores", JOptionPane.INFORMATION_MESSAGE);
-
-            }
-            System.out.println("Client Output: Ending session.");
-            //Tell the server to end their connection too.
-            output.println("END");
-            //Return end to exit the loop in the play() method.
-            return "END";
+                moveAccepted = true;
+                break;
+            case ILLEGAL_MOVE:
+                //Tell the client the move was illegal.
+                System.out.println("Client Output: Illegal Move.");
+                break;
+            case INVALID_MOVE:
+                //Tell the client the move was invalid
+                System.out.println("Client Output: Invalid Move.");
+                break;
+            case LIMITED:
+                //Commands are being sent too fast. A move that was refused can be made again in a moment.
+                System.out.println("Client Output: Too many commands. Try again.");
+                break;
+            case CELLS:
+                //Update the tiles that changed while the client was reconnecting.
+                for (int i = 1; i + 2 < response.size(); i += 3) {
+                    MoveResult.applyCell(gameBoard, response.getInt(i), response.getInt(i + 1), response.getInt(i + 2));
+                }
+                break;
+            case MOVE_RESULT:
+                //A whole move in one message. Apply it in the same way as the separate responses it replaces.
+                MoveResult result = new MoveResult(response);
+                result.applyCells(gameBoard);
+                for (PlayerMark mark : result.getBlocked()) {
+                    System.out.println("Client Output: " + mark + " is blocked.");
+                }
+                if (result.getMover() == playerMark) {
+                    parseResponse(response.parse("LEGAL_MOVE " + result.getCard()));
+                }
+                if (result.getScores() != null) {
+                    parseResponse(response.parse(result.getScores()));
+                }
+                if (result.getEnd() != null) {
+                    return parseResponse(response.parse(result.getEnd()));
+                }
+                return parseResponse(response.parse("TURN " + result.getTurn()));
+            case MARK:
+                //Adds the players mark.
+                System.out.println("Client Output: Adding player playerMark");
+                playerMark = response.getMark(1);
+                break;
+            case TOPOLOGY:
+                //The server's board may be a different shape. A new board is filled in by the next board update.
+                BoardTopology.Kind kind = response.getTopology(1);
+                if (kind != null) {
+                    //Only the board's shape is needed, as the server checks the moves and the player picks the tiles.
+                    BoardTopology shape = BoardTopology.get(kind, response.getInt(2), response.getInt(3));
+                    if (gameBoard.length != shape.getRows() || gameBoard[0].length != shape.getColumns()) {
+                        gameBoard = new int[shape.getRows()][shape.getColumns()];
+                    }
+                }
+                break;
+            case TURN:
+                //Updates the mark indicating the player whose turn it currently is.
+                playerTurn = response.getMark(1);
+                break;
+            case SCORE:
+                //Keep the live scores of all players.
+                scores = formatScores(response);
+                break;
+            case MESSAGE:
+                //Output the message sent from the server.
+                System.out.println("Client Output: " + response.getString(1, response.size()));
+                break;
+            case END:
+                /*Decide if the player is a winner or a loser and display an appropriate message in a pop-up box.
+                 *The pop-up is shown on the GUI thread, after the final board has been drawn.*/
+                String finalScores = formatScores(response);
+                String outcome = response.getMark(1) == playerMark ? "WINNER! " : "LOSER! ";
+                SwingUtilities.invokeLater(() -> {
+                    refreshGUI();
+                    JOptionPane.showMessageDialog(this, outcome + finalScores, "Game Finished. Final Scores", JOptionPane.INFORMATION_MESSAGE);
+                });
+                System.out.println("Client Output: Ending session.");
+                //Tell the server to end their connection too.
+                server.send("END");
+                //Return end to exit the loop in the play() method.
+                return "END";
+            default:
+                break;
         }
         //Return OK to continue the loop in the play() method.
         return "OK";
     }
 
-    //Construct a single string from all the command elements.
-    private String buildResponse(String[] response) {
-        String rspString = "";
-        for (String word : response) {
-            rspString += word + " ";
+    /*Sends a command to the server on the sender thread. Sending can block, e.g. while reconnecting to a game that was
+     *paused, and commands are still sent in the order they were given. If it couldn't be sent the player is told.*/
+    private void sendInBackground(String command) {
+        sender.execute(() -> {
+            try {
+                server.send(command);
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                        "Could not reach the server. Your move was not sent, try it again.", "Connection Failure",
+                        JOptionPane.ERROR_MESSAGE));
+            }
+        });
+    }
+
+    //Construct a string of each players mark and score from an END or SCORE response.
+    private String formatScores(Command response) {
+        StringBuilder scores = new StringBuilder();
+        for (int i = 2; i < response.size(); i++) {
+            scores.append(PlayerMark.values()[i - 1]).append(':').append(response.getInt(i)).append(" | ");
+        }
+        return scores.toString();
+    }
+
+    /*Updates the GUI from the game state if it has changed since the last refresh. Runs on the GUI thread once per
+     *frame, so any number of responses received during a frame lead to a single update.*/
+    private void refreshGUI() {
+        synchronized (state) {
+            if (!stateChanged) {
+                return;
+            }
+            stateChanged = false;
+
+            //Repaint the GUI tiles whose marks changed in the clients board.
+            boardView.setBoard(gameBoard);
+            //Prevent selecting of cards that have been used.
+            dCard.setEnabled(cards[InfluenceCard.DOUBLE.ordinal()]);
+            rCard.setEnabled(cards[InfluenceCard.REPLACEMENT.ordinal()]);
+            fCard.setEnabled(cards[InfluenceCard.FREEDOM.ordinal()]);
+            if (moveAccepted) {
+                moveAccepted = false;
+                selectedCard = InfluenceCard.NONE;
+                none.setSelected(true);
+            }
+            if (playerTurn != null) {
+                updateTurnIndicator();
+            }
+            scoreIndicator.setText(scores);
         }
-        return rspString;
     }
 
     //Update the turn indicator to display the correct players turn.
@@ -272,18 +366,6 @@ public class GameClient extends JFrame implements ActionListener {
         }
     }
 
-    //A simple inner class that extends JPanel to be drawn on the GUI. Can have its colour changed.
-    class Tile extends JPanel {
-
-        public Tile() {
-            setBackground(Color.WHITE);
-        }
-
-        public void setColor(Color color) {
-            setBackground(color);
-        }
-    }
-
     //Allows this class to be used to handle the selection of the influence cards via the radio buttons.
     @Override
     public void actionPerformed(ActionEvent e) {
@@ -307,6 +389,7 @@ public class GameClient extends JFrame implements ActionListener {
     //Main entry point for the client program.
     public static void main(String[] args) {
         GameClient gameClient = new GameClient();
-        gameClient.play();
+        //Read from the server on a dedicated network thread, leaving the GUI thread free to draw and take input.
+        new Thread(gameClient::play, "NetworkReader").start();
     }
 }
\ No newline at end of file
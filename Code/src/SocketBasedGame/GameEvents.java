@@ -0,0 +1,132 @@
+package SocketBasedGame;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.net.Socket;
+
+/*This class holds the Java Flight Recorder events the server records, so what the games were doing can be lined up with
+ *garbage collection, lock contention and everything else in a recording. An event is only filled in and committed if
+ *recording is on and it ran for longer than its threshold, so when they aren't being recorded they cost next to
+ *nothing. game.jfc, next to this file, turns them on along with the JVM events worth comparing them to:
+ *  java -XX:StartFlightRecording=settings=default,settings=game.jfc,filename=game.jfr SocketBasedGame.GameServer
+ *They are under "Tile Game" in JDK Mission Control, or can be listed with: jfr print --categories "Tile Game" game.jfr
+ *The jdk.jfr API is part of Java 8 from update 272, so the server still builds and runs on Java 8 from then on.*/
+public class GameEvents {
+
+    //The command event's type, checked before each command so no event is made for it when commands aren't recorded.
+    private static final EventType COMMAND = EventType.getEventType(CommandEvent.class);
+
+    //A command from a client, timed from when it was read until it had been handled.
+    @Name("SocketBasedGame.Command")
+    @Label("Command")
+    @Category("Tile Game")
+    @Description("A command from a client, from being read to being handled")
+    @StackTrace(false)
+    static class CommandEvent extends Event {
+        @Label("Command")
+        String command;
+        @Label("Player")
+        String mark;
+        @Label("Outcome")
+        @Description("LEGAL, ILLEGAL, INVALID or NOT_YOUR_TURN for a move, otherwise OK")
+        String outcome;
+    }
+
+    //The board being encoded and queued for every player after it changed.
+    @Name("SocketBasedGame.Broadcast")
+    @Label("Board Broadcast")
+    @Category("Tile Game")
+    @Description("The board being encoded and queued for every player after it changed")
+    @StackTrace(false)
+    static class BroadcastEvent extends Event {
+        @Label("Recipients")
+        int recipients;
+        @Label("Encodings Built")
+        int encodings;
+        @Label("Bytes Queued")
+        @DataAmount
+        long bytes;
+        @Label("Changed Tiles")
+        int changedTiles;
+    }
+
+    //The players being checked to see if any of them are now blocked.
+    @Name("SocketBasedGame.BlockCheck")
+    @Label("Block Check")
+    @Category("Tile Game")
+    @Description("The players being checked to see if any of them can no longer move")
+    @StackTrace(false)
+    static class BlockCheckEvent extends Event {
+        @Label("Players")
+        int players;
+        @Label("Newly Blocked")
+        int newlyBlocked;
+        @Label("Game Over Check")
+        @Description("True if this check was to see if the game is over")
+        boolean gameOverCheck;
+        @Label("Game Over")
+        boolean gameOver;
+    }
+
+    //The turn moving on to the next player who isn't blocked.
+    @Name("SocketBasedGame.Turn")
+    @Label("Turn Change")
+    @Category("Tile Game")
+    @Description("The turn moving on, skipping any blocked players")
+    @StackTrace(false)
+    static class TurnEvent extends Event {
+        @Label("From")
+        String from;
+        @Label("To")
+        String to;
+        @Label("Players Skipped")
+        int skipped;
+        @Label("Game Ended")
+        boolean ended;
+    }
+
+    //A step in the life of a client's connection.
+    @Name("SocketBasedGame.Connection")
+    @Label("Connection")
+    @Category("Tile Game")
+    @Description("A client connecting, losing its connection, reconnecting or leaving")
+    @StackTrace(false)
+    static class ConnectionEvent extends Event {
+        @Label("Stage")
+        @Description("connected, disconnected, reconnected, hibernated, left or closed")
+        String stage;
+        @Label("Player")
+        String mark;
+        @Label("Address")
+        String address;
+    }
+
+    /*Returns a started event for a command, or null if commands aren't being recorded. Clients send commands far more
+     *often than anything else happens, so one isn't allocated for each of them unless it may be committed.*/
+    static CommandEvent beginCommand() {
+        if (!COMMAND.isEnabled()) {
+            return null;
+        }
+        CommandEvent event = new CommandEvent();
+        event.begin();
+        return event;
+    }
+
+    //Records a step in the life of a connection. The mark is null for a client that isn't in a game yet.
+    static void connection(String stage, PlayerMark mark, Socket socket) {
+        ConnectionEvent event = new ConnectionEvent();
+        if (event.shouldCommit()) {
+            event.stage = stage;
+            event.mark = mark == null ? null : mark.toString();
+            event.address = socket == null ? null : String.valueOf(socket.getRemoteSocketAddress());
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,595 @@
+package SocketBasedGame;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/*This class plays random games against the rules in Game and checks them after every step. Moves are made with
+ *Game.playMove(), as GameService and BotPlayer make them, mixed with nextPlayer() and checkBlocked() on their own.
+ *After each step it checks that:
+ *  a tile is only ever taken from another player with a REPLACEMENT, and a move is allowed exactly when the rules say,
+ *  a player marked as blocked really has no move left,
+ *  the game ends exactly when every player is blocked,
+ *  the scores add up to the tiles taken, and each one matches the board.
+ *Run on its own, it fuzzes on every core and reports the moves made per second, so it is also a benchmark of the rules:
+ *  java -Dgame.log.level=WARN SocketBasedGame.GameFuzzer 60
+ *Given "scale" instead of a thread count, it fuzzes for the given seconds on 1, 2, 4 and so on up to every core, and
+ *reports how the moves per second grow with the threads. Each game is played on one thread, so they should grow close
+ *to in step until something the games share holds them back:
+ *  java -Dgame.log.level=WARN SocketBasedGame.GameFuzzer 10 scale
+ *The first failure found is shrunk to the fewest steps that still fail, and printed with the seed of its game. That one
+ *game can be played again on its own, e.g. while debugging the rule it breaks:
+ *  java -Dgame.log.level=WARN SocketBasedGame.GameFuzzer replay 1234567*/
+public class GameFuzzer {
+
+    //The number of seconds fuzzed for if none is given.
+    private static final int DEFAULT_SECONDS = 60;
+    //The most steps played in one game. A game still going after this many is dropped and a new one started.
+    private static final int MAX_STEPS = 1000;
+
+    //The kinds of step: a player placing their first tile, the turn player's move, nextPlayer() and checkBlocked().
+    static final int PLACE = 0;
+    static final int MOVE = 1;
+    static final int NEXT = 2;
+    static final int CHECK = 3;
+
+    /*The number of games and steps played, and the moves tried and made, across all the threads. Every thread adds to
+     *them after every step, so each thread adds to its own cell rather than all of them fighting over one number.*/
+    private final LongAdder games = new LongAdder();
+    private final LongAdder steps = new LongAdder();
+    private final LongAdder moves = new LongAdder();
+    private final LongAdder legalMoves = new LongAdder();
+    //The first failure found, or null.
+    private volatile Failure failure;
+
+    //A game that broke a rule: the seed it was played from, its table size, the steps that break it and the rule.
+    public static class Failure {
+        private final long seed;
+        private final int tableSize;
+        private final int[] steps;
+        private final String message;
+
+        private Failure(long seed, int tableSize, int[] steps, String message) {
+            this.seed = seed;
+            this.tableSize = tableSize;
+            this.steps = steps;
+            this.message = message;
+        }
+
+        //Returns the steps that break the rule.
+        public int[] getSteps() {
+            return steps;
+        }
+
+        //Returns the rule broken.
+        public String getMessage() {
+            return message;
+        }
+
+        //Returns the failure as the seed, the rule broken and one step per line.
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder("seed=" + seed + " tableSize=" + tableSize + " steps=" + steps.length
+                    + "\n" + message);
+            for (int step : steps) {
+                text.append("\n  ").append(describe(step));
+            }
+            return text.toString();
+        }
+    }
+
+    //A seat played by the fuzzer. It only keeps what the game asks of a player.
+    private static class FuzzPlayer implements Player {
+        private final PlayerMark playerMark;
+        private int cards;
+        private boolean isBlocked;
+        //A boolean to flag that the game has accepted the player's first tile.
+        private boolean placedFirst;
+
+        private FuzzPlayer(PlayerMark playerMark) {
+            this.playerMark = playerMark;
+            cards = (1 << InfluenceCard.DOUBLE.ordinal()) | (1 << InfluenceCard.REPLACEMENT.ordinal())
+                    | (1 << InfluenceCard.FREEDOM.ordinal());
+        }
+
+        public PlayerMark getPlayerMark() {
+            return playerMark;
+        }
+
+        public String getPlayerName() {
+            return null;
+        }
+
+        public String getToken() {
+            return "fuzz-" + playerMark;
+        }
+
+        public int getCards() {
+            return cards;
+        }
+
+        public boolean hasCard(InfluenceCard card) {
+            return card == InfluenceCard.NONE || (cards & (1 << card.ordinal())) != 0;
+        }
+
+        public boolean isBlocked() {
+            return isBlocked;
+        }
+
+        public void setBlocked() {
+            isBlocked = true;
+        }
+
+        public boolean wantsScores() {
+            return false;
+        }
+
+        public boolean wantsMoveResults() {
+            return false;
+        }
+
+        public BoardEncoding getBoardEncoding() {
+            return null;
+        }
+
+        public void updateBoard(String board) {
+        }
+
+        public void updateScores(String scores) {
+        }
+
+        public void moveMade(InfluenceCard card) {
+            if (card != InfluenceCard.NONE) {
+                cards &= ~(1 << card.ordinal());
+            }
+        }
+
+        public void informClientOfTurn(PlayerMark mark) {
+        }
+
+        public void sendMoveResult(String result, boolean isReply) {
+        }
+
+        public void replay(long seq, String event) {
+        }
+
+        public void end(String scores) {
+        }
+
+        public void hibernate() {
+        }
+
+        public void writeTo(DataOutputStream out) throws IOException {
+            out.writeByte(playerMark.ordinal());
+            out.writeByte(cards);
+            out.writeBoolean(isBlocked);
+        }
+    }
+
+    //One game being fuzzed, with its players indexed by mark.
+    private static class Trial {
+        private final Game game;
+        private final FuzzPlayer[] players;
+
+        private Trial(int tableSize) {
+            game = new Game(tableSize);
+            players = new FuzzPlayer[tableSize + 1];
+            for (int mark = 1; mark <= tableSize; mark++) {
+                players[mark] = new FuzzPlayer(PlayerMark.values()[mark]);
+                game.addPlayer(players[mark]);
+            }
+        }
+
+        /*Applies a step and checks the rules still hold. Returns the rule broken, or null. A step that can't be played
+         *in the game as it is, e.g. a move with a card already used, is skipped, so any list of steps can be played.*/
+        private String apply(int step, GameFuzzer counts) {
+            int op = step >>> 24;
+            int cell = step & 0xFFFF;
+            InfluenceCard card = InfluenceCard.values()[(step >>> 16) & 0xF];
+            byte[] before = game.getBoard();
+            FuzzPlayer mover = null;
+            boolean tried = false;
+            boolean legal = false;
+
+            if (op == PLACE) {
+                //As a GameService or BotPlayer does when it starts, on the first empty tile from the one given.
+                mover = players[(step >>> 20) & 0xF];
+                if (mover.placedFirst || game.boardFull()) {
+                    return null;
+                }
+                while (before[cell] != PlayerMark.NONE.ordinal()) {
+                    cell = (cell + 1) % before.length;
+                }
+                card = InfluenceCard.NONE;
+                tried = true;
+                legal = game.makeMove(card, cell / Game.COLUMNS, cell % Game.COLUMNS, mover.playerMark.ordinal());
+                game.checkBlocked();
+                if (game.isGameOver()) {
+                    game.endGame();
+                }
+                game.playerReady(mover);
+            } else if (op == MOVE) {
+                /*With Game.playMove(), as GameService.move() does. Random games only have moves by the player whose
+                 *turn it is, but once steps have been left out by shrink() it may be someone else's turn, so the turn
+                 *is passed on.*/
+                int mark = (step >>> 20) & 0xF;
+                for (int i = 0; i < players.length && game.getPlayerMarkTurn().ordinal() != mark
+                        && game.getPlayerMarkTurn() != PlayerMark.NONE && !game.isFinished(); i++) {
+                    game.nextPlayer();
+                }
+                PlayerMark turn = game.getPlayerMarkTurn();
+                if (turn.ordinal() != mark || game.isFinished() || !players[mark].hasCard(card)) {
+                    return null;
+                }
+                mover = players[turn.ordinal()];
+                tried = true;
+                legal = game.playMove(mover, card, cell / Game.COLUMNS, cell % Game.COLUMNS);
+                if (game.isGameOver()) {
+                    game.endGame();
+                }
+            } else if (op == NEXT) {
+                if (game.getPlayerMarkTurn() == PlayerMark.NONE) {
+                    return null;
+                }
+                game.nextPlayer();
+            } else {
+                game.checkBlocked();
+            }
+
+            if (tried) {
+                counts.moves.increment();
+                if (legal) {
+                    counts.legalMoves.increment();
+                }
+            }
+            return check(before, game.getBoard(), op, mover, card, cell, tried, legal);
+        }
+
+        //Checks the rules hold after a step, given the board before and after it. Returns the rule broken, or null.
+        private String check(byte[] before, byte[] after, int op, FuzzPlayer mover, InfluenceCard card, int cell,
+                             boolean tried, boolean legal) {
+            //Only a legal move changes the board, and only the tile moved to.
+            for (int tile = 0; tile < after.length; tile++) {
+                if (before[tile] != after[tile] && !(legal && tile == cell)) {
+                    return "Tile " + tile + " changed from " + before[tile] + " to " + after[tile] + " by " + name(op)
+                            + (tried ? (legal ? " on another tile." : ", which was refused.") : ".");
+                }
+            }
+            if (tried) {
+                int mark = mover.playerMark.ordinal();
+                boolean allowed = isAllowed(before, card, cell, mover);
+                if (legal != allowed) {
+                    return (legal ? "Allowed " : "Refused ") + mover.playerMark + " " + card + " on tile " + cell + ".";
+                }
+                if (legal && after[cell] != mark) {
+                    return "Tile " + cell + " holds " + after[cell] + " after " + mover.playerMark + " moved there.";
+                }
+                if (legal && before[cell] != PlayerMark.NONE.ordinal() && card != InfluenceCard.REPLACEMENT) {
+                    return "Tile " + cell + " was taken from " + before[cell] + " without a REPLACEMENT.";
+                }
+                if (legal && (card == InfluenceCard.NONE || card == InfluenceCard.DOUBLE)) {
+                    mover.placedFirst = true;
+                }
+            }
+
+            //A blocked player really has no move left.
+            boolean allBlocked = true;
+            for (int mark = 1; mark < players.length; mark++) {
+                if (!players[mark].isBlocked) {
+                    allBlocked = false;
+                } else if (canMove(after, players[mark])) {
+                    return players[mark].playerMark + " is blocked but can still move.";
+                }
+            }
+
+            //The game ends exactly when every player is blocked. Only a move checks for the end of the game.
+            if (game.isFinished() && !allBlocked) {
+                return "The game ended while a player could still move.";
+            }
+            if ((op == PLACE || op == MOVE) && allBlocked && !game.isFinished()) {
+                return "Every player is blocked but the game hasn't ended.";
+            }
+
+            //The scores add up to the tiles taken, and each matches the board.
+            int[] counts = new int[PlayerMark.values().length];
+            for (byte tile : after) {
+                counts[tile]++;
+            }
+            int total = 0;
+            for (int mark = 1; mark < players.length; mark++) {
+                int score = game.getScore(players[mark].playerMark);
+                if (score != counts[mark]) {
+                    return players[mark].playerMark + " scores " + score + " but holds " + counts[mark] + " tiles.";
+                }
+                total += score;
+            }
+            if (total != after.length - counts[PlayerMark.NONE.ordinal()]) {
+                return "The scores add up to " + total + " but " + (after.length - counts[PlayerMark.NONE.ordinal()])
+                        + " tiles are taken.";
+            }
+            return null;
+        }
+
+        //Frees the game's board, if it hasn't ended and freed it already.
+        private void close() {
+            if (!game.isFinished()) {
+                game.hibernate();
+            }
+        }
+    }
+
+    //Checks if the rules allow a move, worked out from the board rather than by asking the game.
+    private static boolean isAllowed(byte[] board, InfluenceCard card, int cell, FuzzPlayer mover) {
+        int mark = mover.playerMark.ordinal();
+        boolean empty = board[cell] == PlayerMark.NONE.ordinal();
+        boolean touches = Game.TOPOLOGY.touches(board, cell, mark);
+        switch (card) {
+            case REPLACEMENT:
+                return board[cell] != mark && touches;
+            case FREEDOM:
+                return empty;
+            default:
+                return empty && (!mover.placedFirst || touches);
+        }
+    }
+
+    //Checks if a player has any move left, with the cards they still hold.
+    private static boolean canMove(byte[] board, FuzzPlayer player) {
+        for (InfluenceCard card : InfluenceCard.values()) {
+            if (player.hasCard(card) && card != InfluenceCard.DOUBLE) {
+                for (int cell = 0; cell < board.length; cell++) {
+                    if (isAllowed(board, card, cell, player)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /*Returns a step as a single number: what it does, the player placing a tile or moving, the card and the tile. The
+     *tile takes the low 16 bits, so it can be any tile of a board up to BoardTopology.MAX_TILES.*/
+    static int step(int op, int mark, InfluenceCard card, int cell) {
+        return (op << 24) | (mark << 20) | (card.ordinal() << 16) | cell;
+    }
+
+    //Returns the name of a kind of step.
+    private static String name(int op) {
+        return op == PLACE ? "PLACE" : op == MOVE ? "MOVE" : op == NEXT ? "nextPlayer()" : "checkBlocked()";
+    }
+
+    //Describes a step, e.g. MOVE RED REPLACEMENT 2 5, with the tile as a row and column.
+    static String describe(int step) {
+        int op = step >>> 24;
+        int cell = step & 0xFFFF;
+        if (op == PLACE) {
+            return "PLACE " + PlayerMark.values()[(step >>> 20) & 0xF] + " " + (cell / Game.COLUMNS) + " "
+                    + (cell % Game.COLUMNS);
+        } else if (op == MOVE) {
+            return "MOVE " + PlayerMark.values()[(step >>> 20) & 0xF] + " "
+                    + InfluenceCard.values()[(step >>> 16) & 0xF] + " " + (cell / Game.COLUMNS) + " "
+                    + (cell % Game.COLUMNS);
+        }
+        return name(op);
+    }
+
+    //Plays one random game from a seed. Returns the failure, not yet shrunk, or null if every rule held.
+    Failure fuzz(long seed) {
+        Random random = new Random(seed);
+        int tableSize = Matchmaker.MIN_TABLE + random.nextInt(Matchmaker.MAX_TABLE - Matchmaker.MIN_TABLE + 1);
+        int tiles = Game.ROWS * Game.COLUMNS;
+        Trial trial = new Trial(tableSize);
+        int[] played = new int[MAX_STEPS + tableSize];
+        int size = 0;
+        try {
+            for (int i = 0; i < played.length && !trial.game.isFinished(); i++) {
+                int step;
+                if (i < tableSize) {
+                    step = step(PLACE, i + 1, InfluenceCard.NONE, random.nextInt(tiles));
+                } else {
+                    step = randomStep(random, trial);
+                }
+                played[size++] = step;
+                String broken = trial.apply(step, this);
+                if (broken != null) {
+                    return new Failure(seed, tableSize, Arrays.copyOf(played, size), broken);
+                }
+            }
+        } finally {
+            trial.close();
+            games.increment();
+            steps.add(size);
+        }
+        return null;
+    }
+
+    /*Picks a random step. Most are moves by the player whose turn it is, with a card they hold. Half the moves are to a
+     *tile next to their own, so the games are played to the end, and the rest to any tile.*/
+    private static int randomStep(Random random, Trial trial) {
+        int roll = random.nextInt(20);
+        if (roll == 0) {
+            return step(NEXT, 0, InfluenceCard.NONE, 0);
+        } else if (roll == 1) {
+            return step(CHECK, 0, InfluenceCard.NONE, 0);
+        }
+        PlayerMark turn = trial.game.getPlayerMarkTurn();
+        FuzzPlayer mover = trial.players[Math.max(turn.ordinal(), 1)];
+        InfluenceCard card = InfluenceCard.values()[random.nextInt(InfluenceCard.values().length)];
+        if (random.nextInt(4) != 0 || !mover.hasCard(card)) {
+            card = InfluenceCard.NONE;
+        }
+        int tiles = Game.ROWS * Game.COLUMNS;
+        int cell = random.nextInt(tiles);
+        if (random.nextBoolean()) {
+            byte[] board = trial.game.getBoard();
+            for (int i = 0; i < tiles; i++) {
+                int tile = (cell + i) % tiles;
+                if (board[tile] == PlayerMark.NONE.ordinal()
+                        && Game.TOPOLOGY.touches(board, tile, mover.playerMark.ordinal())) {
+                    cell = tile;
+                    break;
+                }
+            }
+        }
+        return step(MOVE, turn.ordinal(), card, cell);
+    }
+
+    //Plays a list of steps in a new game. Returns the rule broken, or null if every rule held.
+    String replay(int tableSize, int[] steps) {
+        Trial trial = new Trial(tableSize);
+        try {
+            for (int step : steps) {
+                if (trial.game.isFinished()) {
+                    break;
+                }
+                String broken = trial.apply(step, this);
+                if (broken != null) {
+                    return broken;
+                }
+            }
+            return null;
+        } finally {
+            trial.close();
+        }
+    }
+
+    /*Shrinks a list of steps that fails to the fewest that still fail. Runs of steps are left out, starting with half
+     *the list and halving the run each time nothing more can be left out, down to single steps. Then any two steps are
+     *left out together, as the players take turns, so a move usually only goes with the other players' moves.*/
+    static int[] shrink(int[] steps, Predicate<int[]> fails) {
+        for (int run = steps.length / 2; run >= 1; run /= 2) {
+            int start = 0;
+            while (start < steps.length) {
+                int[] shorter = new int[steps.length - Math.min(run, steps.length - start)];
+                System.arraycopy(steps, 0, shorter, 0, start);
+                System.arraycopy(steps, start + steps.length - shorter.length, shorter, start, shorter.length - start);
+                if (fails.test(shorter)) {
+                    steps = shorter;
+                } else {
+                    start += run;
+                }
+            }
+        }
+        boolean shrunk = true;
+        while (shrunk) {
+            shrunk = false;
+            for (int i = 0; i < steps.length && !shrunk; i++) {
+                for (int j = i + 1; j < steps.length && !shrunk; j++) {
+                    int[] shorter = new int[steps.length - 2];
+                    System.arraycopy(steps, 0, shorter, 0, i);
+                    System.arraycopy(steps, i + 1, shorter, i, j - i - 1);
+                    System.arraycopy(steps, j + 1, shorter, j - 1, steps.length - j - 1);
+                    if (fails.test(shorter)) {
+                        steps = shorter;
+                        shrunk = true;
+                    }
+                }
+            }
+        }
+        return steps;
+    }
+
+    //Shrinks a failure to the fewest steps that still fail, and the rule they break.
+    Failure shrink(Failure found) {
+        int[] steps = shrink(found.steps, shorter -> replay(found.tableSize, shorter) != null);
+        return new Failure(found.seed, found.tableSize, steps, replay(found.tableSize, steps));
+    }
+
+    //Returns the number of moves tried so far.
+    long getMoves() {
+        return moves.sum();
+    }
+
+    //Plays random games on each thread until the time runs out or a rule is broken.
+    private void run(long seed, long deadline) {
+        Random seeds = new Random(seed);
+        while (failure == null && System.currentTimeMillis() < deadline) {
+            Failure found = fuzz(seeds.nextLong());
+            if (found != null && failure == null) {
+                failure = found;
+            }
+        }
+    }
+
+    //Fuzzes on the given number of threads until the time runs out or a rule is broken, and returns the counts.
+    private static GameFuzzer measure(int seconds, int threadCount) throws InterruptedException {
+        GameFuzzer fuzzer = new GameFuzzer();
+        long seed = System.nanoTime();
+        long deadline = System.currentTimeMillis() + seconds * 1000L;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            long threadSeed = seed + i;
+            threads[i] = new Thread(() -> fuzzer.run(threadSeed, deadline), "Fuzzer-" + (i + 1));
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return fuzzer;
+    }
+
+    //Prints the counts of a run that took the given number of seconds.
+    private void report(int threadCount, double elapsed) {
+        System.out.println("threads=" + threadCount + " seconds=" + String.format("%.1f", elapsed)
+                + " games=" + games.sum() + " steps=" + steps.sum() + " moves=" + moves.sum()
+                + " legalMoves=" + legalMoves.sum());
+        System.out.println("movesPerSecond=" + Math.round(moves.sum() / elapsed)
+                + " stepsPerSecond=" + Math.round(steps.sum() / elapsed)
+                + " gamesPerSecond=" + Math.round(games.sum() / elapsed));
+    }
+
+    //Prints the first failure found, shrunk, and exits with an error. Does nothing if every rule held.
+    private void reportFailure() {
+        if (failure == null) {
+            System.out.println("failures=0");
+        } else {
+            System.out.println("failures=1");
+            System.out.println(shrink(failure));
+            System.exit(1);
+        }
+    }
+
+    /*Main method entry point. Takes the number of seconds to fuzz for, and the number of threads, one per core, or
+     *"scale" to compare runs on more and more threads. "replay" and a seed plays that seed's game again instead.*/
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length > 1 && args[0].equals("replay")) {
+            GameFuzzer fuzzer = new GameFuzzer();
+            fuzzer.failure = fuzzer.fuzz(Long.parseLong(args[1]));
+            System.out.println("seed=" + args[1] + " steps=" + fuzzer.steps.sum() + " moves=" + fuzzer.moves.sum()
+                    + " legalMoves=" + fuzzer.legalMoves.sum());
+            fuzzer.reportFailure();
+            return;
+        }
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SECONDS;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        if (args.length > 1 && args[1].equals("scale")) {
+            //Each run is compared with the one on a single thread. Perfect scaling would match the thread count.
+            double single = 0;
+            for (int threadCount = 1; ; threadCount = Math.min(threadCount * 2, cores)) {
+                long start = System.nanoTime();
+                GameFuzzer fuzzer = measure(seconds, threadCount);
+                double elapsed = (System.nanoTime() - start) / 1e9;
+                fuzzer.report(threadCount, elapsed);
+                double rate = fuzzer.moves.sum() / elapsed;
+                if (threadCount == 1) {
+                    single = rate;
+                }
+                System.out.println("scaling=" + String.format("%.2f", single == 0 ? 0 : rate / single) + "x");
+                if (fuzzer.failure != null || threadCount == cores) {
+                    fuzzer.reportFailure();
+                    return;
+                }
+            }
+        }
+
+        int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : cores;
+        long start = System.nanoTime();
+        GameFuzzer fuzzer = measure(seconds, threadCount);
+        fuzzer.report(threadCount, (System.nanoTime() - start) / 1e9);
+        fuzzer.reportFailure();
+    }
+}
@@ -1,6 +1,32 @@
 package SocketBasedGame;
 
 import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 public class GameJUnitTests {
@@ -106,4 +132,848 @@ public class GameJUnitTests {
          *Should return false as even if a tile isn't empty it still has to have the same mark.*/
         assertEquals(false, game.useCheckAdjacent(x, y+2, mark.ordinal()));
     }
-}
\ No newline at end of file
+
+    //This test checks the tile counts used for scoring follow placements, including tiles taken with Replacement.
+    @Test
+    public void testScoreCounters(){
+        game = new Game();
+        game.setHadFirstTrue();
+
+        //Give red two tiles and green one tile.
+        game.setTile(0, 0, mark.ordinal());
+        game.setTile(0, 1, mark.ordinal());
+        game.setTile(0, 2, opMark.ordinal());
+        assertEquals(2, game.getScore(mark));
+        assertEquals(1, game.getScore(opMark));
+        assertEquals(Game.ROWS * Game.COLUMNS - 3, game.getScore(PlayerMark.NONE));
+
+        /*Green takes one of red's tiles WITH replacement.
+         *The tile should move from red's count to green's count.*/
+        assertEquals(true, game.makeMove(InfluenceCard.REPLACEMENT.toString(), 0, 1, opMark.ordinal()));
+        assertEquals(1, game.getScore(mark));
+        assertEquals(2, game.getScore(opMark));
+        assertEquals(Game.ROWS * Game.COLUMNS - 3, game.getScore(PlayerMark.NONE));
+        assertEquals(false, game.boardFull());
+    }
+
+    //This test encodes a board in each encoding and checks decoding it gives back the same board.
+    @Test
+    public void testBoardEncodings(){
+        int[][] board = new int[Game.ROWS][Game.COLUMNS];
+        //A long run of red, a long run of empty tiles and some single tiles of each mark.
+        for (int j = 0; j < Game.COLUMNS; j++) {
+            board[1][j] = mark.ordinal();
+        }
+        for (int i = 0; i < PlayerMark.values().length; i++) {
+            board[4][i] = i;
+        }
+        board[5][9] = PlayerMark.PINK.ordinal();
+
+        for (BoardEncoding encoding : BoardEncoding.values()) {
+            int[][] decoded = new int[Game.ROWS][Game.COLUMNS];
+            BoardCodec.decode(BoardCodec.encode(board, encoding), decoded);
+            for (int i = 0; i < Game.ROWS; i++) {
+                assertArrayEquals(board[i], decoded[i]);
+            }
+        }
+    }
+
+    //This test rates some games, checks the ranks and top players, and checks the ratings are still there when reopened.
+    @Test
+    public void testRatings() throws IOException {
+        File file = File.createTempFile("ratings", ".dat");
+        file.delete();
+        file.deleteOnExit();
+        RatingStore ratings = new RatingStore(file);
+
+        //Two players who were equal before the game should gain and lose the same amount.
+        ratings.apply(new String[]{"alice", "bob"}, new int[]{30, 20});
+        assertEquals("alice 1516 1 2", ratings.getRating("alice"));
+        assertEquals("bob 1484 2 2", ratings.getRating("bob"));
+
+        //A three player game with a new player in it.
+        ratings.apply(new String[]{"carol", "bob", "alice"}, new int[]{25, 25, 10});
+        assertEquals("carol 1508 alice 1499 bob 1493", ratings.getTop(3));
+        assertEquals("carol 1508", ratings.getTop(1));
+        assertEquals(null, ratings.getRating("dave"));
+        //Carol and bob tied, and the win goes to bob, who joined later, as in Game.getLeader().
+        assertEquals(1, Game.leaderOf(new int[]{25, 25, 10}, 0, 3));
+        ratings.close();
+
+        //Reopening the file should give back the same ratings.
+        ratings = new RatingStore(file);
+        assertEquals("carol 1508 alice 1499 bob 1493", ratings.getTop(10));
+        assertEquals("bob 1493 3 3", ratings.getRating("bob"));
+        ratings.close();
+    }
+
+    //This test checks a token bucket allows a burst, then refuses commands until enough time has passed.
+    @Test
+    public void testTokenBucket(){
+        //2 commands a second with a burst of 3.
+        TokenBucket bucket = new TokenBucket(2, 3);
+        long now = System.nanoTime();
+        assertEquals(true, bucket.tryAcquire(now));
+        assertEquals(true, bucket.tryAcquire(now));
+        assertEquals(true, bucket.tryAcquire(now));
+        assertEquals(false, bucket.tryAcquire(now));
+
+        //Half a second gives one more token, and waiting longer never gives more than the burst.
+        assertEquals(true, bucket.tryAcquire(now + 500000000L));
+        assertEquals(false, bucket.tryAcquire(now + 500000000L));
+        now += 10000000000L;
+        for (int i = 0; i < 3; i++) {
+            assertEquals(true, bucket.tryAcquire(now));
+        }
+        assertEquals(false, bucket.tryAcquire(now));
+        //A token given back can be used again.
+        bucket.release();
+        assertEquals(true, bucket.tryAcquire(now));
+        assertEquals(false, bucket.tryAcquire(now));
+
+        //A rate of 0 turns the limit off.
+        bucket = new TokenBucket(0, 1);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(true, bucket.tryAcquire());
+        }
+    }
+
+    //This test splits some commands, including badly formed ones, and checks the words are read back correctly.
+    @Test
+    public void testCommandParsing() throws IOException {
+        Command command = new Command();
+
+        //A move with a request ID.
+        command.parse("#12 MOVE DOUBLE 3 7");
+        assertEquals(Opcode.MOVE, command.getOpcode());
+        assertEquals(12, command.getRequestId());
+        assertEquals(4, command.size());
+        assertEquals(InfluenceCard.DOUBLE, command.getCard(1));
+        assertEquals(3, command.getInt(2));
+        assertEquals(7, command.getInt(3));
+
+        //Bad words give back INVALID or null instead of throwing.
+        command.parse("MOVE TRIPLE x 99999999999");
+        assertEquals(Command.NO_REQUEST, command.getRequestId());
+        assertEquals(null, command.getCard(1));
+        assertEquals(Command.INVALID, command.getInt(2));
+        assertEquals(Command.INVALID, command.getInt(3));
+        assertEquals(Command.INVALID, command.getInt(4));
+
+        //Unknown commands, extra spaces and a request ID that isn't a number.
+        assertEquals(Opcode.UNKNOWN, command.parse("MOVES NONE 1 1").getOpcode());
+        assertEquals(Opcode.UNKNOWN, command.parse("").getOpcode());
+        command.parse("  TURN   GREEN ");
+        assertEquals(Opcode.TURN, command.getOpcode());
+        assertEquals(PlayerMark.GREEN, command.getMark(1));
+        assertEquals("TURN   GREEN", command.toString());
+        assertEquals(Opcode.UNKNOWN, command.parse("#x SCORE").getOpcode());
+
+        //A line read without being split can have just its request ID and opcode looked up, as the rate limit does.
+        CommandReader reader = new CommandReader(new StringReader("#5 END\nMOVE NONE 1 2\n"));
+        assertEquals(true, reader.readLine(command));
+        command.tokenizeHead();
+        assertEquals(Opcode.END, command.getOpcode());
+        assertEquals(5, command.getRequestId());
+        assertEquals(true, reader.readLine(command));
+        command.tokenize();
+        assertEquals(4, command.size());
+        assertEquals(2, command.getInt(3));
+        assertEquals(false, reader.readLine(command));
+
+        //A CELLS message with words that aren't tiles leaves the board alone.
+        int[][] board = new int[2][2];
+        MoveResult.applyCell(board, Command.INVALID, 0, 1);
+        MoveResult.applyCell(board, 1, 1, 99);
+        MoveResult.applyCell(board, 1, 1, PlayerMark.RED.ordinal());
+        assertArrayEquals(new int[]{0, PlayerMark.RED.ordinal()}, board[1]);
+    }
+
+    //This test checks the matchmaker starts a full table straight away, leaving out a player far from the others.
+    @Test
+    public void testMatchmakingFullTable(){
+        long now = 100000;
+        List<Matchmaker.Ticket> queue = new ArrayList<>();
+
+        //Two players who have only just joined wait for more players.
+        queue.add(new Matchmaker.Ticket(null, null, 1500, now));
+        queue.add(new Matchmaker.Ticket(null, null, 1520, now));
+        assertEquals(0, Matchmaker.formTables(queue, now).size());
+
+        //Three more similar players fill a table, which starts straight away.
+        for (int i = 0; i < 3; i++) {
+            queue.add(new Matchmaker.Ticket(null, null, 1490 + i, now));
+        }
+        //A sixth player is too far away in rating to take a seat from the others.
+        queue.add(new Matchmaker.Ticket(null, null, 2500, now));
+        List<List<Matchmaker.Ticket>> tables = Matchmaker.formTables(queue, now);
+        assertEquals(1, tables.size());
+        assertEquals(5, tables.get(0).size());
+        assertEquals(1, queue.size());
+    }
+
+    //This test checks players who can't fill a table wait until a smaller table is allowed.
+    @Test
+    public void testMatchmakingSmallerTables(){
+        long now = 100000;
+        List<Matchmaker.Ticket> queue = new ArrayList<>();
+        queue.add(new Matchmaker.Ticket(null, null, 2500, now));
+        queue.add(new Matchmaker.Ticket(null, null, 2500, now));
+        assertEquals(0, Matchmaker.formTables(queue, now + ServerConfig.MATCH_SHRINK_MILLIS).size());
+        List<List<Matchmaker.Ticket>> tables = Matchmaker.formTables(queue, now + 3 * ServerConfig.MATCH_SHRINK_MILLIS);
+        assertEquals(1, tables.size());
+        assertEquals(2, tables.get(0).size());
+        assertEquals(0, queue.size());
+    }
+
+    //This test checks the rating spread widens as players wait, but every player at a table is within it of the rest.
+    @Test
+    public void testMatchmakingSpread(){
+        long now = 100000;
+        List<Matchmaker.Ticket> queue = new ArrayList<>();
+        //After 3 seconds the spread is 400. Both players are that close to the first, but 700 apart, so only one sits.
+        queue.add(new Matchmaker.Ticket(null, null, 1500, now));
+        queue.add(new Matchmaker.Ticket(null, null, 1150, now));
+        queue.add(new Matchmaker.Ticket(null, null, 1850, now));
+        List<List<Matchmaker.Ticket>> tables = Matchmaker.formTables(queue, now + 3 * ServerConfig.MATCH_SHRINK_MILLIS);
+        assertEquals(1, tables.size());
+        assertEquals(2, tables.get(0).size());
+        assertEquals(1, queue.size());
+    }
+
+    //This test checks a seated player who leaves before placing their first tile counts as ready, so the game starts.
+    @Test
+    public void testAbandonBeforeFirstTile(){
+        BotPool pool = new BotPool(1, 2);
+        game = new Game(2);
+        BotPlayer first = new BotPlayer(game, PlayerMark.RED, pool);
+        BotPlayer second = new BotPlayer(game, PlayerMark.GREEN, pool);
+        game.addPlayer(first);
+        game.addPlayer(second);
+        //The same player being ready twice only counts once, so the game waits for the second player.
+        game.playerReady(first);
+        game.playerReady(first);
+        assertEquals(PlayerMark.NONE, game.getPlayerMarkTurn());
+        game.abandon(second);
+        assertEquals(PlayerMark.RED, game.getPlayerMarkTurn());
+        pool.shutdown();
+    }
+
+    //This test checks a first tile always goes on an empty tile, including the last one left, and none on a full board.
+    @Test
+    public void testInitialPlacement(){
+        Game game = new Game();
+        for (int x = 0; x < Game.ROWS; x++) {
+            for (int y = 0; y < Game.COLUMNS; y++) {
+                if (x != 4 || y != 7) {
+                    game.setTile(x, y, PlayerMark.BLUE.ordinal());
+                }
+            }
+        }
+        assertEquals(true, game.placeInitialTile(mark.ordinal()));
+        assertEquals(1, game.getScore(mark));
+        assertEquals(true, game.boardFull());
+        assertEquals(false, game.placeInitialTile(opMark.ordinal()));
+
+        FreeCells cells = new FreeCells(10);
+        cells.remove(3);
+        cells.remove(9);
+        cells.remove(3);
+        cells.add(9);
+        assertEquals(9, cells.size());
+        assertEquals(false, cells.contains(3));
+        assertEquals(true, cells.contains(9));
+
+        //A board too big for tiles held as shorts is refused.
+        boolean refused = false;
+        try {
+            new FreeCells(Short.MAX_VALUE + 1);
+        } catch (IllegalArgumentException e) {
+            refused = true;
+        }
+        assertEquals(true, refused);
+    }
+
+    //This test checks board slots are reused once given back, and come back empty, and that an ended game keeps its board.
+    @Test
+    public void testBoardSlab(){
+        BoardSlab slab = new BoardSlab(Game.ROWS * Game.COLUMNS);
+        int first = slab.allocate();
+        int second = slab.allocate();
+        slab.put(first, 5, (byte) 3);
+        slab.put(second, 5, (byte) 4);
+        assertEquals(3, slab.get(first, 5));
+        slab.free(first);
+        assertEquals(1, slab.getSlotsInUse());
+        assertEquals(first, slab.allocate());
+        assertEquals(0, slab.get(first, 5));
+        assertEquals(4, slab.get(second, 5));
+
+        //A slot whose owner is dropped without giving it back is reclaimed once the owner is garbage collected.
+        slab.allocate(new Object());
+        assertEquals(3, slab.getSlotsInUse());
+        for (int tries = 0; tries < 50 && slab.getReclaimed() == 0; tries++) {
+            System.gc();
+            slab.free(slab.allocate());
+        }
+        assertEquals(1L, slab.getReclaimed());
+        assertEquals(2, slab.getSlotsInUse());
+
+        game = new Game();
+        game.setTile(2, 3, mark.ordinal());
+        game.endGame();
+        assertEquals(1, game.getScore(mark));
+        Game next = new Game();
+        next.setTile(2, 3, opMark.ordinal());
+        assertEquals(true, next.useCheckAdjacent(2, 2, opMark.ordinal()));
+        assertEquals(false, game.useCheckAdjacent(2, 2, opMark.ordinal()));
+    }
+
+    //This test checks a game written to disk reads back with the same board, players and latest event number.
+    @Test
+    public void testHibernationRoundTrip() throws IOException {
+        game = new Game(2);
+        try (ServerSocket listener = new ServerSocket(0);
+             Socket client = new Socket("localhost", listener.getLocalPort());
+             Socket server = listener.accept()) {
+            GameService player = new GameService(game, server, null, mark);
+            game.addPlayer(player);
+            game.setTile(0, 0, mark.ordinal());
+            game.setTile(5, 9, opMark.ordinal());
+            game.sendBoard();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            game.writeTo(new DataOutputStream(bytes));
+
+            Game restored = Game.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            assertEquals(1, restored.getScore(mark));
+            assertEquals(1, restored.getScore(opMark));
+            //Events from before the game was written aren't kept, but numbering carries on from them.
+            assertEquals(game.getSeq(), restored.getSeq());
+            assertArrayEquals(new String[]{player.getToken()},
+                    Game.readTokens(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+            Player copy = restored.getPlayers().get(0);
+            assertEquals(player.getToken(), copy.getToken());
+            assertEquals(mark, copy.getPlayerMark());
+            assertEquals(copy, SessionRegistry.find(player.getToken()));
+            SessionRegistry.remove(player.getToken(), (GameService) copy);
+        }
+    }
+
+    //This test checks a player read back from disk who doesn't reconnect within the resume window is treated as left.
+    @Test
+    public void testHibernatedPlayerExpires() throws IOException {
+        game = new Game(2);
+        try (ServerSocket listener = new ServerSocket(0);
+             Socket client = new Socket("localhost", listener.getLocalPort());
+             Socket server = listener.accept()) {
+            GameService player = new GameService(game, server, null, mark);
+            game.addPlayer(player);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            game.writeTo(new DataOutputStream(bytes));
+
+            Game restored = Game.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            GameService dormant = (GameService) restored.getPlayers().get(0);
+            long now = System.currentTimeMillis();
+            assertEquals(false, dormant.expire(now));
+            assertEquals(true, dormant.expire(now + ServerConfig.RESUME_WINDOW_MILLIS + 1));
+            assertEquals(true, dormant.isBlocked());
+            assertEquals(null, SessionRegistry.find(player.getToken()));
+            //A player can only leave once.
+            assertEquals(false, dormant.expire(now + ServerConfig.RESUME_WINDOW_MILLIS + 1));
+        }
+    }
+
+    //This test checks a finished game is archived with its moves, and reads back from only the columns asked for.
+    @Test
+    public void testArchive() throws IOException {
+        File file = File.createTempFile("games", ".arc");
+        file.delete();
+        GameArchive archive = new GameArchive(file);
+        Thread writer = new Thread(archive);
+        writer.setDaemon(true);
+        writer.start();
+        GameArchive.setShared(archive);
+        try {
+            game = new Game();
+            assertEquals(true, game.makeMove(InfluenceCard.NONE, 0, 0, mark.ordinal()));
+            assertEquals(true, game.makeMove(InfluenceCard.NONE, 0, 1, opMark.ordinal()));
+            assertEquals(false, game.makeMove(InfluenceCard.NONE, 5, 9, mark.ordinal()));
+            assertEquals(true, game.makeMove(InfluenceCard.REPLACEMENT, 0, 1, mark.ordinal()));
+            game.endGame();
+            assertEquals(true, archive.awaitWritten(5000));
+        } finally {
+            GameArchive.setShared(null);
+            writer.interrupt();
+            archive.close();
+        }
+
+        try (ArchiveReader reader = new ArchiveReader(file)) {
+            ArchiveReader.RowGroup group = reader.next("moveCount", "card", "taken", "cell");
+            assertEquals(1, group.getGames());
+            assertEquals(3, group.getMoves());
+            assertEquals(3, group.getColumn("moveCount").get(0));
+            assertEquals("REPLACEMENT", group.getColumn("card").getText(2));
+            assertEquals("GREEN", group.getColumn("taken").getText(2));
+            assertEquals(1, group.getColumn("cell").get(2));
+            assertEquals(null, group.getColumn("mover"));
+            assertEquals(null, reader.next("card"));
+        }
+
+        //A row group left part written, e.g. by a crash, is cut off when the archive is next opened.
+        long complete = file.length();
+        try (DataOutputStream partial = new DataOutputStream(new FileOutputStream(file, true))) {
+            partial.writeInt(GameArchive.GROUP_MAGIC);
+            partial.write(new byte[7]);
+        }
+        GameArchive reopened = new GameArchive(file);
+        assertEquals(complete, file.length());
+        reopened.write(Collections.singletonList(new GameArchive.Row(2, Game.TOPOLOGY, mark, new byte[]{1, 2},
+                new String[]{null, null}, new int[]{1, 1}, new byte[]{0, 0}, new byte[0])));
+
+        /*A game on a 20x20 board has tiles past 255, can have more than 255 moves and a player can hold more than 255
+         *tiles. It shares a group with a game on this server's board, and each keeps the board it was played on.*/
+        BoardTopology large = BoardTopology.get(BoardTopology.Kind.HEX, 20, 20);
+        byte[] moves = new byte[300 * Game.MOVE_BYTES];
+        for (int move = 0; move < 300; move++) {
+            moves[move * Game.MOVE_BYTES] = (byte) mark.ordinal();
+            moves[move * Game.MOVE_BYTES + 2] = (byte) ((move + 100) >>> 8);
+            moves[move * Game.MOVE_BYTES + 3] = (byte) (move + 100);
+            assertEquals(move + 100, Game.moveCell(moves, move * Game.MOVE_BYTES));
+        }
+        reopened.write(Arrays.asList(
+                new GameArchive.Row(2, large, mark, new byte[]{1, 2}, new String[]{null, null}, new int[]{300, 0},
+                        new byte[]{0, 0}, moves),
+                new GameArchive.Row(2, Game.TOPOLOGY, opMark, new byte[]{1, 2}, new String[]{null, null},
+                        new int[]{0, 1}, new byte[]{0, 0}, new byte[]{(byte) opMark.ordinal(), 0, 0, 7, 0, 0})));
+        reopened.close();
+        try (ArchiveReader reader = new ArchiveReader(file)) {
+            assertEquals(1, reader.next("winner").getGames());
+            assertEquals("RED", reader.next("winner").getColumn("winner").getText(0));
+            ArchiveReader.RowGroup group = reader.next("moveCount", "score", "cell", "mover");
+            assertEquals(301, group.getMoves());
+            assertEquals(large, group.getBoard(0));
+            assertEquals(Game.TOPOLOGY, group.getBoard(1));
+            assertEquals(300, group.getColumn("moveCount").get(0));
+            assertEquals(1, group.getColumn("moveCount").get(1));
+            assertEquals(300, group.getColumn("score").get(0));
+            assertEquals(399, group.getColumn("cell").get(299));
+            assertEquals(7, group.getColumn("cell").get(300));
+            assertEquals("GREEN", group.getColumn("mover").getText(300));
+            assertEquals(null, reader.next("winner"));
+        }
+        file.delete();
+    }
+
+    //This test checks a lone player is given a bot once they have waited long enough, and that bots play a game to the end.
+    @Test
+    public void testBots() throws InterruptedException {
+        long now = 100000;
+        List<Matchmaker.Ticket> queue = new ArrayList<>();
+        queue.add(new Matchmaker.Ticket(null, null, 1500, now));
+        assertEquals(0, Matchmaker.formTables(queue, now + 9999, 1, 10000).size());
+        assertEquals(0, Matchmaker.formTables(queue, now + 10000, 0, 10000).size());
+        //Bots are off unless a wait is set.
+        assertEquals(0, Matchmaker.formTables(queue, now + 10000, 1, 0).size());
+        List<List<Matchmaker.Ticket>> tables = Matchmaker.formTables(queue, now + 10000, 1, 10000);
+        assertEquals(1, tables.size());
+        assertEquals(Matchmaker.Ticket.BOT, tables.get(0).get(1));
+
+        BotPool pool = new BotPool(2, 10);
+        assertEquals(true, pool.reserve(3));
+        game = new Game(3);
+        List<BotPlayer> bots = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            BotPlayer bot = new BotPlayer(game, PlayerMark.values()[i], pool);
+            game.addPlayer(bot);
+            bots.add(bot);
+        }
+        for (BotPlayer bot : bots) {
+            bot.start();
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!game.isFinished() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(true, game.isFinished());
+        assertEquals(true, pool.getMoves() > 0);
+        assertEquals(10, pool.getFreeSeats());
+
+        //Seats claimed past the cap still get their moves queued, and work is only turned away once shut down.
+        for (int i = 0; i < 12; i++) {
+            pool.claim();
+        }
+        assertEquals(0, pool.getFreeSeats());
+        assertEquals(true, pool.submit(() -> { }));
+        pool.shutdown();
+        assertEquals(false, pool.submit(() -> { }));
+    }
+
+    //This test checks that clicking any pixel of the board picks the tile drawn under it, on an uneven size.
+    @Test
+    public void testBoardViewClicks() {
+        BoardView view = new BoardView(3, 7);
+        view.setSize(100, 101);
+        for (int y = 0; y < 101; y++) {
+            //The tile drawn at y starts at or above it, and the next one starts below it.
+            int row = view.rowAt(y);
+            assertEquals(true, (row * 101) / 3 <= y && ((row + 1) * 101) / 3 > y);
+        }
+        for (int x = 0; x < 100; x++) {
+            int column = view.columnAt(x);
+            assertEquals(true, (column * 100) / 7 <= x && ((column + 1) * 100) / 7 > x);
+        }
+    }
+
+    //This test checks each board topology's table of touching tiles, at the corners, edges and middle of the board.
+    @Test
+    public void testTopology() {
+        //A corner, an edge and a middle tile of a 6x10 board.
+        int[] tiles = {0, 5, 25};
+        int[][] expected = {{3, 5, 8}, {8, 8, 8}, {2, 4, 6}, {2, 3, 4}};
+        for (BoardTopology.Kind kind : BoardTopology.Kind.values()) {
+            BoardTopology topology = BoardTopology.get(kind, 6, 10);
+            assertEquals(topology, BoardTopology.get(kind, 6, 10));
+            int[] first = topology.getFirst();
+            int[] neighbours = topology.getNeighbours();
+            for (int i = 0; i < tiles.length; i++) {
+                assertEquals(expected[kind.ordinal()][i], first[tiles[i] + 1] - first[tiles[i]]);
+            }
+            //Every tile touches the tiles that touch it, and never itself.
+            for (int tile = 0; tile < topology.getTiles(); tile++) {
+                for (int k = first[tile]; k < first[tile + 1]; k++) {
+                    int neighbour = neighbours[k];
+                    assertEquals(false, neighbour == tile);
+                    boolean back = false;
+                    for (int j = first[neighbour]; j < first[neighbour + 1]; j++) {
+                        back = back || neighbours[j] == tile;
+                    }
+                    assertEquals(true, back);
+                }
+            }
+        }
+
+        //On a torus, the top left corner touches the bottom right.
+        byte[] board = new byte[60];
+        int red = PlayerMark.RED.ordinal();
+        board[59] = (byte) red;
+        assertEquals(true, BoardTopology.get(BoardTopology.Kind.TOROIDAL, 6, 10).touches(board, 0, red));
+        assertEquals(false, BoardTopology.get(BoardTopology.Kind.RECTANGULAR, 6, 10).touches(board, 0, red));
+        //A 1x2 torus wraps back to the same tiles, which are only counted once.
+        assertEquals(1, BoardTopology.get(BoardTopology.Kind.TOROIDAL, 1, 2).getNeighbours().length / 2);
+        //Boards far bigger than the original 6x10 can be used.
+        assertEquals(20000, BoardTopology.get(BoardTopology.Kind.HEX, 100, 200).getTiles());
+    }
+
+    //This test checks every rule holds in random games, that a seed replays the same game, and that shrinking works.
+    @Test
+    public void testFuzzer() {
+        //Every rule holds in a few hundred random games, and a failure would be shown shrunk.
+        GameFuzzer fuzzer = new GameFuzzer();
+        for (long seed = 0; seed < 300; seed++) {
+            GameFuzzer.Failure failure = fuzzer.fuzz(seed);
+            assertEquals("", failure == null ? "" : fuzzer.shrink(failure).toString());
+        }
+
+        //A seed plays the same game each time, so a failure's seed is enough to play it again.
+        GameFuzzer first = new GameFuzzer();
+        GameFuzzer second = new GameFuzzer();
+        first.fuzz(42);
+        second.fuzz(42);
+        assertEquals(first.getMoves(), second.getMoves());
+        assertEquals(true, first.getMoves() > 0);
+
+        //Shrinking keeps only the steps needed for the failure, here steps 3 and 7 together.
+        int[] steps = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        int[] shrunk = GameFuzzer.shrink(steps, shorter -> {
+            boolean three = false;
+            boolean seven = false;
+            for (int step : shorter) {
+                three = three || step == 3;
+                seven = seven || step == 7;
+            }
+            return three && seven;
+        });
+        assertArrayEquals(new int[]{3, 7}, shrunk);
+
+        //A step keeps any tile of a large board.
+        int step = GameFuzzer.step(GameFuzzer.MOVE, mark.ordinal(), InfluenceCard.DOUBLE, 1000);
+        assertEquals("MOVE RED DOUBLE " + (1000 / Game.COLUMNS) + " " + (1000 % Game.COLUMNS),
+                GameFuzzer.describe(step));
+    }
+
+    //This test checks that the game records its flight recorder events, and only makes the ones being recorded.
+    @Test
+    public void testFlightRecorderEvents() throws IOException, InterruptedException {
+        File file = File.createTempFile("game", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String name : new String[]{"Broadcast", "BlockCheck", "Turn"}) {
+                recording.enable("SocketBasedGame." + name).withThreshold(Duration.ZERO);
+            }
+            recording.disable("SocketBasedGame.Command");
+            recording.start();
+            //Commands are turned off in this recording, so no event is made for them.
+            assertEquals(null, GameEvents.beginCommand());
+            BotPool pool = new BotPool(1, 2);
+            assertEquals(true, pool.reserve(2));
+            game = new Game(2);
+            BotPlayer first = new BotPlayer(game, PlayerMark.RED, pool);
+            BotPlayer second = new BotPlayer(game, PlayerMark.GREEN, pool);
+            game.addPlayer(first);
+            game.addPlayer(second);
+            first.start();
+            second.start();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!game.isFinished() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            pool.shutdown();
+            recording.stop();
+            recording.dump(file.toPath());
+        }
+
+        int broadcasts = 0;
+        int turns = 0;
+        int newlyBlocked = 0;
+        boolean gameOver = false;
+        for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+            String name = event.getEventType().getName();
+            if (name.equals("SocketBasedGame.Broadcast")) {
+                broadcasts++;
+            } else if (name.equals("SocketBasedGame.Turn")) {
+                turns++;
+            } else if (name.equals("SocketBasedGame.BlockCheck")) {
+                newlyBlocked += event.getInt("newlyBlocked");
+                gameOver = gameOver || event.getBoolean("gameOver");
+            }
+        }
+        file.delete();
+        assertEquals(true, game.isFinished());
+        assertEquals(true, broadcasts > 0 && turns > 0);
+        assertEquals(2, newlyBlocked);
+        assertEquals(true, gameOver);
+    }
+
+    //This test checks a newer board replaces the one still waiting to be sent, but never jumps ahead of a TURN.
+    @Test
+    public void testOutboundCoalescing() throws IOException {
+        try (ServerSocket listener = new ServerSocket(0);
+             Socket client = new Socket("localhost", listener.getLocalPort());
+             Socket server = listener.accept()) {
+            OutboundQueue queue = new OutboundQueue(server);
+            BufferedReader input = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            client.setSoTimeout(5000);
+            //Holding the queue's lock keeps its writer from sending anything until every message is queued.
+            synchronized (queue) {
+                queue.offerBoard("BOARD X");
+                queue.offer("TURN RED");
+                queue.offerBoard("BOARD X");
+                queue.offerBoard("BOARD Y");
+            }
+            assertEquals("BOARD X", input.readLine());
+            assertEquals("TURN RED", input.readLine());
+            assertEquals("BOARD Y", input.readLine());
+            queue.close();
+            assertEquals(null, input.readLine());
+        }
+    }
+
+    //This test checks a client that falls ServerConfig.OUTBOUND_HIGH_WATER messages behind is sent nothing more.
+    @Test
+    public void testOutboundHighWater() throws IOException {
+        try (ServerSocket listener = new ServerSocket(0);
+             Socket client = new Socket("localhost", listener.getLocalPort());
+             Socket server = listener.accept()) {
+            OutboundQueue queue = new OutboundQueue(server);
+            BufferedReader input = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            client.setSoTimeout(5000);
+            synchronized (queue) {
+                for (int i = 0; i <= ServerConfig.OUTBOUND_HIGH_WATER; i++) {
+                    queue.offer("MESSAGE " + i);
+                }
+            }
+            //The waiting messages are dropped and the client is disconnected.
+            assertEquals(null, input.readLine());
+            assertEquals(true, server.isClosed());
+            queue.offer("MESSAGE late");
+        }
+    }
+
+    //This test checks the router sends new players to a backend with players waiting, then to the least loaded one.
+    @Test
+    public void testRouterChoice() {
+        GameRouter.Backend busy = new GameRouter.Backend(new InetSocketAddress("localhost", 8081));
+        GameRouter.Backend quiet = new GameRouter.Backend(new InetSocketAddress("localhost", 8082));
+        List<GameRouter.Backend> backends = Arrays.asList(busy, quiet);
+
+        //No backend has reported a free seat yet.
+        assertEquals(null, GameRouter.choose(backends));
+
+        //A backend whose players are all in games is passed over for one with a player waiting, even with fewer seats.
+        busy.update(5, 20, 0);
+        quiet.update(6, 1, 1);
+        assertEquals(8082, GameRouter.choose(backends).getPort());
+
+        //The chosen player is counted at once, so the next player is sent to the backend that now has room.
+        assertEquals(8081, GameRouter.choose(backends).getPort());
+
+        //With nobody waiting anywhere the backend with the fewest players is used.
+        busy.update(10, 10, 0);
+        quiet.update(4, 16, 0);
+        assertEquals(8082, GameRouter.choose(backends).getPort());
+    }
+
+    //This test checks a RESUME is sent back to the backend named in its token, and fails if that backend has gone.
+    @Test
+    public void testRouterResume() {
+        Map<Integer, GameRouter.Backend> backends = new HashMap<>();
+        backends.put(8081, new GameRouter.Backend(new InetSocketAddress("localhost", 8081)));
+        backends.put(8082, new GameRouter.Backend(new InetSocketAddress("localhost", 8082)));
+
+        assertEquals(8082, GameRouter.findResume(backends, "RESUME 8082.abcdef 12").getPort());
+        assertEquals(null, GameRouter.findResume(backends, "RESUME 8083.abcdef 12"));
+        assertEquals(null, GameRouter.findResume(backends, "RESUME abcdef 12"));
+        assertEquals(null, GameRouter.findResume(backends, "RESUME x.abcdef 12"));
+        assertEquals(null, GameRouter.findResume(backends, "RESUME 8082.abcdef"));
+    }
+
+    //This test checks a client resuming with its session token is sent its mark again and then only what it missed.
+    @Test
+    public void testResume() throws IOException {
+        game = new Game(2);
+        try (ServerSocket listener = new ServerSocket(0);
+             Socket client = new Socket("localhost", listener.getLocalPort());
+             Socket server = listener.accept()) {
+            GameService service = new GameService(game, server, null, PlayerMark.RED);
+            BufferedReader input = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            client.setSoTimeout(5000);
+            assertEquals("@0 MESSAGE Welcome. You have connected.", input.readLine());
+            String token = input.readLine().split(" ")[3];
+            assertEquals("@0 " + Game.TOPOLOGY.toMessage(), input.readLine());
+            assertEquals(service, SessionRegistry.find(token));
+
+            game.makeMove(InfluenceCard.NONE, 0, 0, PlayerMark.RED.ordinal());
+            game.sendBoard();
+            game.makeMove(InfluenceCard.NONE, 5, 5, PlayerMark.GREEN.ordinal());
+            game.sendBoard();
+            assertEquals(2, game.getSeq());
+
+            //The client saw the first tile change, so only the second is replayed, numbered as it was first sent.
+            try (Socket again = new Socket("localhost", listener.getLocalPort());
+                 Socket serverAgain = listener.accept()) {
+                assertEquals(true, SessionRegistry.find(token).resume(serverAgain, null, 1));
+                BufferedReader replayed = new BufferedReader(new InputStreamReader(again.getInputStream()));
+                again.setSoTimeout(5000);
+                assertEquals("@2 MARK RED " + token, replayed.readLine());
+                assertEquals("@2 " + Game.TOPOLOGY.toMessage(), replayed.readLine());
+                assertEquals("@2 CELLS 5 5 " + PlayerMark.GREEN.ordinal(), replayed.readLine());
+                //The old connection is closed once the player has moved on to the new one.
+                assertEquals(null, input.readLine());
+            }
+            SessionRegistry.remove(token, service);
+        }
+    }
+
+    //This test checks the replay buffer gives the events after a sequence number, or null once any were overwritten.
+    @Test
+    public void testReplayBuffer() {
+        ReplayBuffer events = new ReplayBuffer(2);
+        assertArrayEquals(new String[0], events.since(0));
+        events.add("TURN RED");
+        events.add("CELLS 0 0 1");
+        assertArrayEquals(new String[]{"TURN RED", "CELLS 0 0 1"}, events.since(0));
+        events.add("TURN GREEN");
+        assertEquals(3, events.getLatest());
+        assertArrayEquals(new String[]{"CELLS 0 0 1", "TURN GREEN"}, events.since(1));
+        assertArrayEquals(new String[]{"TURN GREEN"}, events.since(2));
+        assertEquals(null, events.since(0));
+        //A client ahead of the game needs the whole board.
+        assertEquals(null, events.since(4));
+
+        //Events from before a game was read back from disk were never kept.
+        events.skipTo(10);
+        assertEquals(null, events.since(3));
+        assertArrayEquals(new String[0], events.since(10));
+        assertEquals(11, events.add("TURN RED"));
+        assertArrayEquals(new String[]{"TURN RED"}, events.since(10));
+        assertEquals(null, events.since(9));
+    }
+
+    //This test checks a stopping server tells the players waiting for a game, then turns new players away.
+    @Test
+    public void testDrain() throws IOException {
+        try (ServerSocket listener = new ServerSocket(0);
+             Socket early = new Socket("localhost", listener.getLocalPort());
+             Socket earlyServer = listener.accept()) {
+            BufferedReader earlyInput = new BufferedReader(new InputStreamReader(early.getInputStream()));
+            early.setSoTimeout(5000);
+            early.getOutputStream().write("NAME early\n".getBytes(StandardCharsets.UTF_8));
+            GameServer.admit(earlyServer);
+            assertEquals("MESSAGE Waiting for players.", earlyInput.readLine());
+            assertEquals(1, GameServer.getWaitingCount());
+
+            //No games are being played, so the drain finishes straight away once the waiting player has been told.
+            GameServer.drain();
+            assertEquals("MESSAGE Server shutting down.", earlyInput.readLine());
+            assertEquals(null, earlyInput.readLine());
+            assertEquals(0, GameServer.getWaitingCount());
+            assertEquals(0, GameServer.getFreeSeats());
+
+            try (Socket late = new Socket("localhost", listener.getLocalPort());
+                 Socket lateServer = listener.accept()) {
+                BufferedReader lateInput = new BufferedReader(new InputStreamReader(late.getInputStream()));
+                late.setSoTimeout(5000);
+                late.getOutputStream().write("NAME late\n".getBytes(StandardCharsets.UTF_8));
+                GameServer.admit(lateServer);
+                assertEquals("MESSAGE Server shutting down.", lateInput.readLine());
+                assertEquals(null, lateInput.readLine());
+            }
+        }
+    }
+
+    //This test checks a standby applying the replicator's batches holds every unfinished game, and drops finished ones.
+    @Test
+    public void testReplication() throws IOException {
+        BotPool pool = new BotPool(1, 4);
+        game = new Game(2);
+        BotPlayer first = new BotPlayer(game, PlayerMark.RED, pool);
+        game.addPlayer(first);
+        game.addPlayer(new BotPlayer(game, PlayerMark.GREEN, pool));
+        //A game already written to disk is sent as it was written.
+        Game idle = new Game(2);
+        BotPlayer idleFirst = new BotPlayer(idle, PlayerMark.RED, pool);
+        idle.addPlayer(idleFirst);
+        idle.addPlayer(new BotPlayer(idle, PlayerMark.GREEN, pool));
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        idle.writeTo(new DataOutputStream(stored));
+
+        Replicator replicator = new Replicator(0, () -> Collections.singletonList(game),
+                () -> Collections.singletonList(stored.toByteArray()));
+        Thread sender = new Thread(replicator, "Replicator");
+        sender.setDaemon(true);
+        sender.start();
+        Replicator.setShared(replicator);
+        try (Socket connection = new Socket("localhost", replicator.getPort())) {
+            connection.setSoTimeout(5000);
+            DataInputStream in = new DataInputStream(connection.getInputStream());
+            Standby standby = new Standby("localhost", replicator.getPort());
+            Map<String, byte[]> games = new HashMap<>();
+
+            //The first batch holds the game in memory and the one on disk, each under its first player's token.
+            standby.applyBatch(in, games);
+            assertEquals(2, games.size());
+            assertArrayEquals(stored.toByteArray(), games.get(idleFirst.getToken()));
+            byte[] copy = games.get(first.getToken());
+            assertEquals(first.getToken(), Game.readTokens(new DataInputStream(new ByteArrayInputStream(copy)))[0]);
+
+            //A game that finishes is sent as a REMOVE, so the standby has nothing of it to take over.
+            game.endGame();
+            while (games.containsKey(first.getToken())) {
+                standby.applyBatch(in, games);
+            }
+            assertEquals(1, games.size());
+        } finally {
+            Replicator.setShared(null);
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package SocketBasedGame;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/*This class is the front-end of a cluster of game servers. Clients connect to the router on the public port, as they
+ *would to a single server, and the router passes each one on to a backend GameServer and copies the bytes both ways.
+ *Backends connect to the routers control port and report how many players they have, so new players can be sent to
+ *the server with room for them. A reconnecting player is sent back to the server their session token came from.
+ *Each client uses two threads while connected, one copying each way, so game.router.maxConnections clients use at
+ *most twice that many threads and their 8KB buffers. Clients over the limit are turned away.
+ *To run a cluster on one machine, start the router and then any number of backends on their own ports:
+ *  java SocketBasedGame.GameRouter 8080 8090
+ *  java SocketBasedGame.GameServer 8081 8090
+ *  java SocketBasedGame.GameServer 8082 8090*/
+public class GameRouter {
+
+    //The port that clients connect to.
+    public static final int PORT = 8080;
+    //The port that backends connect to so they can report their load.
+    public static final int CONTROL_PORT = 8090;
+    //The size of the buffer used to copy bytes each way for one client.
+    private static final int BUFFER_SIZE = 8192;
+
+    //The backends currently connected to the router, indexed by the port their clients connect to.
+    private static final Map<Integer, Backend> backends = new ConcurrentHashMap<>();
+    //The number of clients that can still be connected before new ones are turned away.
+    private static final Semaphore connections = new Semaphore(ServerConfig.ROUTER_MAX_CONNECTIONS);
+
+    //Main method entry point.
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : PORT;
+        int controlPort = args.length > 1 ? Integer.parseInt(args[1]) : CONTROL_PORT;
+
+        //Accept backends in their own thread so they can join while clients are being routed.
+        ServerSocket control = new ServerSocket(controlPort);
+        Thread controlThread = new Thread(() -> acceptBackends(control), "RouterControl");
+        controlThread.setDaemon(true);
+        controlThread.start();
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        System.out.println("Started The Router On Port " + port + ", Backends Report To Port " + controlPort);
+
+        while (true) {
+            SocketChannel client = server.accept();
+            if (!connections.tryAcquire()) {
+                try {
+                    reject(client, "Router full.");
+                } catch (IOException e) {
+                    close(client);
+                }
+                continue;
+            }
+            Thread downstream = new Thread(() -> route(client), "RouterDownstream");
+            downstream.setDaemon(true);
+            downstream.start();
+        }
+    }
+
+    //Accepts backend connections and reads their load reports until they disconnect.
+    private static void acceptBackends(ServerSocket control) {
+        while (true) {
+            try {
+                Socket connection = control.accept();
+                Thread reader = new Thread(() -> readReports(connection), "BackendReports");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*Reads the reports from one backend. The first is BACKEND port, the port its clients connect to. Each one after is
+     *LOAD players seats waiting, the number of players it has, the number of seats still free and the number of players
+     *waiting for a game to start. The backend is forgotten when its connection closes.*/
+    private static void readReports(Socket connection) {
+        Backend backend = null;
+        try (BufferedReader input = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
+            String line;
+            while ((line = input.readLine()) != null) {
+                String[] report = line.trim().split(" ");
+                if (report[0].equals("BACKEND") && report.length == 2 && backend == null) {
+                    backend = new Backend(new InetSocketAddress(connection.getInetAddress(), Integer.parseInt(report[1])));
+                    backends.put(backend.address.getPort(), backend);
+                    System.out.println("Backend Joined On Port " + backend.address.getPort());
+                } else if (report[0].equals("LOAD") && report.length == 4 && backend != null) {
+                    backend.update(Integer.parseInt(report[1]), Integer.parseInt(report[2]),
+                            Integer.parseInt(report[3]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            //The backend has gone or sent something it shouldn't, so it is treated as gone.
+        } finally {
+            if (backend != null) {
+                backends.remove(backend.address.getPort(), backend);
+                System.out.println("Backend Left On Port " + backend.address.getPort());
+            }
+        }
+    }
+
+    /*Sends a client to a backend. The clients first line is read to see if it is a RESUME, and is then passed on to
+     *the backend with everything after it. The client's connection slot is given back once both copies have ended.*/
+    private static void route(SocketChannel client) {
+        SocketChannel backendChannel = null;
+        try {
+            ByteBuffer first = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            String line = peekLine(client, first);
+            Backend backend;
+            if (line != null && line.startsWith("RESUME ")) {
+                backend = findResume(backends, line);
+                if (backend == null) {
+                    reject(client, "Session expired.");
+                    return;
+                }
+            } else {
+                backend = choose(backends.values());
+                if (backend == null) {
+                    reject(client, "Game full.");
+                    return;
+                }
+            }
+
+            backendChannel = SocketChannel.open(backend.address);
+            first.flip();
+            while (first.hasRemaining()) {
+                backendChannel.write(first);
+            }
+
+            //Copy both ways until either side closes. Each direction has its own thread and buffer.
+            SocketChannel toBackend = backendChannel;
+            Thread upstream = new Thread(() -> pump(client, toBackend, first), "RouterUpstream");
+            upstream.setDaemon(true);
+            upstream.start();
+            pump(toBackend, client, ByteBuffer.allocateDirect(BUFFER_SIZE));
+            upstream.join();
+        } catch (IOException e) {
+            //The client or backend left while being connected.
+            close(client);
+            close(backendChannel);
+        } catch (InterruptedException e) {
+            //The router is stopping.
+        } finally {
+            connections.release();
+        }
+    }
+
+    /*Reads from the client into the buffer until it holds a whole line or the handshake time runs out, and returns
+     *the first line, or null if the client didn't send one in time. Everything read is left in the buffer.*/
+    private static String peekLine(SocketChannel client, ByteBuffer buffer) throws IOException {
+        long deadline = System.currentTimeMillis() + ServerConfig.HANDSHAKE_MILLIS;
+        Selector selector = Selector.open();
+        client.configureBlocking(false);
+        try {
+            client.register(selector, SelectionKey.OP_READ);
+            while (buffer.hasRemaining()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || selector.select(remaining) == 0) {
+                    return null;
+                }
+                selector.selectedKeys().clear();
+                int start = buffer.position();
+                if (client.read(buffer) < 0) {
+                    throw new IOException("The client closed the connection during the handshake.");
+                }
+                for (int i = start; i < buffer.position(); i++) {
+                    if (buffer.get(i) == '\n') {
+                        byte[] bytes = new byte[i];
+                        for (int j = 0; j < i; j++) {
+                            bytes[j] = buffer.get(j);
+                        }
+                        return new String(bytes, StandardCharsets.UTF_8).trim();
+                    }
+                }
+            }
+            return null;
+        } finally {
+            //Closing the selector deregisters the channel, so it can be made blocking again for copying.
+            selector.close();
+            client.configureBlocking(true);
+        }
+    }
+
+    //Returns the backend a RESUME line's token came from, or null if that backend isn't connected.
+    static Backend findResume(Map<Integer, Backend> backends, String line) {
+        String[] resume = line.split(" ");
+        int dot = resume.length == 3 ? resume[1].indexOf('.') : -1;
+        if (dot <= 0) {
+            return null;
+        }
+        try {
+            return backends.get(Integer.parseInt(resume[1].substring(0, dot)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /*Chooses the backend for a new player. A backend with players waiting for a game is picked first, so games fill up
+     *and can start. Otherwise the backend with the fewest players and a free seat is used. Returns null if no backend
+     *has a free seat.*/
+    static synchronized Backend choose(Collection<Backend> backends) {
+        Backend best = null;
+        for (Backend backend : backends) {
+            if (backend.seats > 0 && (best == null || isBetter(backend, best))) {
+                best = backend;
+            }
+        }
+        if (best != null) {
+            //Count the player now, so players joining at the same time are spread out before the backend next reports.
+            best.update(best.players + 1, best.seats - 1, best.waiting + 1);
+        }
+        return best;
+    }
+
+    //Checks if backend a is a better choice for a new player than backend b.
+    private static boolean isBetter(Backend a, Backend b) {
+        boolean aWaiting = a.waiting > 0;
+        boolean bWaiting = b.waiting > 0;
+        if (aWaiting != bWaiting) {
+            return aWaiting;
+        }
+        return a.players < b.players;
+    }
+
+    //Copies bytes from one channel to the other until either closes, then closes both.
+    private static void pump(SocketChannel from, SocketChannel to, ByteBuffer buffer) {
+        try {
+            buffer.clear();
+            while (from.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    to.write(buffer);
+                }
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            //Either side closing ends the copy.
+        } finally {
+            close(from);
+            close(to);
+        }
+    }
+
+    //Sends a message to a client that can't be routed and closes their connection.
+    private static void reject(SocketChannel client, String message) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(("MESSAGE " + message + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+        client.close();
+    }
+
+    //Closes a channel, ignoring any error.
+    private static void close(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                //Already closed.
+            }
+        }
+    }
+
+    //The router's view of one backend GameServer.
+    static class Backend {
+        //Where the backend accepts clients.
+        private final InetSocketAddress address;
+        //The number of players the backend last reported.
+        private volatile int players;
+        //The number of seats the backend last reported as free.
+        private volatile int seats;
+        //The number of players the backend last reported as waiting for a game to start.
+        private volatile int waiting;
+
+        //Backend constructor. A new backend has no players until it reports.
+        Backend(InetSocketAddress address) {
+            this.address = address;
+            players = 0;
+            seats = 0;
+            waiting = 0;
+        }
+
+        //Returns the port the backend's clients connect to.
+        int getPort() {
+            return address.getPort();
+        }
+
+        //Updates the backends load.
+        synchronized void update(int players, int seats, int waiting) {
+            this.players = players;
+            this.seats = seats;
+            this.waiting = waiting;
+        }
+    }
+}
@@ -1,21 +1,60 @@
 package SocketBasedGame;
 
-import javax.swing.*;
-import java.awt.*;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.SequenceInputStream;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
 
 /**
  * The Protocol is as follows:
+ * Every message the server sends starts with @seq, the sequence number of the latest game event the client has been
+ * sent. A client that loses its connection reconnects and sends RESUME with its token and the last number it saw.
+ * Any command a client sends can start with a numeric request ID, e.g. #12 MOVE NONE 1 2. The responses to that
+ * command then start with the same ID after the sequence number, so a client can send several commands without
+ * waiting for each reply. Commands are always handled in the order they were sent.
+ * New players wait in a queue until the Matchmaker puts them into a game of 2 to 5 players. A client that sends NAME as
+ * its first message is matched with players of a similar rating.
  * Server Sends: MESSAGE aMessage - Sends a message to the client.
- * Server Sends: MARK aPlayerMark - Sends a string which represents the player mark for that client.
+ * Server Sends: MARK aPlayerMark aToken - Sends the player mark for that client and the token used to reconnect.
+ * Server Sends: TOPOLOGY aTopology rows columns - Sent after MARK. The shape of the board and which tiles touch:
+ *               RECTANGULAR, TOROIDAL, HEX or VON_NEUMANN. See BoardTopology.
  * Server Sends: BOARD M M M ... - Sends all the marks on the game board as a flattened array.
+ * Server Sends: BOARD_PACKED rows columns data - The board with each mark packed into 3 bits, Base64 encoded.
+ * Server Sends: BOARD_RLE rows columns data - As BOARD_PACKED, with runs of the same mark collapsed. See BoardCodec.
+ * Server Sends: ENCODING anEncoding - Confirms the encoding that will be used for the board from now on.
  * Server Sends: TURN aPlayerMark - Sends a string which represents the player mark of the current player for the turn.
  * Server Sends: LEGAL_MOVE influenceCard - Indicates the move was legal to the client and tells them the card used.
  * Server Sends: ILLEGAL_MOVE - Indicates the move was illegal to the client.
  * Server Sends: INVALID_MOVE - Indicates a MOVE command sent by the client was not formatted correctly.
  * Server Sends: END Winner Score Score ... - Indicates the winner to the client and the scores of all players.
+ * Server Sends: CELLS x y M ... - Sends the marks of individual tiles that changed, when catching up after RESUME.
+ * Server Sends: MOVE_RESULT mover card turn CELLS x y M ... BLOCKED M ... [SCORE Leader Score ...] [END Winner Score ...]
+ *               - Everything a move changed in one message, sent instead of BOARD, TURN, LEGAL_MOVE and END.
+ * Server Sends: RESULTS - Confirms the client will be sent MOVE_RESULT messages from now on.
+ * Server Sends: SCORE Leader Score Score ... - Sends the current leader and scores, in the same format as END.
+ * Server Sends: LIMITED - Commands are being sent too fast. They are dropped without a reply until the rate falls,
+ *               except MOVE, which is always answered with LIMITED and its request ID. END is never dropped.
+ * Server Sends: NAME aName - Confirms the name the player will be rated under.
+ * Server Sends: RANK aName rating rank players - Sends a player's rating, their rank and the number of rated players.
+ * Server Sends: TOP aName rating aName rating ... - Sends the highest rated players, highest first.
+ * Server Sends: HIBERNATED - The game was idle, so it has been written to disk and the connection is closed. The client
+ *               reconnects with RESUME when it next needs the game, which reads the game back.
  * Client Sends: MOVE influenceCard x y - Requests a tile to be placed at x y using the influenceCard.
+ * Client Sends: ENCODING anEncoding - Requests the board is sent as TEXT (BOARD), PACKED or RLE.
+ * Client Sends: RESULTS - Requests one MOVE_RESULT message per move instead of the separate messages.
+ * Client Sends: SCORE - Requests the current scores, and a SCORE message after every following board update.
+ * Client Sends: NAME aName - Sets the name the player is rated under. Only games with two or more named players are rated.
+ * Client Sends: RANK [aName] - Requests the rating and rank of the named player, or of this player.
+ * Client Sends: TOP [n] - Requests the n highest rated players, up to 20.
+ * Client Sends: RESUME aToken seq - Sent as the first message on a new connection to reconnect as the same player.
  * Client Sends: END - Requests the server thread closes their connection and interrupts their own thread.
  */
 public class GameServer {
@@ -23,60 +62,278 @@ public class GameServer {
     //The port that this server will be open on.
     public static final int PORT = 8080;
 
-    //Main method entry point.
+    //The longest first line read while deciding if a client is reconnecting. A RESUME line is far shorter.
+    private static final int MAX_FIRST_LINE = 1024;
+
+    //Used to report this server's load to a GameRouter. Null if the server isn't part of a cluster.
+    private static RouterLink router;
+    //Puts new players into games.
+    private static final Matchmaker matchmaker = new Matchmaker();
+    //Writes idle games to disk and reads them back when their players return.
+    private static final Hibernator hibernator = new Hibernator(new File(ServerConfig.HIBERNATE_DIR), matchmaker);
+    //A boolean to flag that the server is stopping. New players are turned away, but players can still reconnect.
+    private static volatile boolean draining = false;
+
+    /*Main method entry point. The server can be given the port to use, and the control port of a GameRouter on the
+     *same machine to run as one of its backends, e.g. java SocketBasedGame.GameServer 8081 8090.
+     *Run with -Dgame.headless=true to run without a window, e.g. as a service. Either way, stopping the server (SIGTERM,
+     *Ctrl+C or closing the window) lets the games being played finish before it exits. See drain().
+     *To record what the games are doing with Java Flight Recorder, start it with the settings in game.jfc. See GameEvents.*/
     public static void main(String[] args) throws IOException {
-        //Construct a frame which has a default close operation to allow the host to see that it is running
-        //and to be able to close the server by closing the window.
-        JFrame frame = new JFrame();
-        frame.setTitle("Server Window");
-        frame.setSize(1000, 600);
-        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        frame.setVisible(true);
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : PORT;
+
+        if (!ServerConfig.HEADLESS) {
+            ServerWindow.open();
+        }
+
+        //A standby follows its primary until the primary goes away, then takes over its games and its port.
+        if (!ServerConfig.STANDBY.isEmpty()) {
+            takeOver();
+        }
+
+        //Open the ratings file now, so the first game to finish doesn't have to.
+        RatingStore.getShared();
+        //Add every finished game to the archive, if one is wanted. The server runs without it if it can't be opened.
+        if (!ServerConfig.ARCHIVE_FILE.isEmpty()) {
+            try {
+                GameArchive archive = new GameArchive(new File(ServerConfig.ARCHIVE_FILE));
+                GameArchive.setShared(archive);
+                Thread archiveThread = new Thread(archive, "ArchiveWriter");
+                archiveThread.setDaemon(true);
+                archiveThread.start();
+            } catch (IOException e) {
+                EventLog.log(LogLevel.ERROR, "archiveUnavailable", "file", ServerConfig.ARCHIVE_FILE, "error", e.getMessage());
+            }
+        }
 
-        //Place a simple message in the middle of the window to indicate its purpose.
-        JLabel serverText = new JLabel("This is the Server window. Close this window to end the server.");
-        serverText.setHorizontalAlignment(SwingConstants.CENTER);
-        frame.add(serverText, BorderLayout.CENTER);
+        //Start putting players into games as they join.
+        Thread matchmakerThread = new Thread(matchmaker, "Matchmaker");
+        matchmakerThread.setDaemon(true);
+        matchmakerThread.start();
+        Thread hibernatorThread = new Thread(hibernator, "Hibernator");
+        hibernatorThread.setDaemon(true);
+        hibernatorThread.start();
 
-        //Construct the initial Game object to be used by the server and passed to new GameService threads.
-        Game game = new Game();
+        //Setup a server socket with the port number.
+        ServerSocket server = new ServerSocket(port);
 
-        //Setup a server socket with the port number, PORT.
-        ServerSocket server = new ServerSocket(PORT);
+        //Send a copy of every game to a standby, if one is wanted.
+        if (ServerConfig.REPLICATE_PORT > 0) {
+            Replicator replicator = new Replicator(ServerConfig.REPLICATE_PORT, matchmaker::getResidentGames,
+                    hibernator::getStoredGames);
+            Replicator.setShared(replicator);
+            Thread replicatorThread = new Thread(replicator, "Replicator");
+            replicatorThread.setDaemon(true);
+            replicatorThread.start();
+        }
 
         //Display informational messgages in the console.
-        System.out.println("Started The Server On Port " + PORT);
+        System.out.println("Started The Server On Port " + port);
         System.out.println("Waiting for clients to connect...");
+        EventLog.log(LogLevel.INFO, "started", "port", port, "headless", ServerConfig.HEADLESS);
+
+        //Drain the server when it is told to stop. The log has been started above, as it can't be started once stopping.
+        Runtime.getRuntime().addShutdownHook(new Thread(GameServer::drain, "Drain"));
+
+        //Join the router's cluster if one was given. Tokens are named after the port so the router can route RESUME.
+        if (args.length > 1) {
+            SessionRegistry.setNode(String.valueOf(port));
+            router = new RouterLink("localhost", Integer.parseInt(args[1]), port);
+            Thread reporter = new Thread(router, "RouterLink");
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+
+        //Continue to accept connections, from new players and from players who lost their connection.
+        while (true) {
+            try {
+                //Accept a connection and admit it in its own thread, so a slow client can't hold up the others.
+                Socket connection = server.accept();
+                EventLog.log(LogLevel.INFO, "connected", "address", connection.getRemoteSocketAddress());
+                GameEvents.connection("connected", null, connection);
+                new Thread(() -> admit(connection)).start();
+            } catch (SocketException e) {
+                //This is only entered when a client leaves and closes a socket.
+                e.printStackTrace();
+            }
+        }
+    }
 
-        //Initialise the player count to 0.
-        int playerCount = 0;
+    /*Decides whether a new connection is a player reconnecting or a new player. A reconnecting client sends RESUME as
+     *its first message. Anything else, or nothing within the handshake time, means the client is a new player, and
+     *whatever it sent is left in the reader for its GameService to handle. A new player who sends NAME first is
+     *matched with players of a similar rating.*/
+    static void admit(Socket connection) {
+        try {
+            InputStream stream = connection.getInputStream();
+            ByteArrayOutputStream sent = new ByteArrayOutputStream();
+            connection.setSoTimeout(ServerConfig.HANDSHAKE_MILLIS);
+            String line = readFirstLine(stream, sent);
+            connection.setSoTimeout(0);
+            String[] first = line == null ? null : line.trim().split(" ");
+            BufferedReader input;
 
-        //Continue to accept connections while the game is not finished.
-        //This only exits if the server had 5 players and was just polling before the game finished.
-        while (!game.isFinished()) {
-            //Prevents more than 5 players connecting.
-            //If there are 5 players, then this loop will wait 1 second before checking if the game is finished.
-            if (playerCount < 5) {
+            if (first != null && first[0].equals("RESUME") && first.length == 3) {
+                input = new BufferedReader(new InputStreamReader(stream));
+                GameService gameService = SessionRegistry.find(first[1]);
                 try {
-                    //Accept a connection, create a GameService for the client and add the player to the game.
-                    Socket connection = server.accept();
-                    System.out.println("Client Connected");
-                    playerCount += 1;
-                    GameService gameService = new GameService(game, connection, PlayerMark.values()[playerCount]);
-                    new Thread(gameService).start();
-                    game.addPlayer(gameService);
-                } catch (SocketException e) {
-                    //This is only entered when a client leaves and closes a socket.
-                    e.printStackTrace();
+                    long lastSeen = Long.parseLong(first[2]);
+                    if (gameService != null && gameService.resume(connection, input, lastSeen)) {
+                        return;
+                    }
+                    //The game may have been written to disk, in which case it is read back and the player rejoins it.
+                    gameService = hibernator.rehydrate(first[1]);
+                    if (gameService != null && gameService.resume(connection, input, lastSeen)) {
+                        return;
+                    }
+                } catch (NumberFormatException e) {
+                    //Treated the same as an unknown session.
                 }
-            } else {
-                //Makes the thread sleep for 1 second, effectively making it poll every second to see if the game ended.
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                reject(connection, "Session expired.");
+                return;
+            }
+            //Whatever the new player sent is put back in front of the rest of the stream for their GameService.
+            input = new BufferedReader(new InputStreamReader(
+                    new SequenceInputStream(new ByteArrayInputStream(sent.toByteArray()), stream)));
+
+            //Only queue the player if the server has room for them and isn't stopping.
+            synchronized (GameServer.class) {
+                if (draining) {
+                    reject(connection, "Server shutting down.");
+                    return;
+                }
+                if (getPlayerCount() >= ServerConfig.MAX_PLAYERS) {
+                    reject(connection, "Server full.");
+                    return;
+                }
+                double rating = RatingStore.INITIAL_RATING;
+                RatingStore ratings = RatingStore.getShared();
+                if (first != null && first[0].equals("NAME") && first.length == 2 && ratings != null) {
+                    rating = ratings.getRatingValue(first[1]);
+                }
+                PrintWriter output = new PrintWriter(connection.getOutputStream(), true);
+                output.println("MESSAGE Waiting for players.");
+                matchmaker.enqueue(connection, input, rating);
+            }
+            if (router != null) {
+                router.report();
+            }
+        } catch (IOException e) {
+            //The client left during the handshake.
+            e.printStackTrace();
+        }
+    }
+
+    /*Reads the first line a client sends, one byte at a time straight from the socket, so nothing past it is read
+     *ahead. Every byte read is also kept in sent, so it can be put back if the client isn't reconnecting. Returns null
+     *if the client sent nothing within the handshake time, closed the connection or sent an overlong line first. A
+     *timeout while reading from the socket itself loses nothing, unlike one inside a BufferedReader.*/
+    private static String readFirstLine(InputStream stream, ByteArrayOutputStream sent) throws IOException {
+        try {
+            int b;
+            while (sent.size() < MAX_FIRST_LINE && (b = stream.read()) >= 0) {
+                if (b == '\n') {
+                    String line = new String(sent.toByteArray(), StandardCharsets.UTF_8);
+                    sent.write(b);
+                    return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
                 }
+                sent.write(b);
             }
+        } catch (SocketTimeoutException e) {
+            //The client didn't send a whole line in time, so it is a new player.
         }
+        return null;
+    }
+
+    /*Follows the primary named by ServerConfig.STANDBY until it goes away, then stores its games so their players are
+     *put back into them when they reconnect to this server.*/
+    private static void takeOver() {
+        String[] primary = ServerConfig.STANDBY.split(":");
+        Map<String, byte[]> games = new Standby(primary[0], Integer.parseInt(primary[1])).follow();
+        for (byte[] game : games.values()) {
+            try {
+                hibernator.store(game);
+            } catch (IOException e) {
+                EventLog.log(LogLevel.ERROR, "takeOverFailed", "error", e);
+            }
+        }
+        EventLog.log(LogLevel.INFO, "tookOver", "games", games.size());
+    }
+
+    //Returns the number of players on this server, counting those waiting for a game.
+    public static int getPlayerCount() {
+        return SessionRegistry.size() + matchmaker.getWaiting();
+    }
+
+    //Returns the number of players waiting for a game to start.
+    public static int getWaitingCount() {
+        return matchmaker.getWaiting();
+    }
+
+    //Returns the number of players that can still join this server. None can join once it is stopping.
+    public static int getFreeSeats() {
+        return draining ? 0 : Math.max(0, ServerConfig.MAX_PLAYERS - getPlayerCount());
+    }
+
+    /*Stops the server without cutting off any games. Run when the server is told to stop. New players are turned away
+     *and the players still waiting for a game are told the server is stopping. The games being played are given until
+     *the drain deadline to finish, and any still going then are ended with the current scores, so every game gets a
+     *result. The ratings, the archive and the log are then written out before the server exits.*/
+    static void drain() {
+        synchronized (GameServer.class) {
+            draining = true;
+        }
+        EventLog.log(LogLevel.INFO, "draining", "games", matchmaker.getActiveGames());
+        if (router != null) {
+            router.report();
+        }
+        for (Socket waiting : matchmaker.close()) {
+            try {
+                reject(waiting, "Server shutting down.");
+            } catch (IOException e) {
+                //They have already gone.
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + ServerConfig.DRAIN_MILLIS;
+        while (matchmaker.getActiveGames() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        int ended = matchmaker.endActiveGames();
+        if (ended > 0) {
+            EventLog.log(LogLevel.WARN, "drainDeadline", "ended", ended);
+        }
+
+        //Give the players a moment to be sent the end of their game and leave.
+        long grace = System.currentTimeMillis() + ServerConfig.DRAIN_GRACE_MILLIS;
+        while (SessionRegistry.size() > 0 && System.currentTimeMillis() < grace) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        RatingStore ratings = RatingStore.getShared();
+        if (ratings != null) {
+            ratings.awaitWritten(ServerConfig.DRAIN_GRACE_MILLIS);
+        }
+        GameArchive archive = GameArchive.getShared();
+        if (archive != null) {
+            archive.awaitWritten(ServerConfig.DRAIN_GRACE_MILLIS);
+        }
+        EventLog.log(LogLevel.INFO, "stopped");
+        EventLog.flush();
+    }
+
+    //Sends a message to a client that can't be admitted and closes their connection.
+    private static void reject(Socket connection, String message) throws IOException {
+        PrintWriter output = new PrintWriter(connection.getOutputStream(), true);
+        output.println("MESSAGE " + message);
+        connection.close();
     }
-}
\ No newline at end of file
+}
@@ -1,92 +1,369 @@
 package SocketBasedGame;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
-import java.util.Random;
 
 /*This class extends Thread to allow it to run in its own thread. It handles all communication between the client and
- *the game.*/
-public class GameService extends Thread {
+ *the game, as the game's Player for that client's seat.*/
+public class GameService extends Thread implements Player {
+    //The most players that can be asked for with TOP.
+    private static final int MAX_TOP = 20;
     //This is the game that the current player will be playing.
     private Game game;
     //This is the player mark of the current player.
     private PlayerMark playerMark;
-    //This is the socket used to communicate with the connected client.
-    private Socket connection;
+    //This is the socket used to communicate with the connected client. Replaced if the client reconnects.
+    private volatile Socket connection;
     //This is used to receive commands from the client.
-    private BufferedReader input;
-    //This is used to send responses to the client.
-    private PrintWriter output;
-    //Represents if a card is present. [DOUBLE, REPLACEMENT, FREEDOM].
-    private boolean[] cards;
+    private volatile BufferedReader input;
+    //This is used to send responses to the client. Messages are queued and sent without blocking the game.
+    private volatile OutboundQueue output;
+    //The session token the client uses to reconnect as this player if their connection is lost.
+    private String token;
+    //A boolean to flag if the player has left for good, so the session can no longer be resumed.
+    private boolean left;
+    //The influence cards the player still has, one bit per card, indexed by the cards ordinal.
+    private int cards;
     //A boolean to flag if a player is blocked.
     private boolean isBlocked;
+    //A boolean to flag if the client asked to be sent the scores whenever the board changes.
+    private boolean wantsScores;
+    //The encoding the client asked for the full board to be sent in.
+    private BoardEncoding boardEncoding;
+    //A boolean to flag if the client asked for one MOVE_RESULT message per move instead of separate messages.
+    private boolean wantsMoveResults;
+    //The request ID of the command being handled, e.g. 12 for #12, or Command.NO_REQUEST if it didn't have one.
+    private int requestId;
+    //How the command being handled turned out, recorded in its CommandEvent: OK, or how a move was answered.
+    private String outcome;
+    //The name the player is rated under, or null if they haven't given one.
+    private volatile String playerName;
+    //Limits how often this client can send commands.
+    private final TokenBucket commandLimit;
+    //The number of commands in a row this client has sent over its limit.
+    private int strikes;
+    //A boolean to flag if the client has been told its commands are being dropped.
+    private boolean limited;
+    //A boolean to flag if the last command refused by acquireCommandToken() was over the client's own limit.
+    private boolean overOwnLimit;
+    //A boolean to flag if the player was read back from disk, so their first tile has already been placed.
+    private final boolean restored;
+    //A boolean to flag if the player was read back from disk and hasn't reconnected yet, so has no thread running.
+    private volatile boolean dormant;
+    //The time, in milliseconds, a player read back from disk must reconnect by before they are treated as having left.
+    private final long resumeBy;
+    //A boolean to flag if the game has been written to disk. This copy of the player is finished with.
+    private volatile boolean hibernated;
 
-    //GameService constructor to initialise data members and get the streams from the socket.
-    public GameService(Game game, Socket connection, PlayerMark playerMark) {
+    /*GameService constructor to initialise data members and get the output stream from the socket. The input reader is
+     *passed in as GameServer has already read from it to check if the client was reconnecting.*/
+    public GameService(Game game, Socket connection, BufferedReader input, PlayerMark playerMark) {
         this.game = game;
         this.playerMark = playerMark;
         this.connection = connection;
+        this.input = input;
+        token = SessionRegistry.register(this);
+        left = false;
         try{
-            input = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            output = new PrintWriter(connection.getOutputStream(), true);
-            //Welcomes the players and sends them their player mark for this game.
-            output.println("MESSAGE Welcome. You have connected.");
-            output.println("MARK " + playerMark.toString());
+            output = new OutboundQueue(connection);
+            //Welcomes the players and sends them their player mark and session token for this game.
+            send("MESSAGE Welcome. You have connected.");
+            send("MARK " + playerMark.toString() + " " + token);
+            send(Game.TOPOLOGY.toMessage());
         } catch (IOException e) {
             e.printStackTrace();
         }
-        cards = new boolean[]{true, true, true};
+        cards = (1 << InfluenceCard.DOUBLE.ordinal()) | (1 << InfluenceCard.REPLACEMENT.ordinal())
+                | (1 << InfluenceCard.FREEDOM.ordinal());
         isBlocked = false;
+        wantsScores = false;
+        boardEncoding = BoardEncoding.TEXT;
+        wantsMoveResults = false;
+        commandLimit = new TokenBucket(ServerConfig.CLIENT_COMMANDS_PER_SECOND, ServerConfig.CLIENT_COMMAND_BURST);
+        strikes = 0;
+        limited = false;
+        overOwnLimit = false;
+        restored = false;
+        dormant = false;
+        resumeBy = 0;
+        hibernated = false;
     }
 
-    //Loop for receiving commands and sending them to be passed, until the END command is given.
+    /*GameService constructor for a player whose game is being read back from disk, reading the state written by
+     *writeTo(). The player has no connection until their client reconnects with RESUME.*/
+    public GameService(Game game, String token, DataInputStream in) throws IOException {
+        this.game = game;
+        this.token = token;
+        playerMark = PlayerMark.values()[in.readByte()];
+        cards = in.readByte();
+        isBlocked = in.readBoolean();
+        String name = in.readUTF();
+        playerName = name.isEmpty() ? null : name;
+        boardEncoding = BoardEncoding.values()[in.readByte()];
+        wantsScores = in.readBoolean();
+        wantsMoveResults = in.readBoolean();
+        connection = null;
+        input = null;
+        output = OutboundQueue.closed();
+        left = false;
+        commandLimit = new TokenBucket(ServerConfig.CLIENT_COMMANDS_PER_SECOND, ServerConfig.CLIENT_COMMAND_BURST);
+        strikes = 0;
+        limited = false;
+        overOwnLimit = false;
+        restored = true;
+        dormant = true;
+        resumeBy = System.currentTimeMillis() + ServerConfig.RESUME_WINDOW_MILLIS;
+        hibernated = false;
+        SessionRegistry.restore(token, this);
+    }
+
+    //Writes the player's own state for Game.writeTo(): mark, cards, blocked, name, encoding and what they asked for.
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(playerMark.ordinal());
+        out.writeByte(cards);
+        out.writeBoolean(isBlocked);
+        out.writeUTF(playerName == null ? "" : playerName);
+        out.writeByte(boardEncoding.ordinal());
+        out.writeBoolean(wantsScores);
+        out.writeBoolean(wantsMoveResults);
+    }
+
+    /*Loop for receiving commands and sending them to be passed, until the END command is given.
+     *If the connection is lost, the loop waits for the client to reconnect and carries on with the new connection.*/
     @Override
     public void run() {
         try{
-            //Places the initial starting tile if possible
-            placeInitialTile();
+            //Places the initial starting tile if possible, then tells the game this player is ready to start.
+            if(!restored) {
+                placeInitialTile();
+                game.playerReady(this);
+            }
+            BufferedReader reader = input;
+            /*Each command is read into the same Command object, so reading commands doesn't create any garbage. It is
+             *only split into words once it has got past the rate limit.*/
+            CommandReader commands = new CommandReader(reader);
+            Command command = new Command();
             //Loops while the game has not ended.
             while(true) {
-                String[] command = input.readLine().trim().split(" ");
-                System.out.println("Command was: " + command[0]);
-                if(parseCommand(command).equals("END")){
+                boolean read;
+                try{
+                    read = commands.readLine(command);
+                } catch (IOException e) {
+                    read = false;
+                }
+                if(!read && hibernated) {
+                    //The game was written to disk and this connection closed. The client will reconnect to the copy.
+                    break;
+                }
+                if(!read) {
+                    //The connection was lost. Give the client a chance to reconnect before leaving the game.
+                    EventLog.log(LogLevel.INFO, "disconnected", "mark", playerMark);
+                    GameEvents.connection("disconnected", playerMark, connection);
+                    reader = awaitResume(reader);
+                    if(reader == null) {
+                        if(!hibernated) {
+                            game.abandon(this);
+                        }
+                        break;
+                    }
+                    commands = new CommandReader(reader);
+                    continue;
+                }
+                //The game can't be changed once it has been written to disk, so the command is left for the copy.
+                if(!game.touch()) {
+                    break;
+                }
+                /*Commands over the rate limit are dropped before they are split into words. Only the request ID and
+                 *opcode of a dropped command are looked at. END is never limited, so a client can always leave. A MOVE
+                 *is always answered with LIMITED, so a client waiting on its reply isn't left waiting. Other commands
+                 *are dropped without a reply after the client has been told once. A client that keeps going over its
+                 *own limit is disconnected. Going over the games limit doesn't count against a client, as it may be
+                 *another client's fault.*/
+                boolean allowed = acquireCommandToken();
+                if(!allowed) {
+                    command.tokenizeHead();
+                    requestId = command.getRequestId();
+                }
+                if(!allowed && command.getOpcode() != Opcode.END) {
+                    if(command.getOpcode() == Opcode.MOVE) {
+                        reply("LIMITED");
+                    } else if(!limited) {
+                        send("LIMITED");
+                    }
+                    limited = true;
+                    if(overOwnLimit && ++strikes > ServerConfig.RATE_LIMIT_STRIKES) {
+                        EventLog.log(LogLevel.WARN, "rateLimited", "mark", playerMark);
+                        leave();
+                        game.abandon(this);
+                        break;
+                    }
+                    continue;
+                }
+                limited = false;
+                strikes = 0;
+                command.tokenize();
+                //A command may start with a request ID, which is echoed on the responses to it.
+                requestId = command.getRequestId();
+                EventLog.log(LogLevel.DEBUG, "command", "mark", playerMark, "command", command.getOpcode());
+                GameEvents.CommandEvent event = GameEvents.beginCommand();
+                outcome = "OK";
+                String result = parseCommand(command);
+                if(event != null) {
+                    event.end();
+                }
+                if(event != null && event.shouldCommit()) {
+                    event.command = command.getOpcode().toString();
+                    event.mark = playerMark.toString();
+                    event.outcome = outcome;
+                    event.commit();
+                }
+                if(result.equals("END")){
+                    /*A player leaving part way through is treated as blocked, as if they had lost their connection,
+                     *so the game carries on without them and still ends, giving back its board slot.*/
+                    leave();
+                    game.abandon(this);
                     break;
                 }
             }
-        } catch (IOException e) {
-            game.endGame();
-            this.interrupt();
         } finally {
+            GameEvents.connection("closed", playerMark, connection);
+            SessionRegistry.remove(token, this);
+            //Closes the socket once anything still queued for the client has been sent.
+            output.close();
+            this.interrupt();
+        }
+    }
+
+    /*Waits for the client to reconnect after the given reader failed. Returns the reader for the new connection, or
+     *null if the client didn't reconnect within the resume window.*/
+    private synchronized BufferedReader awaitResume(BufferedReader failed) {
+        long deadline = System.currentTimeMillis() + ServerConfig.RESUME_WINDOW_MILLIS;
+        while(input == failed && !hibernated) {
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0) {
+                left = true;
+                return null;
+            }
             try{
-                connection.close();
-            } catch(IOException e){
-                //Should have a problem with closing the socket.
+                wait(remaining);
+            } catch (InterruptedException e) {
+                left = true;
+                return null;
             }
-            this.interrupt();
         }
+        return hibernated ? null : input;
     }
 
-    //Makes a move with the NONE influence card at a random point on the board.
-    private void placeInitialTile(){
-        Random r = new Random();
+    /*Takes a token for a command from the games limit, then from the clients own limit. The clients token is only
+     *taken if the game had one, so a client isn't charged for a command the game refused. The games token is given
+     *back if the client is over its own limit, so one client can't use up the games tokens with commands that are
+     *dropped anyway. Returns false if either limit has been reached, with overOwnLimit set if it was the clients own.*/
+    private boolean acquireCommandToken() {
+        overOwnLimit = false;
+        if(!game.getCommandLimit().tryAcquire()) {
+            return false;
+        }
+        if(!commandLimit.tryAcquire()) {
+            game.getCommandLimit().release();
+            overOwnLimit = true;
+            return false;
+        }
+        return true;
+    }
 
-        boolean attemptPlace = true;
-        //If the board is full then don't attempt to place a tile.
-        if(game.boardFull()){
-            game.setBlocked(playerMark.ordinal());
-            attemptPlace = false;
+    //Marks the player as gone for good, so their session can't be resumed.
+    private synchronized void leave() {
+        left = true;
+    }
+
+    /*Moves this player on to a new connection from a client presenting this sessions token. The client is sent their
+     *mark again and then everything they missed since the event numbered lastSeen. Returns false if the player has
+     *already left the game.*/
+    public boolean resume(Socket newConnection, BufferedReader newInput, long lastSeen) throws IOException {
+        OutboundQueue newOutput = new OutboundQueue(newConnection);
+        Socket oldConnection;
+        boolean wake;
+        synchronized (this) {
+            if(left || hibernated || game.isHibernated()) {
+                return false;
+            }
+            wake = dormant;
+            dormant = false;
+            oldConnection = connection;
+            connection = newConnection;
+            input = newInput;
+            //Holding the game lock means no other game updates can be sent between the catch up messages.
+            synchronized (game) {
+                output.close();
+                output = newOutput;
+                send("MARK " + playerMark.toString() + " " + token);
+                send(Game.TOPOLOGY.toMessage());
+                game.catchUp(this, lastSeen);
+            }
+            notifyAll();
+        }
+        EventLog.log(LogLevel.INFO, "reconnected", "mark", playerMark);
+        GameEvents.connection("reconnected", playerMark, newConnection);
+
+        //A player read back from disk has no thread until they reconnect.
+        if(wake) {
+            new Thread(this).start();
+            return true;
         }
+        //If the old connection still looked open, closing it stops the old reader so the loop picks up the new one.
+        try{
+            oldConnection.close();
+        } catch (IOException e) {
+            //The old connection is no longer needed either way.
+        }
+        return true;
+    }
 
-        //Otherwise, continue to place a tile on the board at a random place.
-        while(attemptPlace) {
-            //If a move is successfully made, then continue to update the games state.
-            if(game.makeMove("NONE", r.nextInt(Game.ROWS), r.nextInt(Game.COLUMNS), playerMark.ordinal())){
-                break;
+    /*Tells the client their game has been written to disk and closes their connection once that has been sent. The
+     *client reconnects with RESUME when it next needs the game, which reads the game back. Called without holding the
+     *game lock.*/
+    public synchronized void hibernate() {
+        hibernated = true;
+        GameEvents.connection("hibernated", playerMark, connection);
+        send("HIBERNATED");
+        output.close();
+        //A player with no thread has nothing else to clean up their session.
+        if(dormant) {
+            SessionRegistry.remove(token, this);
+        }
+        notifyAll();
+    }
+
+    /*Abandons the game for a player read back from disk whose client still hasn't reconnected by resumeBy, as for a
+     *player whose connection was lost and who didn't come back within the resume window. Without this, the game would
+     *wait for them forever once it was their turn. Returns true if the player was abandoned.*/
+    public boolean expire(long now) {
+        synchronized (this) {
+            if(!dormant || hibernated || now < resumeBy) {
+                return false;
             }
+            dormant = false;
+            left = true;
+        }
+        EventLog.log(LogLevel.INFO, "resumeExpired", "mark", playerMark);
+        SessionRegistry.remove(token, this);
+        game.abandon(this);
+        return true;
+    }
+
+    //Returns the token the client uses to reconnect as this player.
+    public String getToken() {
+        return token;
+    }
+
+    //Makes a move with the NONE influence card at a random point on the board.
+    private void placeInitialTile(){
+        //Place the tile on a random empty tile. If the board is full then the player is blocked straight away.
+        if(!game.placeInitialTile(playerMark.ordinal())){
+            game.setBlocked(playerMark.ordinal());
         }
 
         //Update all other player's boards.
@@ -106,46 +383,113 @@ public class GameService extends Thread {
     }
 
     /*Parse the command sent by the client. If it is not the players turn, then they cannot issue any commands but the
-     *end command*/
-    private String parseCommand(String[] command){
-        if(command[0].equals("END")){
-            return "END";
-        } else if(game.getPlayerMarkTurn() == playerMark) {
-            if (command[0].equals("MOVE") && command.length == 4) {
-                try{
-                    String card = command[1];
-                    int x = Integer.parseInt(command[2]);
-                    int y = Integer.parseInt(command[3]);
-                    if(game.makeMove(card, x, y, playerMark.ordinal())){
-                        game.sendBoard();
-                        game.checkBlocked();
-                        if(InfluenceCard.valueOf(card) != InfluenceCard.DOUBLE) {
-                            game.nextPlayer();
-                        }
-                        if(isBlocked) {
-                            game.nextPlayer();
-                        }
-                        removeCard(card);
-                        output.println("LEGAL_MOVE " + card);
-                    }
-                    else{
-                        output.println("ILLEGAL_MOVE");
-                    }
-                } catch (NumberFormatException e){
-                    output.println("INVALID_MOVE");
-                } finally {
-                    if(game.isGameOver()){
-                        game.endGame();
-                    }
+     *end command and the commands that don't change the game.*/
+    private String parseCommand(Command command){
+        switch(command.getOpcode()) {
+            case END:
+                return "END";
+            case SCORE:
+                //Scores can be asked for at any time. Send the current standings now and after every board update.
+                wantsScores = true;
+                reply("SCORE " + game.getScoresAndWinner());
+                return "OK";
+            case ENCODING:
+                //The board encoding can be changed at any time. Confirm the change so the client knows it was accepted.
+                BoardEncoding encoding = command.getEncoding(1);
+                if(command.size() != 2 || encoding == null) {
+                    reply("MESSAGE Unknown Encoding");
+                } else {
+                    boardEncoding = encoding;
+                    reply("ENCODING " + boardEncoding);
+                }
+                return "OK";
+            case RESULTS:
+                //From now on, each move is sent as a single MOVE_RESULT message. Confirm the change to the client.
+                wantsMoveResults = true;
+                reply("RESULTS");
+                return "OK";
+            case NAME:
+                //A name can be given until the game ends. Only named players are rated.
+                String name = command.size() == 2 ? command.getString(1) : "";
+                if(!RatingStore.isValidName(name)) {
+                    reply("MESSAGE Invalid Name");
+                } else if(game.isFinished()) {
+                    reply("MESSAGE The game has finished.");
+                } else {
+                    playerName = name;
+                    reply("NAME " + playerName);
                 }
-            } else {
-                System.out.println(command[0]);
-                output.println("MESSAGE Unknown Command");
+                return "OK";
+            case RANK: {
+                //Look up the rating of the named player, or this player if no name was given.
+                String rankName = command.size() == 2 ? command.getString(1) : playerName;
+                RatingStore ratings = RatingStore.getShared();
+                String rating = rankName == null || ratings == null ? null : ratings.getRating(rankName);
+                reply(rating == null ? "MESSAGE Not Rated" : "RANK " + rating);
+                return "OK";
             }
-        } else {
-            output.println("MESSAGE Not your turn.");
+            case TOP: {
+                //Send the highest rated players, up to the number asked for.
+                RatingStore ratings = RatingStore.getShared();
+                int n = command.size() == 2 ? command.getInt(1) : MAX_TOP;
+                if(n == Command.INVALID) {
+                    reply("MESSAGE Unknown Command");
+                } else {
+                    reply("TOP " + (ratings == null ? "" : ratings.getTop(Math.min(n, MAX_TOP))));
+                }
+                return "OK";
+            }
+            case MOVE:
+                if(game.getPlayerMarkTurn() != playerMark) {
+                    outcome = "NOT_YOUR_TURN";
+                    reply("MESSAGE Not your turn.");
+                } else {
+                    move(command);
+                }
+                return "OK";
+            default:
+                if(game.getPlayerMarkTurn() != playerMark) {
+                    reply("MESSAGE Not your turn.");
+                } else {
+                    EventLog.log(LogLevel.DEBUG, "unknownCommand", "mark", playerMark);
+                    reply("MESSAGE Unknown Command");
+                }
+                return "OK";
+        }
+    }
+
+    /*Makes the move in a MOVE command. A card that doesn't exist or a tile off the board is answered with INVALID_MOVE
+     *before the game is touched.*/
+    private void move(Command command) {
+        InfluenceCard card = command.getCard(1);
+        int x = command.getInt(2);
+        int y = command.getInt(3);
+        if(command.size() != 4 || card == null || x < 0 || x >= Game.ROWS || y < 0 || y >= Game.COLUMNS) {
+            outcome = "INVALID";
+            reply("INVALID_MOVE");
+            return;
+        }
+        //The whole move is applied under the game lock, so it reaches every player as one update.
+        synchronized (game) {
+            if(game.playMove(this, card, x, y)){
+                outcome = "LEGAL";
+            }
+            else{
+                outcome = "ILLEGAL";
+                reply("ILLEGAL_MOVE");
+            }
+            if(game.isGameOver()){
+                game.endGame();
+            }
+        }
+    }
+
+    //Uses up the card the move was made with and, unless the client gets MOVE_RESULT messages, answers the move.
+    public void moveMade(InfluenceCard card) {
+        removeCard(card);
+        if(!wantsMoveResults) {
+            reply("LEGAL_MOVE " + card);
         }
-        return "OK";
     }
 
     //Sets isBlocked to true.
@@ -163,35 +507,98 @@ public class GameService extends Thread {
         playerMark = mark;
     }
 
+    //Returns the name the player is rated under, or null if they haven't given one.
+    public String getPlayerName() {
+        return playerName;
+    }
+
     //Returns the players mark.
     public PlayerMark getPlayerMark(){
         return playerMark;
     }
 
-    //Returns the influence cards available to a player.
-    public boolean[] availableCards() {
+    //Checks if the player still has an influence card.
+    public boolean hasCard(InfluenceCard card) {
+        return (cards & (1 << card.ordinal())) != 0;
+    }
+
+    //Returns the influence cards the player still has, one bit per card, indexed by the cards ordinal.
+    public int getCards() {
         return cards;
     }
 
-    //Sends the board to the clients program.
-    public void updateBoard(String command) {
-        output.println("BOARD " + command);
+    //Returns whether the client asked for one MOVE_RESULT message per move.
+    public boolean wantsMoveResults() {
+        return wantsMoveResults;
+    }
+
+    //Sends the client everything that changed in a move as a single message. For the mover, this is the reply.
+    public void sendMoveResult(String result, boolean isReply) {
+        if(isReply) {
+            reply(result);
+        } else {
+            send(result);
+        }
+    }
+
+    //Returns the encoding the client wants the board sent in.
+    public BoardEncoding getBoardEncoding() {
+        return boardEncoding;
+    }
+
+    //Sends the board to the clients program. The message is already encoded in the clients board encoding.
+    public void updateBoard(String board) {
+        synchronized (game) {
+            output.offerBoard("@" + game.getSeq() + " " + board);
+        }
+    }
+
+    //Returns whether the client asked to receive the scores whenever the board changes.
+    public boolean wantsScores() {
+        return wantsScores;
+    }
+
+    //Sends the current leader and scores to the clients program.
+    public void updateScores(String scores) {
+        send("SCORE " + scores);
     }
 
     //Informs the client that the game has ended and passes the final scores of the game.
     public void end(String scores){
-        output.println("END " + scores);
+        send("END " + scores);
+        //A player read back from disk who never reconnected has no thread to clean up their session.
+        if(dormant) {
+            SessionRegistry.remove(token, this);
+        }
     }
 
     //Removes one of the cards that was available to the player.
-    private void removeCard(String card){
-        if(!card.equals(InfluenceCard.NONE.toString())){
-            cards[InfluenceCard.valueOf(card).ordinal()] = false;
+    private void removeCard(InfluenceCard card){
+        if(card != InfluenceCard.NONE){
+            cards &= ~(1 << card.ordinal());
         }
     }
 
+    //Sends the client an event they missed while disconnected, numbered with the events own sequence number.
+    public void replay(long seq, String event) {
+        output.offer("@" + seq + " " + event);
+    }
+
+    /*Sends a message to the client, numbered with the sequence number of the latest game event. Game events are sent
+     *while holding the game lock, so the number of any message is never ahead of the game events sent before it.*/
+    private void send(String message) {
+        synchronized (game) {
+            output.offer("@" + game.getSeq() + " " + message);
+        }
+    }
+
+    //Sends a response to the command being handled, starting with the commands request ID if it had one.
+    private void reply(String message) {
+        send(requestId == Command.NO_REQUEST ? message : "#" + requestId + " " + message);
+    }
+
     //Informs the client about who's turn it currently is by sending them the mark of that player.
     public void informClientOfTurn(PlayerMark mark){
-        output.println("TURN " + mark);
+        send("TURN " + mark);
     }
 }
\ No newline at end of file
@@ -0,0 +1,216 @@
+package SocketBasedGame;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*This class writes idle games to disk and drops them from memory, along with their players' connections and threads,
+ *so the memory a server uses follows the games being played rather than every game that has been started. A game is
+ *written once no player has sent a command for ServerConfig.HIBERNATE_MILLIS. If more than MAX_RESIDENT_GAMES are in
+ *memory, the games that have gone longest without a command are written first, even if they haven't been idle that
+ *long. Both are off unless set, and then games are only written here by a standby taking over. Each game is kept in
+ *its own file, named after its first player's token. When any of its players reconnects, the game is read back and
+ *carries on where it left off. Any of its other players who don't reconnect within the resume window are then treated
+ *as having left, so the game doesn't wait for them.*/
+public class Hibernator implements Runnable {
+
+    //The end of the name of every game file.
+    private static final String SUFFIX = ".game";
+
+    //The folder the games are written to.
+    private final File folder;
+    //The matchmaker, which knows every game in memory.
+    private final Matchmaker matchmaker;
+    //The file holding each written player's game, indexed by their token.
+    private final Map<String, File> files;
+
+    //Hibernator constructor. Indexes any games already in the folder, so they can be read back after a restart.
+    public Hibernator(File folder, Matchmaker matchmaker) {
+        this.folder = folder;
+        this.matchmaker = matchmaker;
+        files = new ConcurrentHashMap<>();
+        File[] existing = folder.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (existing != null) {
+            for (File file : existing) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                    for (String token : Game.readTokens(in)) {
+                        files.put(token, file);
+                    }
+                } catch (IOException e) {
+                    EventLog.log(LogLevel.WARN, "hibernateUnreadable", "file", file);
+                }
+            }
+        }
+    }
+
+    /*Stores a game written by Game.writeTo() elsewhere, such as a standby's copy of a game from a primary that has
+     *gone away, so its players are put back into it when they reconnect.*/
+    public void store(byte[] game) throws IOException {
+        String[] tokens = Game.readTokens(new DataInputStream(new ByteArrayInputStream(game)));
+        makeFolder();
+        File file = new File(folder, tokens[0] + SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(game);
+        }
+        for (String token : tokens) {
+            files.put(token, file);
+        }
+    }
+
+    //Creates the folder the first time a game is written, so a server that never writes a game doesn't leave one.
+    private void makeFolder() throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Can't create the folder " + folder + ".");
+        }
+    }
+
+    /*Returns every game on disk, as written by Game.writeTo(), e.g. for a standby that has just connected. A game read
+     *back while this is running may be missed, but it is then in memory and sent as a game in memory instead.*/
+    public List<byte[]> getStoredGames() {
+        List<byte[]> games = new ArrayList<>();
+        for (File file : new HashSet<>(files.values())) {
+            try {
+                games.add(Files.readAllBytes(file.toPath()));
+            } catch (IOException e) {
+                //The game was read back and its file removed since the list was taken.
+            }
+        }
+        return games;
+    }
+
+    //Returns the number of players whose game is on disk.
+    public int getHibernatedPlayers() {
+        return files.size();
+    }
+
+    //Checks the games on a timer and writes out any that should leave memory.
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(ServerConfig.HIBERNATE_TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            expireDormant(now);
+            hibernateIdle(now);
+        }
+    }
+
+    //Abandons the game for any player read back from disk whose client hasn't reconnected within the resume window.
+    void expireDormant(long now) {
+        for (Game game : matchmaker.getResidentGames()) {
+            for (Player player : game.getPlayers()) {
+                if (player instanceof GameService) {
+                    ((GameService) player).expire(now);
+                }
+            }
+        }
+    }
+
+    /*Writes out every game idle for longer than HIBERNATE_MILLIS, and then the games idle longest until no more than
+     *MAX_RESIDENT_GAMES are left in memory.*/
+    void hibernateIdle(long now) {
+        List<Game> games = matchmaker.getResidentGames();
+        games.sort(Comparator.comparingLong(Game::getLastActive));
+        int excess = ServerConfig.MAX_RESIDENT_GAMES > 0 ? games.size() - ServerConfig.MAX_RESIDENT_GAMES : 0;
+        int written = 0;
+        for (int i = 0; i < games.size(); i++) {
+            Game game = games.get(i);
+            boolean idle = ServerConfig.HIBERNATE_MILLIS > 0 && now - game.getLastActive() >= ServerConfig.HIBERNATE_MILLIS;
+            if (i >= excess && !idle) {
+                //The games are in order of when they were last active, so none of the rest are idle either.
+                break;
+            }
+            if (hibernate(game, idle ? now - ServerConfig.HIBERNATE_MILLIS : game.getLastActive())) {
+                written++;
+            }
+        }
+        if (written > 0) {
+            EventLog.log(LogLevel.INFO, "hibernated", "games", written, "players", files.size());
+        }
+    }
+
+    /*Writes a game to disk and drops it, as long as no player has sent a command since the given time. The check and
+     *the write are made under the game lock, so a command that arrives at the same time is either counted first, and
+     *the game stays, or finds the game already written and waits for the copy. Returns true if the game was written.*/
+    private boolean hibernate(Game game, long idleSince) {
+        List<Player> players;
+        synchronized (game) {
+            if (!game.canHibernate() || game.getLastActive() > idleSince) {
+                return false;
+            }
+            File file = null;
+            try {
+                List<Player> current = game.getPlayers();
+                makeFolder();
+                file = new File(folder, current.get(0).getToken() + SUFFIX);
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                    game.writeTo(out);
+                }
+                for (Player player : current) {
+                    files.put(player.getToken(), file);
+                }
+                //The standby is sent the game as written, so it has the game even though it is no longer in memory.
+                Replicator.changed(game);
+            } catch (IOException e) {
+                //The game couldn't be written, so it stays in memory.
+                EventLog.log(LogLevel.ERROR, "hibernateFailed", "error", e);
+                if (file != null && !file.delete()) {
+                    EventLog.log(LogLevel.WARN, "hibernateCleanup", "file", file);
+                }
+                return false;
+            }
+            players = game.hibernate();
+        }
+        //Disconnecting the players takes their locks, so it is done after the game lock is let go.
+        for (Player player : players) {
+            player.hibernate();
+        }
+        return true;
+    }
+
+    /*Reads back the game of the player with the given token, and returns the player ready for their client to resume.
+     *Returns null if the player doesn't have a game on disk. Only one game is read at a time, so two players of the
+     *same game reconnecting together get the same copy.*/
+    public synchronized GameService rehydrate(String token) {
+        File file = files.get(token);
+        if (file == null) {
+            return null;
+        }
+        Game game;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            game = Game.readFrom(in);
+        } catch (IOException e) {
+            EventLog.log(LogLevel.ERROR, "rehydrateFailed", "file", file, "error", e);
+            return null;
+        }
+        GameService resuming = null;
+        for (Player player : game.getPlayers()) {
+            files.remove(player.getToken());
+            if (player.getToken().equals(token) && player instanceof GameService) {
+                resuming = (GameService) player;
+            }
+        }
+        if (!file.delete()) {
+            EventLog.log(LogLevel.WARN, "hibernateCleanup", "file", file);
+        }
+        matchmaker.adopt(game);
+        EventLog.log(LogLevel.INFO, "rehydrated", "players", game.getPlayers().size());
+        return resuming;
+    }
+}
@@ -0,0 +1,6 @@
+package SocketBasedGame;
+
+//This enum represents how important a logged event is. Only events at or above the configured level are kept.
+public enum LogLevel {
+    DEBUG, INFO, WARN, ERROR
+}
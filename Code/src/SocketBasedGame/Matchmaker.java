@@ -0,0 +1,229 @@
+package SocketBasedGame;
+
+import java.io.BufferedReader;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*This class holds the players waiting for a game and puts them into games of 2 to 5 players. A game is started as soon
+ *as enough players of a similar rating are waiting to fill a table. The longer a player waits, the wider the range of
+ *ratings they can be matched with and the smaller the table they will accept, so quiet periods still lead to games.
+ *If ServerConfig.BOT_FILL_MILLIS is set, a player who has waited that long has the empty seats at the smallest table
+ *filled with bots.
+ *Players are matched in the order they joined, with the player who has waited longest moving first.*/
+public class Matchmaker implements Runnable {
+
+    //The fewest and most players in a game.
+    public static final int MIN_TABLE = 2;
+    public static final int MAX_TABLE = 5;
+
+    //The players waiting for a game, in the order they joined.
+    private final List<Ticket> waiting;
+    //The games started by the matchmaker that haven't finished yet.
+    private final List<Game> games;
+    //A boolean to flag that the server is stopping, so no more games are started.
+    private boolean closed;
+
+    //A player waiting for a game.
+    static class Ticket {
+        //Stands for a seat filled by a bot in a table returned by formTables().
+        static final Ticket BOT = new Ticket(null, null, 0, 0);
+
+        //The players connection, and the reader already used to check their first message.
+        private final Socket connection;
+        private final BufferedReader input;
+        //The players rating, used to match them with players of a similar skill.
+        private final double rating;
+        //The time the player joined the queue, in milliseconds.
+        private final long joined;
+
+        Ticket(Socket connection, BufferedReader input, double rating, long joined) {
+            this.connection = connection;
+            this.input = input;
+            this.rating = rating;
+            this.joined = joined;
+        }
+    }
+
+    //Matchmaker constructor. The queue starts empty.
+    public Matchmaker() {
+        waiting = new ArrayList<>();
+        games = new ArrayList<>();
+        closed = false;
+    }
+
+    //Adds a player to the queue and wakes the matchmaker so they can be matched straight away.
+    public synchronized void enqueue(Socket connection, BufferedReader input, double rating) {
+        waiting.add(new Ticket(connection, input, rating, System.currentTimeMillis()));
+        notifyAll();
+    }
+
+    //Returns the number of players waiting for a game.
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    //Returns the number of games that haven't finished yet.
+    public synchronized int getActiveGames() {
+        games.removeIf(game -> game.isFinished() || game.isHibernated());
+        return games.size();
+    }
+
+    //Returns the games in memory that haven't finished yet.
+    public synchronized List<Game> getResidentGames() {
+        games.removeIf(game -> game.isFinished() || game.isHibernated());
+        return new ArrayList<>(games);
+    }
+
+    //Ends every game that hasn't finished yet with the current scores. Returns the number of games ended.
+    public int endActiveGames() {
+        List<Game> active;
+        synchronized (this) {
+            games.removeIf(game -> game.isFinished() || game.isHibernated());
+            active = new ArrayList<>(games);
+        }
+        for (Game game : active) {
+            game.endGame();
+        }
+        return active.size();
+    }
+
+    //Adds a game read back from disk to the games that haven't finished, so it is ended if the server stops.
+    public synchronized void adopt(Game game) {
+        games.add(game);
+    }
+
+    //Stops the matchmaker starting any more games, and returns the connections of the players still waiting.
+    public synchronized List<Socket> close() {
+        closed = true;
+        List<Socket> connections = new ArrayList<>();
+        for (Ticket ticket : waiting) {
+            connections.add(ticket.connection);
+        }
+        waiting.clear();
+        return connections;
+    }
+
+    /*Forms games from the queue whenever it changes, and on a timer so players who have waited long enough are matched
+     *with a wider range of players.*/
+    @Override
+    public void run() {
+        synchronized (this) {
+            while (!closed) {
+                //Games are started while holding the lock, so close() can't miss a game that is being started.
+                BotPool pool = BotPool.getShared();
+                for (List<Ticket> table : formTables(waiting, System.currentTimeMillis(), pool.getFreeSeats(),
+                        ServerConfig.BOT_FILL_MILLIS)) {
+                    //The bot seats were free when the tables were formed, but bots read back from disk may take some.
+                    int bots = Collections.frequency(table, Ticket.BOT);
+                    if (bots > 0 && !pool.reserve(bots)) {
+                        table.removeIf(ticket -> ticket == Ticket.BOT);
+                        waiting.addAll(0, table);
+                        continue;
+                    }
+                    games.add(start(table, pool));
+                }
+                try {
+                    wait(ServerConfig.MATCH_TICK_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    //Takes the players for as many games as can be formed out of the queue without any bots. See below.
+    static List<List<Ticket>> formTables(List<Ticket> queue, long now) {
+        return formTables(queue, now, 0, 0);
+    }
+
+    /*Takes the players for as many games as can be formed out of the queue and returns them, one list per game.
+     *Each waiting player in turn, oldest first, is matched with the other players closest to their rating, as long as
+     *the whole table, from its lowest rating to its highest, stays within the rating spread allowed for how long the
+     *first player has waited. A game is formed if there are enough of them for the smallest table the first player
+     *will accept by now. If there aren't, and the first player has waited botFillMillis, the table is made up with
+     *Ticket.BOT seats, using no more than botSeats in all. A botFillMillis of 0 never seats bots.*/
+    static List<List<Ticket>> formTables(List<Ticket> queue, long now, int botSeats, long botFillMillis) {
+        List<List<Ticket>> tables = new ArrayList<>();
+        int i = 0;
+        while (i < queue.size()) {
+            Ticket first = queue.get(i);
+            long waited = now - first.joined;
+            double spread = ServerConfig.MATCH_RATING_SPREAD + ServerConfig.MATCH_SPREAD_PER_SECOND * waited / 1000.0;
+            int smallest = Math.max(MIN_TABLE, MAX_TABLE - (int) (waited / ServerConfig.MATCH_SHRINK_MILLIS));
+
+            //Find the other players close enough in rating, closest first.
+            List<Ticket> others = new ArrayList<>();
+            for (Ticket other : queue) {
+                if (other != first && Math.abs(other.rating - first.rating) <= spread) {
+                    others.add(other);
+                }
+            }
+            others.sort(Comparator.comparingDouble(other -> Math.abs(other.rating - first.rating)));
+
+            /*Seat them closest first, skipping anyone who would stretch the table past the spread. Two players on
+             *either side of the first player can each be within the spread of them but not of each other.*/
+            List<Ticket> table = new ArrayList<>();
+            table.add(first);
+            double lowest = first.rating;
+            double highest = first.rating;
+            for (Ticket other : others) {
+                if (table.size() == MAX_TABLE) {
+                    break;
+                }
+                if (Math.max(highest, other.rating) - Math.min(lowest, other.rating) <= spread) {
+                    table.add(other);
+                    lowest = Math.min(lowest, other.rating);
+                    highest = Math.max(highest, other.rating);
+                }
+            }
+            int bots = Math.max(0, smallest - table.size());
+            boolean botsAllowed = botFillMillis > 0 && waited >= botFillMillis;
+            if (bots > 0 && (!botsAllowed || bots > botSeats)) {
+                i++;
+                continue;
+            }
+            queue.removeAll(table);
+            for (int b = 0; b < bots; b++) {
+                table.add(Ticket.BOT);
+            }
+            botSeats -= bots;
+            tables.add(table);
+            //The queue has changed, so start again from the player who has waited longest.
+            i = 0;
+        }
+        return tables;
+    }
+
+    /*Starts a game for a table of players. The player who waited longest is RED and moves first. Bots take the last
+     *seats, played by the pool, which their seats have been reserved in. The game starts as soon as every player's
+     *first tile has been placed.*/
+    private Game start(List<Ticket> table, BotPool pool) {
+        Game game = new Game(table.size());
+        List<GameService> players = new ArrayList<>();
+        List<BotPlayer> bots = new ArrayList<>();
+        for (int i = 0; i < table.size(); i++) {
+            Ticket ticket = table.get(i);
+            PlayerMark mark = PlayerMark.values()[i + 1];
+            if (ticket == Ticket.BOT) {
+                BotPlayer bot = new BotPlayer(game, mark, pool);
+                game.addPlayer(bot);
+                bots.add(bot);
+            } else {
+                GameService gameService = new GameService(game, ticket.connection, ticket.input, mark);
+                game.addPlayer(gameService);
+                players.add(gameService);
+            }
+        }
+        for (GameService gameService : players) {
+            new Thread(gameService).start();
+        }
+        for (BotPlayer bot : bots) {
+            bot.start();
+        }
+        EventLog.log(LogLevel.INFO, "matched", "players", players.size(), "bots", bots.size());
+        return game;
+    }
+}
@@ -0,0 +1,130 @@
+package SocketBasedGame;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*This class measures how much memory one game takes while it is resident on the server, e.g. waiting on slow players,
+ *and how long the garbage collector pauses while games are being played with that many resident. It is given one or
+ *more game counts and reports each in turn, so the pauses can be compared as the count grows. Run it with the same
+ *heap settings as the server, and enough heap for the largest count:
+ *  java -Xmx2g SocketBasedGame.MemoryReport 10000 100000 1000000
+ *Only the game itself is counted. Each connected player also has a connection, a thread and an outbound queue.*/
+public class MemoryReport {
+
+    //The number of games created if none is given.
+    private static final int DEFAULT_GAMES = 100000;
+    //The number of moves made across the resident games while the pauses are measured.
+    private static final int MOVES = 5000000;
+
+    /*The games being measured. Held in a field, so they are plainly still in use while the heap is measured, rather than
+     *only being kept alive by a local variable the JIT may decide is no longer needed.*/
+    private static Game[] resident;
+    //The length of every collection pause since the last count was measured, in milliseconds.
+    private static final List<Long> pauses = Collections.synchronizedList(new ArrayList<>());
+
+    //Main method entry point. Takes the numbers of games to measure.
+    public static void main(String[] args) {
+        listenForPauses();
+        if (args.length == 0) {
+            args = new String[]{String.valueOf(DEFAULT_GAMES)};
+        }
+        for (String arg : args) {
+            measure(Integer.parseInt(arg));
+        }
+    }
+
+    /*Creates count games, reports the memory they use, then plays random moves across them and reports the collection
+     *pauses while doing so. The games are ended afterwards so their board slots are reused by the next count.*/
+    private static void measure(int count) {
+        long before = usedMemory();
+        long slabBefore = BoardSlab.getShared().getReservedBytes();
+        Game[] games = new Game[count];
+        resident = games;
+        for (int i = 0; i < count; i++) {
+            //Each game has a full table that has placed its first tiles, as a game part way through would.
+            games[i] = new Game(Matchmaker.MAX_TABLE);
+            for (int mark = 1; mark <= Matchmaker.MAX_TABLE; mark++) {
+                games[i].placeInitialTile(mark);
+            }
+        }
+        long after = usedMemory();
+        long offHeap = BoardSlab.getShared().getReservedBytes() - slabBefore;
+
+        //Play moves on random games. Each move changes a tile and records the change, as a real move does.
+        pauses.clear();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < MOVES; i++) {
+            Game game = games[random.nextInt(count)];
+            game.setTile(random.nextInt(Game.ROWS), random.nextInt(Game.COLUMNS), 1 + random.nextInt(Matchmaker.MAX_TABLE));
+            game.sendBoard();
+        }
+        List<Long> measured;
+        synchronized (pauses) {
+            measured = new ArrayList<>(pauses);
+        }
+        Collections.sort(measured);
+
+        long heap = Runtime.getRuntime().maxMemory();
+        long perGame = (after - before) / count;
+        System.out.println("games=" + count + " heapBytesPerGame=" + perGame + " offHeapBytes=" + offHeap
+                + " gamesThatFit=" + (heap / Math.max(perGame, 1)));
+        System.out.println("games=" + count + " pauses=" + measured.size() + " p50=" + percentile(measured, 50)
+                + "ms p99=" + percentile(measured, 99) + "ms max=" + percentile(measured, 100) + "ms");
+
+        for (Game game : games) {
+            game.endGame();
+        }
+        resident = null;
+    }
+
+    /*Records the length of every collection pause. Collections that run alongside the program are left out, as are the
+     *ones asked for when measuring the heap.*/
+    private static void listenForPauses() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(collector instanceof NotificationEmitter)) {
+                continue;
+            }
+            ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                if (!info.getGcName().contains("Concurrent") && !info.getGcCause().equals("System.gc()")) {
+                    pauses.add(info.getGcInfo().getDuration());
+                }
+            }, null, null);
+        }
+    }
+
+    //Returns the given percentile of a sorted list of pauses, or 0 if there were none.
+    private static long percentile(List<Long> sorted, int percent) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(sorted.size() * percent / 100.0) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    //Returns the heap in use once the garbage collector has had a chance to clear out anything unreachable.
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
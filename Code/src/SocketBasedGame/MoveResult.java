@@ -0,0 +1,104 @@
+package SocketBasedGame;
+
+/*This class holds a MOVE_RESULT message from the server, split into its parts so a client can apply it.
+ *Format: MOVE_RESULT mover card turn CELLS x y M ... BLOCKED M ... [SCORE Leader Score ...] [END Winner Score ...]
+ *The SCORE and END parts are returned in the same form as the SCORE and END messages, so clients can handle them
+ *the same way.*/
+public class MoveResult {
+
+    //The player who made the move.
+    private final PlayerMark mover;
+    //The influence card used in the move.
+    private final InfluenceCard card;
+    //The player whose turn it is after the move.
+    private final PlayerMark turn;
+    //The changed tiles as x y mark triples.
+    private final int[] cells;
+    //The players the move blocked.
+    private final PlayerMark[] blocked;
+    //The scores as a SCORE response, or null if they weren't sent.
+    private final String scores;
+    //The final scores as an END response, or null if the game hasn't ended.
+    private final String end;
+
+    //MoveResult constructor to split a MOVE_RESULT response into its parts.
+    public MoveResult(Command response) {
+        mover = response.getMark(1);
+        card = response.getCard(2);
+        turn = response.getMark(3);
+
+        //Find where each part starts. The CELLS part always comes first at index 4.
+        int size = response.size();
+        int blockedAt = indexOf(response, "BLOCKED", 5);
+        int scoreAt = indexOf(response, "SCORE", blockedAt + 1);
+        int endAt = indexOf(response, "END", blockedAt + 1);
+        int blockedEnd = scoreAt < size ? scoreAt : endAt;
+
+        cells = new int[blockedAt - 5];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = response.getInt(5 + i);
+        }
+        blocked = new PlayerMark[blockedEnd - blockedAt - 1];
+        for (int i = 0; i < blocked.length; i++) {
+            blocked[i] = response.getMark(blockedAt + 1 + i);
+        }
+        scores = scoreAt < size ? response.getString(scoreAt, endAt) : null;
+        end = endAt < size ? response.getString(endAt, size) : null;
+    }
+
+    //Returns the index of the first word matching word at or after start, or the size of the response if none do.
+    private static int indexOf(Command response, String word, int start) {
+        for (int i = start; i < response.size(); i++) {
+            if (response.wordEquals(i, word)) {
+                return i;
+            }
+        }
+        return response.size();
+    }
+
+    //Writes the tiles the move changed into the given board.
+    public void applyCells(int[][] board) {
+        for (int i = 0; i + 2 < cells.length; i += 3) {
+            applyCell(board, cells[i], cells[i + 1], cells[i + 2]);
+        }
+    }
+
+    /*Writes one changed tile into the given board, for MOVE_RESULT and CELLS messages. A tile off the board or a mark
+     *that doesn't exist, including a word that wasn't a number (Command.INVALID), is ignored rather than thrown on.*/
+    public static void applyCell(int[][] board, int x, int y, int mark) {
+        if (x >= 0 && x < board.length && y >= 0 && y < board[x].length && mark >= 0
+                && mark < PlayerMark.values().length) {
+            board[x][y] = mark;
+        }
+    }
+
+    //Returns the mark of the player who made the move.
+    public PlayerMark getMover() {
+        return mover;
+    }
+
+    //Returns the influence card used in the move.
+    public InfluenceCard getCard() {
+        return card;
+    }
+
+    //Returns the mark of the player whose turn it is after the move.
+    public PlayerMark getTurn() {
+        return turn;
+    }
+
+    //Returns the marks of the players the move blocked.
+    public PlayerMark[] getBlocked() {
+        return blocked;
+    }
+
+    //Returns the scores in the form of a SCORE response, or null if they weren't sent.
+    public String getScores() {
+        return scores;
+    }
+
+    //Returns the final scores in the form of an END response, or null if the move didn't end the game.
+    public String getEnd() {
+        return end;
+    }
+}
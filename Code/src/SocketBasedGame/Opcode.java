@@ -0,0 +1,10 @@
+package SocketBasedGame;
+
+/*This enum represents the first word of every message in the protocol, sent by either the client or the server.
+ *A Command looks up its opcode without creating any objects, so messages can be handled with a switch.
+ *UNKNOWN is used for any word that isn't part of the protocol.*/
+public enum Opcode {
+    MOVE, END, SCORE, ENCODING, RESULTS, NAME, RANK, TOP, RESUME,
+    MESSAGE, MARK, BOARD, BOARD_PACKED, BOARD_RLE, TURN, LEGAL_MOVE, ILLEGAL_MOVE, INVALID_MOVE, CELLS, MOVE_RESULT,
+    LIMITED, TOPOLOGY, UNKNOWN
+}
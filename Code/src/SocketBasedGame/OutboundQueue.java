@@ -0,0 +1,229 @@
+package SocketBasedGame;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*This class holds the messages waiting to be sent to one client. Adding a message never blocks, so a client that
+ *isn't reading can't hold up the game for everyone else. The messages are written by a fixed pool of
+ *ServerConfig.OUTBOUND_WRITERS writer threads, which only use a thread while a queue has something to write, and are
+ *flushed once the queue is empty. A client that stops reading can hold a writer for at most
+ *ServerConfig.OUTBOUND_WRITE_TIMEOUT_MILLIS before it is disconnected, so slow clients never cost a thread each.*/
+public class OutboundQueue implements Runnable {
+
+    //The shared writer threads. They are daemons so they never keep the server running on their own.
+    private static final ExecutorService writers = Executors.newFixedThreadPool(ServerConfig.OUTBOUND_WRITERS,
+            runnable -> {
+                Thread thread = new Thread(runnable, "OutboundWriter");
+                thread.setDaemon(true);
+                return thread;
+            });
+    //The queues a writer thread is sending right now, checked for writes that have been stuck for too long.
+    private static final Set<OutboundQueue> writing = ConcurrentHashMap.newKeySet();
+
+    //Checks for stuck writes twice per timeout, so a stuck client is disconnected at most half a timeout late.
+    static {
+        if (ServerConfig.OUTBOUND_WRITE_TIMEOUT_MILLIS > 0) {
+            ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "OutboundWatchdog");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(1, ServerConfig.OUTBOUND_WRITE_TIMEOUT_MILLIS / 2);
+            watchdog.scheduleWithFixedDelay(OutboundQueue::checkWriters, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    //This is the socket used to communicate with the connected client.
+    private final Socket connection;
+    //This is used to send messages to the client. It is only flushed once everything queued has been written.
+    private final PrintWriter output;
+    //The messages waiting to be sent, oldest first.
+    private final ArrayDeque<String> queue;
+    /*The board message waiting in the queue, if any, so it can be dropped when a newer board is queued. Cleared once
+     *any other message is queued behind it, so a board is never moved after a TURN or END that followed it.*/
+    private String queuedBoard;
+    //A boolean to flag if a writer thread is currently sending this queue's messages.
+    private boolean draining;
+    //A boolean to flag if the queue has been closed. No more messages are accepted once it is.
+    private boolean closed;
+    //When the writer started the write it is in, or 0 if it isn't writing.
+    private volatile long writingSince;
+
+    //OutboundQueue constructor to get the stream from the socket.
+    public OutboundQueue(Socket connection) throws IOException {
+        this.connection = connection;
+        output = new PrintWriter(new BufferedWriter(new OutputStreamWriter(connection.getOutputStream())), false);
+        queue = new ArrayDeque<>();
+        queuedBoard = null;
+        draining = false;
+        closed = false;
+    }
+
+    /*Returns a queue that drops every message, for a player whose game has been read back from disk but who hasn't
+     *reconnected yet.*/
+    public static OutboundQueue closed() {
+        return new OutboundQueue();
+    }
+
+    //OutboundQueue constructor for a queue that is closed from the start.
+    private OutboundQueue() {
+        connection = null;
+        output = null;
+        queue = new ArrayDeque<>();
+        queuedBoard = null;
+        draining = false;
+        closed = true;
+    }
+
+    //Queues a message to be sent to the client.
+    public void offer(String message) {
+        enqueue(message, false);
+    }
+
+    //Queues a full board message to be sent to the client, replacing any board still waiting to be sent.
+    public void offerBoard(String board) {
+        enqueue(board, true);
+    }
+
+    /*Adds the message to the queue and starts a writer on it if one isn't already running. If the client has fallen
+     *too far behind, the queue is emptied and the client is disconnected instead.*/
+    private void enqueue(String message, boolean isBoard) {
+        boolean disconnect = false;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (isBoard) {
+                //A queued board is always the last message in the queue, so it is the one taken off the end.
+                if (queuedBoard != null && ServerConfig.OUTBOUND_COALESCE_BOARDS) {
+                    queue.pollLast();
+                }
+                queuedBoard = message;
+            } else {
+                //The board already queued stays ahead of this message, so the client sees them in order.
+                queuedBoard = null;
+            }
+            if (queue.size() >= ServerConfig.OUTBOUND_HIGH_WATER) {
+                EventLog.log(LogLevel.WARN, "slowClient", "address", connection.getRemoteSocketAddress());
+                closed = true;
+                disconnect = true;
+                queue.clear();
+            } else {
+                queue.add(message);
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+        }
+
+        if (disconnect) {
+            //Closing the socket also unblocks a writer that is stuck sending to this client.
+            closeConnection();
+        } else {
+            writers.execute(this);
+        }
+    }
+
+    /*Closes the queue. Anything already queued is still sent, then the socket is closed.
+     *If nothing is waiting to be sent, the socket is closed straight away.*/
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (draining) {
+                return;
+            }
+        }
+        closeConnection();
+    }
+
+    //Writes the queued messages until the queue is empty. Only one writer thread runs this for a queue at a time.
+    @Override
+    public void run() {
+        writing.add(this);
+        try {
+            drain();
+        } finally {
+            writingSince = 0;
+            writing.remove(this);
+        }
+    }
+
+    //Writes the queued messages until the queue is empty, timing each write so a stuck one can be found.
+    private void drain() {
+        while (true) {
+            String message;
+            synchronized (this) {
+                message = queue.poll();
+                if (message != null && message == queuedBoard) {
+                    queuedBoard = null;
+                }
+            }
+
+            writingSince = System.currentTimeMillis();
+            if (message != null) {
+                output.println(message);
+            } else {
+                //Everything queued has been written, so send it. checkError() flushes and reports any failure.
+                boolean failed = output.checkError();
+                writingSince = 0;
+                synchronized (this) {
+                    if (failed) {
+                        closed = true;
+                        queue.clear();
+                    }
+                    if (queue.isEmpty()) {
+                        draining = false;
+                        if (!closed) {
+                            return;
+                        }
+                    } else {
+                        continue;
+                    }
+                }
+                closeConnection();
+                return;
+            }
+        }
+    }
+
+    /*Disconnects every client whose write has been stuck for longer than ServerConfig.OUTBOUND_WRITE_TIMEOUT_MILLIS.
+     *Closing the socket makes the stuck write fail, which frees its writer thread.*/
+    private static void checkWriters() {
+        long now = System.currentTimeMillis();
+        for (OutboundQueue stuck : writing) {
+            long since = stuck.writingSince;
+            if (since != 0 && now - since > ServerConfig.OUTBOUND_WRITE_TIMEOUT_MILLIS) {
+                EventLog.log(LogLevel.WARN, "slowClient", "address", stuck.connection.getRemoteSocketAddress(),
+                        "stuckMillis", now - since);
+                synchronized (stuck) {
+                    stuck.closed = true;
+                    stuck.queue.clear();
+                }
+                stuck.closeConnection();
+            }
+        }
+    }
+
+    //Closes the socket to the client.
+    private void closeConnection() {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (IOException e) {
+            //Nothing else can be done if the socket fails to close.
+        }
+    }
+}
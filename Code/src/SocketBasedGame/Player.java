@@ -0,0 +1,67 @@
+package SocketBasedGame;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/*This interface is a seat in a Game. A seat is either a GameService, which passes everything on to a client over its
+ *connection, or a BotPlayer, which plays the seat inside the server. The game treats both the same.*/
+public interface Player {
+
+    //Returns the players mark.
+    PlayerMark getPlayerMark();
+
+    //Returns the name the player is rated under, or null if they haven't given one.
+    String getPlayerName();
+
+    //Returns the token that identifies the player's seat, used to reconnect to it and to name the game on disk.
+    String getToken();
+
+    //Returns the influence cards the player still has, one bit per card, indexed by the cards ordinal.
+    int getCards();
+
+    //Checks if the player still has an influence card.
+    boolean hasCard(InfluenceCard card);
+
+    //Returns whether the player is blocked or not.
+    boolean isBlocked();
+
+    //Sets the player as blocked.
+    void setBlocked();
+
+    //Returns whether the player wants the scores whenever the board changes.
+    boolean wantsScores();
+
+    //Returns whether the player wants one MOVE_RESULT message per move.
+    boolean wantsMoveResults();
+
+    //Returns the encoding the player wants the board sent in, or null if they don't want it sent.
+    BoardEncoding getBoardEncoding();
+
+    //Sends the player the board, already encoded in the player's board encoding.
+    void updateBoard(String board);
+
+    //Sends the player the current leader and scores.
+    void updateScores(String scores);
+
+    /*Tells the player their move was made, once the turn has moved on and before the game is checked for its end.
+     *The player uses up the card, and a client that doesn't get MOVE_RESULT messages is sent LEGAL_MOVE.*/
+    void moveMade(InfluenceCard card);
+
+    //Tells the player whose turn it is.
+    void informClientOfTurn(PlayerMark mark);
+
+    //Sends the player everything that changed in a move. For the mover, this is the reply to their move.
+    void sendMoveResult(String result, boolean isReply);
+
+    //Sends the player an event they missed, numbered with the events own sequence number.
+    void replay(long seq, String event);
+
+    //Tells the player the game has ended and the final scores.
+    void end(String scores);
+
+    //Tells the player their game has been written to disk. Called without holding the game lock.
+    void hibernate();
+
+    //Writes the player's own state for Game.writeTo().
+    void writeTo(DataOutputStream out) throws IOException;
+}
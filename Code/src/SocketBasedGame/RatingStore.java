@@ -0,0 +1,348 @@
+package SocketBasedGame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*This class keeps every named player's Elo rating in a memory-mapped file, so ratings last between games and server
+ *restarts. The whole file is indexed in memory when it is opened, so looking up a player's rank or the top players
+ *never reads the disk. Finished games are queued and applied in batches by a background thread, so a game never
+ *waits for the file to be written. Lookups read a snapshot taken after each batch, so they never wait for one either.
+ *File format: MAGIC count, then one RECORD_SIZE record per player: name length, name, rating, games, wins.*/
+public class RatingStore {
+
+    //The rating a new player starts with.
+    public static final int INITIAL_RATING = 1500;
+    //The most a player's rating can change by in one game.
+    private static final double K_FACTOR = 32;
+    //The longest name a player can use.
+    public static final int MAX_NAME_LENGTH = 16;
+    //Identifies a ratings file.
+    private static final int MAGIC = 0x52415431;
+    //The size of the file header: MAGIC and the number of records.
+    private static final int HEADER_SIZE = 8;
+    //The size of one player's record: name length, name, rating, games and wins.
+    private static final int RECORD_SIZE = 1 + MAX_NAME_LENGTH + 8 + 4 + 4;
+    //The highest rating told apart when working out ranks. Higher ratings share the top rank.
+    private static final int MAX_BUCKET = 4000;
+    //The most finished games applied in one batch.
+    private static final int BATCH_SIZE = 1024;
+
+    //The store used by the server, opened the first time it is needed.
+    private static RatingStore shared;
+
+    //The file holding the ratings.
+    private final FileChannel file;
+    //The mapped part of the file. Remapped larger when it fills up.
+    private MappedByteBuffer map;
+    //Every player's record, indexed by their name.
+    private final Map<String, Rating> players;
+    //Every player's record, highest rating first, for the top players.
+    private final TreeSet<Rating> ranking;
+    //The ratings as they were after the last batch. Replaced as a whole, so it can be read without the lock.
+    private volatile Snapshot snapshot;
+    //The finished games waiting to be applied.
+    private final BlockingQueue<Result> pending;
+    //The number of games ever queued, and the number the writer has finished with.
+    private final AtomicLong submitted;
+    private volatile long written;
+
+    //One player's rating.
+    private static class Rating {
+        //The player's name.
+        private final String name;
+        //The position of the player's record in the file.
+        private final int slot;
+        //The player's Elo rating.
+        private double rating;
+        //The number of rated games the player has finished, and the number they won.
+        private int games;
+        private int wins;
+
+        private Rating(String name, int slot) {
+            this.name = name;
+            this.slot = slot;
+            rating = INITIAL_RATING;
+            games = 0;
+            wins = 0;
+        }
+    }
+
+    //Every player's rating and rank at one point in time. Never changed once built.
+    private static class Snapshot {
+        //Every player's name, highest rating first, with their rating and rank in the same order.
+        private final String[] names;
+        private final double[] ratings;
+        private final int[] ranks;
+        //The position of each player in the arrays above, by name.
+        private final Map<String, Integer> positions;
+
+        //Snapshot constructor to copy the ranking. Players whose ratings round to the same number share a rank.
+        private Snapshot(TreeSet<Rating> ranking) {
+            int n = ranking.size();
+            names = new String[n];
+            ratings = new double[n];
+            ranks = new int[n];
+            positions = new HashMap<>(n * 2);
+            int i = 0;
+            for (Rating rating : ranking) {
+                names[i] = rating.name;
+                ratings[i] = rating.rating;
+                ranks[i] = i > 0 && bucketOf(ratings[i]) == bucketOf(ratings[i - 1]) ? ranks[i - 1] : i + 1;
+                positions.put(rating.name, i);
+                i++;
+            }
+        }
+    }
+
+    //The names and scores of the named players in one finished game.
+    private static class Result {
+        //The names of the players, and their scores in the same order.
+        private final String[] names;
+        private final int[] scores;
+
+        private Result(String[] names, int[] scores) {
+            this.names = names;
+            this.scores = scores;
+        }
+    }
+
+    //RatingStore constructor to open or create the ratings file and index everything in it.
+    public RatingStore(File path) throws IOException {
+        file = new RandomAccessFile(path, "rw").getChannel();
+        players = new HashMap<>();
+        ranking = new TreeSet<>(Comparator.comparingDouble((Rating r) -> -r.rating).thenComparing(r -> r.name));
+        pending = new LinkedBlockingQueue<>();
+        submitted = new AtomicLong();
+        written = 0;
+
+        boolean isNew = file.size() < HEADER_SIZE;
+        map = file.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(file.size(), HEADER_SIZE + 64 * RECORD_SIZE));
+        if (isNew) {
+            map.putInt(0, MAGIC);
+            map.putInt(4, 0);
+        } else if (map.getInt(0) != MAGIC) {
+            throw new IOException(path + " is not a ratings file.");
+        }
+
+        //Load every record into the index.
+        int count = map.getInt(4);
+        byte[] name = new byte[MAX_NAME_LENGTH];
+        for (int slot = 0; slot < count; slot++) {
+            int offset = HEADER_SIZE + slot * RECORD_SIZE;
+            int length = map.get(offset);
+            for (int i = 0; i < length; i++) {
+                name[i] = map.get(offset + 1 + i);
+            }
+            Rating rating = new Rating(new String(name, 0, length, StandardCharsets.US_ASCII), slot);
+            rating.rating = map.getDouble(offset + 1 + MAX_NAME_LENGTH);
+            rating.games = map.getInt(offset + 1 + MAX_NAME_LENGTH + 8);
+            rating.wins = map.getInt(offset + 1 + MAX_NAME_LENGTH + 12);
+            players.put(rating.name, rating);
+            ranking.add(rating);
+        }
+        snapshot = new Snapshot(ranking);
+    }
+
+    /*Returns the store used by the server, opening the file named by ServerConfig.RATINGS_FILE and starting its
+     *writer the first time. Returns null if ratings are turned off or the file can't be opened, in which case games
+     *are just not rated.*/
+    public static synchronized RatingStore getShared() {
+        if (shared == null && !ServerConfig.RATINGS_FILE.isEmpty()) {
+            try {
+                shared = new RatingStore(new File(ServerConfig.RATINGS_FILE));
+                Thread writer = new Thread(shared::writeBatches, "RatingWriter");
+                writer.setDaemon(true);
+                writer.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return shared;
+    }
+
+    //Checks a name can be used. Names are 1 to MAX_NAME_LENGTH letters, digits or underscores.
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Queues a finished game to be rated. This never blocks, so it is safe to call while holding the game lock.
+    public void submit(String[] names, int[] scores) {
+        submitted.incrementAndGet();
+        pending.offer(new Result(names, scores));
+    }
+
+    /*Waits until every game queued so far has been written to the file, or the time runs out. Returns false if the
+     *time ran out first. Used when the server stops, so no results are lost.*/
+    public boolean awaitWritten(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        while (written < submitted.get()) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Applies queued games in batches, writing the file once per batch. Run by the writer thread.
+    private void writeBatches() {
+        List<Result> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+                pending.drainTo(batch, BATCH_SIZE - 1);
+                synchronized (this) {
+                    for (Result result : batch) {
+                        rate(result.names, result.scores);
+                    }
+                    snapshot = new Snapshot(ranking);
+                }
+                //Only this thread changes the mapping, so the file can be written without blocking lookups.
+                map.force();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                //The file couldn't be grown. The ratings stay up to date in memory.
+                e.printStackTrace();
+            }
+            written += batch.size();
+            batch.clear();
+        }
+    }
+
+    //Updates the ratings of the players in one game straight away, rather than queueing it. Used by the tests.
+    synchronized void apply(String[] names, int[] scores) throws IOException {
+        rate(names, scores);
+        snapshot = new Snapshot(ranking);
+    }
+
+    /*Updates the ratings of the players in one game. Each player is rated against every other player in the game as
+     *if they played each other, winning if they had more tiles, and the changes are averaged over their opponents.
+     *The win goes to the same player Game.getLeader() names, as both use Game.leaderOf().*/
+    private void rate(String[] names, int[] scores) throws IOException {
+        int n = names.length;
+        Rating[] ratings = new Rating[n];
+        for (int i = 0; i < n; i++) {
+            ratings[i] = find(names[i]);
+        }
+
+        //Work out all the changes from the ratings before the game, then apply them.
+        double[] changes = new double[n];
+        int best = Game.leaderOf(scores, 0, n);
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                if (i != j) {
+                    double expected = 1 / (1 + Math.pow(10, (ratings[j].rating - ratings[i].rating) / 400));
+                    double actual = scores[i] > scores[j] ? 1 : scores[i] == scores[j] ? 0.5 : 0;
+                    changes[i] += K_FACTOR * (actual - expected) / (n - 1);
+                }
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            //The ranking is ordered by rating, so the player is taken out while their rating changes.
+            ranking.remove(ratings[i]);
+            ratings[i].rating += changes[i];
+            ratings[i].games++;
+            if (i == best) {
+                ratings[i].wins++;
+            }
+            ranking.add(ratings[i]);
+            write(ratings[i]);
+        }
+    }
+
+    //Returns the rating of a player, their rank and the number of rated players, or null if they have never been rated.
+    public String getRating(String name) {
+        Snapshot current = snapshot;
+        Integer i = current.positions.get(name);
+        return i == null ? null
+                : name + " " + Math.round(current.ratings[i]) + " " + current.ranks[i] + " " + current.names.length;
+    }
+
+    //Returns the rating of a player, or INITIAL_RATING if they have never been rated.
+    public double getRatingValue(String name) {
+        Snapshot current = snapshot;
+        Integer i = current.positions.get(name);
+        return i == null ? INITIAL_RATING : current.ratings[i];
+    }
+
+    //Returns up to n of the highest rated players as name rating pairs, highest first.
+    public String getTop(int n) {
+        Snapshot current = snapshot;
+        StringBuilder top = new StringBuilder();
+        for (int i = 0; i < Math.min(n, current.names.length); i++) {
+            top.append(current.names[i]).append(' ').append(Math.round(current.ratings[i])).append(' ');
+        }
+        return top.toString().trim();
+    }
+
+    //Returns a player's record, creating it and giving it a slot in the file if they are new.
+    private Rating find(String name) throws IOException {
+        Rating rating = players.get(name);
+        if (rating == null) {
+            rating = new Rating(name, players.size());
+            int end = HEADER_SIZE + (rating.slot + 1) * RECORD_SIZE;
+            if (end > map.capacity()) {
+                map.force();
+                map = file.map(FileChannel.MapMode.READ_WRITE, 0, map.capacity() * 2L);
+            }
+            players.put(name, rating);
+            ranking.add(rating);
+            byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+            int offset = HEADER_SIZE + rating.slot * RECORD_SIZE;
+            map.put(offset, (byte) bytes.length);
+            for (int i = 0; i < bytes.length; i++) {
+                map.put(offset + 1 + i, bytes[i]);
+            }
+            write(rating);
+            map.putInt(4, players.size());
+        }
+        return rating;
+    }
+
+    //Writes a player's rating, games and wins to their record.
+    private void write(Rating rating) {
+        int offset = HEADER_SIZE + rating.slot * RECORD_SIZE + 1 + MAX_NAME_LENGTH;
+        map.putDouble(offset, rating.rating);
+        map.putInt(offset + 8, rating.games);
+        map.putInt(offset + 12, rating.wins);
+    }
+
+    //Returns the bucket for a rating, its whole number limited to 0 to MAX_BUCKET. Players in a bucket share a rank.
+    private static int bucketOf(double rating) {
+        return (int) Math.max(0, Math.min(MAX_BUCKET, Math.round(rating)));
+    }
+
+    //Writes everything to disk and closes the file.
+    public synchronized void close() throws IOException {
+        map.force();
+        file.close();
+    }
+}
@@ -0,0 +1,61 @@
+package SocketBasedGame;
+
+/*This class holds the most recent game events (board changes, turns and the end of the game) along with their
+ *sequence numbers. A client that reconnects is sent the events it missed from here, as long as none of them have
+ *been overwritten yet. The buffer is a fixed size ring, so old events are overwritten as new ones are added.*/
+public class ReplayBuffer {
+
+    //The events, stored at the index of their sequence number modulo the capacity.
+    private final String[] events;
+    //The sequence number of the latest event added. Sequence numbers start at 1.
+    private long latest;
+    //The sequence number of the first event held. Events before it were lost when the game was written to disk.
+    private long first;
+
+    //ReplayBuffer constructor to allocate space for the given number of events.
+    public ReplayBuffer(int capacity) {
+        events = new String[capacity];
+        latest = 0;
+        first = 1;
+    }
+
+    /*Carries on numbering events from the given sequence number, for a game read back from disk. The events before it
+     *weren't kept, so a client that missed any of them is sent the full board.*/
+    public void skipTo(long seq) {
+        latest = seq;
+        first = seq + 1;
+    }
+
+    //Adds an event and returns its sequence number.
+    public long add(String event) {
+        latest++;
+        events[(int) (latest % events.length)] = event;
+        return latest;
+    }
+
+    //Returns the sequence number of the latest event, or 0 if there hasn't been one.
+    public long getLatest() {
+        return latest;
+    }
+
+    /*Returns the events after the given sequence number, oldest first, where the event at index i has sequence number
+     *lastSeen + 1 + i. Returns null if some of them have already been overwritten.*/
+    public String[] since(long lastSeen) {
+        //A client ahead of the game was following a server that has since been replaced, so it needs the whole board.
+        if (lastSeen > latest) {
+            return null;
+        }
+        if (lastSeen == latest) {
+            return new String[0];
+        }
+        if (lastSeen + 1 < first || latest - lastSeen > events.length) {
+            return null;
+        }
+
+        String[] missed = new String[(int) (latest - lastSeen)];
+        for (int i = 0; i < missed.length; i++) {
+            missed[i] = events[(int) ((lastSeen + 1 + i) % events.length)];
+        }
+        return missed;
+    }
+}
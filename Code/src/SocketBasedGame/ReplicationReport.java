@@ -0,0 +1,270 @@
+package SocketBasedGame;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*This class measures what replication adds to the time a player waits for their move to be answered. It starts a
+ *server on its own, and then a primary with a standby following it, each as a separate process on this machine. The
+ *same number of moves are played against each by clients connected over local sockets. A move is timed from sending
+ *the MOVE to reading its answer, so the time includes everything the server does for a move, the network and the
+ *replication. The report gives the average, median and 99th percentile both ways, and the share added by replication:
+ *  java -cp <classes> SocketBasedGame.ReplicationReport 50 20000*/
+public class ReplicationReport {
+
+    //The number of clients playing at once and the number of moves timed if none are given.
+    private static final int DEFAULT_PLAYERS = 50;
+    private static final int DEFAULT_MOVES = 20000;
+    //The ports the servers being measured use.
+    private static final int GAME_PORT = 18080;
+    private static final int STANDBY_PORT = 18081;
+    private static final int REPLICATE_PORT = 18070;
+    //How long, in seconds, a server is given to start.
+    private static final int START_SECONDS = 30;
+
+    //Main method entry point. Takes the number of clients playing at once and the number of moves to time.
+    public static void main(String[] args) throws Exception {
+        int players = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PLAYERS;
+        int moves = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MOVES;
+        File folder = Files.createTempDirectory("replication").toFile();
+
+        Process alone = startServer(folder, "alone", GAME_PORT, "-Dgame.replicate.port=0");
+        long[] aloneTimes;
+        try {
+            //Warm up first, so both measurements run compiled code.
+            playMoves(GAME_PORT, players, moves / 5);
+            aloneTimes = playMoves(GAME_PORT, players, moves);
+        } finally {
+            stop(alone);
+        }
+
+        Process primary = startServer(folder, "primary", GAME_PORT, "-Dgame.replicate.port=" + REPLICATE_PORT);
+        Process standby = null;
+        long[] replicatedTimes;
+        try {
+            //The standby doesn't print anything until it takes over, so it is only started, not waited for.
+            standby = launch(folder, "standby", STANDBY_PORT, "-Dgame.standby=localhost:" + REPLICATE_PORT);
+            playMoves(GAME_PORT, players, moves / 5);
+            replicatedTimes = playMoves(GAME_PORT, players, moves);
+        } finally {
+            //The standby is stopped first, so it doesn't take over from the primary.
+            if (standby != null) {
+                stop(standby);
+            }
+            stop(primary);
+        }
+
+        System.out.println("players=" + players + " moves=" + moves);
+        System.out.println("alone: " + describe(aloneTimes));
+        System.out.println("replicated: " + describe(replicatedTimes));
+        //The average is pulled about by the few slowest moves, so the change in the median is given too.
+        System.out.println("averageOverhead=" + overhead(average(aloneTimes), average(replicatedTimes))
+                + " p50Overhead=" + overhead(median(aloneTimes), median(replicatedTimes)));
+    }
+
+    //Returns how much longer the replicated time is than the time alone, as a percentage.
+    private static String overhead(long alone, long replicated) {
+        return alone == 0 ? "n/a" : String.format("%.1f", 100.0 * (replicated - alone) / alone) + "%";
+    }
+
+    //Returns the middle of the times, which are sorted in order, in nanoseconds.
+    private static long median(long[] times) {
+        return times.length == 0 ? 0 : times[times.length / 2];
+    }
+
+    /*Starts a game server in its own process and waits until it is accepting players. Each server has its own folder
+     *for its games on disk, ratings and log, so the runs don't affect each other.*/
+    private static Process startServer(File folder, String name, int port, String... properties) throws Exception {
+        Process server = launch(folder, name, port, properties);
+        CountDownLatch started = new CountDownLatch(1);
+        Thread reader = new Thread(() -> {
+            try (BufferedReader output = new BufferedReader(new InputStreamReader(server.getInputStream()))) {
+                String line;
+                while ((line = output.readLine()) != null) {
+                    if (line.startsWith("Started The Server")) {
+                        started.countDown();
+                    }
+                }
+            } catch (IOException e) {
+                //The server has stopped.
+            }
+        }, name + "Output");
+        reader.setDaemon(true);
+        reader.start();
+        if (!started.await(START_SECONDS, TimeUnit.SECONDS)) {
+            stop(server);
+            throw new IOException("The " + name + " server didn't start. See " + new File(folder, name + ".log"));
+        }
+        return server;
+    }
+
+    /*Runs a game server in its own process with the given extra system properties. Rate limits are turned off and
+     *tables are filled quickly, so the clients are never held up by anything but the server's work.*/
+    private static Process launch(File folder, String name, int port, String... properties) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dgame.headless=true");
+        command.add("-Dgame.log.file=" + new File(folder, name + ".log"));
+        command.add("-Dgame.hibernate.dir=" + new File(folder, name));
+        command.add("-Dgame.ratings.file=" + new File(folder, name + ".dat"));
+        command.add("-Dgame.archive.file=");
+        command.add("-Dgame.rate.perSecond=0");
+        command.add("-Dgame.rate.gamePerSecond=0");
+        command.add("-Dgame.match.shrinkMillis=100");
+        command.add("-Dgame.bot.fillMillis=500");
+        command.addAll(Arrays.asList(properties));
+        command.add("SocketBasedGame.GameServer");
+        command.add(String.valueOf(port));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        return builder.start();
+    }
+
+    //Stops a server straight away, without letting its games finish.
+    private static void stop(Process server) throws InterruptedException {
+        server.destroyForcibly();
+        server.waitFor();
+    }
+
+    /*Plays games against the server on the given port with the given number of clients at once, until the given
+     *number of moves have been made. Returns the time, in nanoseconds, each move took to be answered, in order.*/
+    private static long[] playMoves(int port, int players, int moves) throws InterruptedException {
+        AtomicInteger remaining = new AtomicInteger(moves);
+        List<long[]> results = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < players; i++) {
+            long[] times = new long[moves + 1];
+            results.add(times);
+            Thread player = new Thread(() -> playGames(port, remaining, times), "Player" + i);
+            threads.add(player);
+            player.start();
+        }
+        int count = 0;
+        for (Thread player : threads) {
+            player.join();
+        }
+        for (long[] times : results) {
+            count += (int) times[0];
+        }
+        long[] all = new long[count];
+        int next = 0;
+        for (long[] times : results) {
+            System.arraycopy(times, 1, all, next, (int) times[0]);
+            next += (int) times[0];
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    /*Plays one game after another as a single client until the moves run out. The time taken to answer each move is
+     *added to times, whose first entry counts the times recorded.*/
+    private static void playGames(int port, AtomicInteger remaining, long[] times) {
+        while (remaining.get() > 0) {
+            try {
+                ClientConnection server = new ClientConnection("localhost", port);
+                try {
+                    playGame(server, remaining, times);
+                } finally {
+                    server.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Player lost: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /*Plays one game, growing into a random empty tile next to the player's own on each turn. The player leaves the game
+     *when the moves run out, it has no such tile or a move isn't accepted, as the report only needs moves to time.*/
+    private static void playGame(ClientConnection server, AtomicInteger remaining, long[] times) throws IOException {
+        byte[] board = new byte[Game.ROWS * Game.COLUMNS];
+        int mark = PlayerMark.NONE.ordinal();
+        int turn = PlayerMark.NONE.ordinal();
+        long sentAt = 0;
+        while (true) {
+            String[] words = server.readLine().split(" ");
+            switch (words[0]) {
+                case "MARK":
+                    mark = PlayerMark.valueOf(words[1]).ordinal();
+                    break;
+                case "BOARD":
+                    for (int cell = 0; cell < board.length; cell++) {
+                        board[cell] = Byte.parseByte(words[cell + 1]);
+                    }
+                    break;
+                case "TURN":
+                    turn = PlayerMark.valueOf(words[1]).ordinal();
+                    break;
+                case "LEGAL_MOVE":
+                case "ILLEGAL_MOVE":
+                case "INVALID_MOVE":
+                case "LIMITED":
+                    times[(int) ++times[0]] = System.nanoTime() - sentAt;
+                    sentAt = 0;
+                    if (!words[0].equals("LEGAL_MOVE")) {
+                        server.send("END");
+                        return;
+                    }
+                    break;
+                case "END":
+                    server.send("END");
+                    return;
+                default:
+                    break;
+            }
+            //The next turn is announced before the answer to the last move, so a move is only made once it is answered.
+            if (turn == mark && mark != PlayerMark.NONE.ordinal() && sentAt == 0) {
+                int cell = chooseTile(board, mark);
+                if (cell < 0 || remaining.getAndDecrement() <= 0) {
+                    server.send("END");
+                    return;
+                }
+                sentAt = System.nanoTime();
+                server.send("MOVE NONE " + (cell / Game.COLUMNS) + " " + (cell % Game.COLUMNS));
+                turn = PlayerMark.NONE.ordinal();
+            }
+        }
+    }
+
+    //Returns a random empty tile next to one of the player's own, or -1 if there isn't one.
+    private static int chooseTile(byte[] board, int mark) {
+        int start = ThreadLocalRandom.current().nextInt(board.length);
+        for (int i = 0; i < board.length; i++) {
+            int cell = (start + i) % board.length;
+            if (board[cell] == PlayerMark.NONE.ordinal() && Game.TOPOLOGY.touches(board, cell, mark)) {
+                return cell;
+            }
+        }
+        return -1;
+    }
+
+    //Returns the average of the times, in nanoseconds.
+    private static long average(long[] times) {
+        long total = 0;
+        for (long time : times) {
+            total += time;
+        }
+        return times.length == 0 ? 0 : total / times.length;
+    }
+
+    //Describes the times, sorted in order, with their average and percentiles in microseconds.
+    private static String describe(long[] times) {
+        if (times.length == 0) {
+            return "moves=0";
+        }
+        return "moves=" + times.length + " averageMicros=" + average(times) / 1000
+                + " p50Micros=" + median(times) / 1000
+                + " p99Micros=" + times[Math.min(times.length - 1, (int) (times.length * 0.99))] / 1000;
+    }
+}
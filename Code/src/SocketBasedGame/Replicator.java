@@ -0,0 +1,203 @@
+package SocketBasedGame;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/*This class streams the games on this server to a standby server, so the games survive if this process dies. The
+ *standby connects to the replication port, and from then on every game that changes is sent to it. A game is sent as
+ *a whole, in the same compact form used to write idle games to disk, so the standby never has to apply changes in
+ *order and a game that changes several times before it is sent is only sent once. Games are sent in batches, and the
+ *standby acknowledges each batch, so how far behind it is can be seen. See Standby for the other end.
+ *The first batch sent to a standby holds every game, both those in memory and those written to disk, so it can
+ *replace whatever the standby had. A batch with no records is a heartbeat, sent when nothing has changed for
+ *ServerConfig.REPLICATE_HEARTBEAT_MILLIS, so the standby can tell a quiet primary from one that has gone.
+ *Batch: number, record count, then each record: GAME id length bytes, or REMOVE id once the game has finished.*/
+public class Replicator implements Runnable {
+
+    //The record types in a batch.
+    static final int GAME = 1;
+    static final int REMOVE = 2;
+
+    //The replicator used by the server, or null if the server isn't replicating.
+    private static volatile Replicator shared;
+
+    //The port the standby connects to.
+    private final ServerSocket server;
+    //Returns every game in memory, to send to a standby when it first connects.
+    private final Supplier<List<Game>> residentGames;
+    //Returns every game written to disk, as written by Game.writeTo(), to send to a standby when it first connects.
+    private final Supplier<List<byte[]>> storedGames;
+    //The games that have changed since they were last sent, in the order they changed.
+    private final Set<Game> changed;
+    //A boolean to flag that a standby is connected, so changes are worth recording.
+    private volatile boolean connected;
+    //The number of the last batch sent, and the last one the standby acknowledged.
+    private volatile long sent;
+    private volatile long acked;
+    //The total time, in nanoseconds, spent writing out games, and the number of games written, for the report.
+    private volatile long snapshotNanos;
+    private volatile long snapshots;
+
+    //Replicator constructor to listen for a standby on the given port. 0 picks any free port.
+    public Replicator(int port, Supplier<List<Game>> residentGames, Supplier<List<byte[]>> storedGames)
+            throws IOException {
+        server = new ServerSocket(port);
+        this.residentGames = residentGames;
+        this.storedGames = storedGames;
+        changed = new LinkedHashSet<>();
+        connected = false;
+        sent = 0;
+        acked = 0;
+    }
+
+    //Makes this the replicator the games report their changes to.
+    public static void setShared(Replicator replicator) {
+        shared = replicator;
+    }
+
+    /*Records that a game has changed, so it is sent to the standby. Called by the game, under its lock, for every
+     *change its players are told about. This only adds the game to a set, so it doesn't hold up the move.*/
+    public static void changed(Game game) {
+        Replicator replicator = shared;
+        if (replicator != null && replicator.connected) {
+            replicator.add(game);
+        }
+    }
+
+    //Adds a game to the changed games and wakes the sender.
+    private synchronized void add(Game game) {
+        if (changed.add(game) && changed.size() == 1) {
+            notifyAll();
+        }
+    }
+
+    //Returns the port the standby connects to.
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    //Checks if a standby is connected.
+    public boolean isConnected() {
+        return connected;
+    }
+
+    //Returns the number of batches sent that the standby hasn't acknowledged yet.
+    public long getLag() {
+        return sent - acked;
+    }
+
+    //Returns the average time, in nanoseconds, taken to write out one game for sending.
+    public long getSnapshotNanos() {
+        return snapshots == 0 ? 0 : snapshotNanos / snapshots;
+    }
+
+    //Accepts one standby at a time and sends it every change until it disconnects.
+    @Override
+    public void run() {
+        while (true) {
+            try (Socket standby = server.accept()) {
+                standby.setTcpNoDelay(true);
+                EventLog.log(LogLevel.INFO, "standbyConnected", "address", standby.getRemoteSocketAddress());
+                Thread acks = new Thread(() -> readAcks(standby), "ReplicationAcks");
+                acks.setDaemon(true);
+                acks.start();
+                //Start with every game, then keep the standby up to date.
+                synchronized (this) {
+                    changed.addAll(residentGames.get());
+                    connected = true;
+                }
+                sendChanges(new DataOutputStream(new BufferedOutputStream(standby.getOutputStream())),
+                        storedGames.get());
+            } catch (IOException e) {
+                EventLog.log(LogLevel.WARN, "standbyLost", "error", e.getMessage());
+            }
+            synchronized (this) {
+                connected = false;
+                changed.clear();
+            }
+        }
+    }
+
+    /*Sends the changed games in batches until the standby goes away. Changes that happen while a batch is being sent
+     *go into the next one. The games on disk are sent with the first batch, and an empty batch is sent whenever
+     *nothing has changed for a heartbeat.*/
+    private void sendChanges(DataOutputStream out, List<byte[]> stored) throws IOException {
+        List<Game> batch = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        while (true) {
+            synchronized (this) {
+                if (changed.isEmpty()) {
+                    try {
+                        wait(ServerConfig.REPLICATE_HEARTBEAT_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch.addAll(changed);
+                changed.clear();
+            }
+
+            out.writeLong(sent + 1);
+            out.writeInt(stored.size() + batch.size());
+            for (byte[] game : stored) {
+                out.writeByte(GAME);
+                out.writeUTF(Game.readTokens(new DataInputStream(new ByteArrayInputStream(game)))[0]);
+                out.writeInt(game.length);
+                out.write(game);
+            }
+            stored = Collections.emptyList();
+            for (Game game : batch) {
+                List<Player> players = game.getPlayers();
+                String id = players.isEmpty() ? "" : players.get(0).getToken();
+                long start = System.nanoTime();
+                bytes.reset();
+                boolean finished;
+                synchronized (game) {
+                    finished = game.isFinished();
+                    if (!finished) {
+                        game.writeTo(new DataOutputStream(bytes));
+                    }
+                }
+                snapshotNanos += System.nanoTime() - start;
+                snapshots++;
+                if (finished) {
+                    out.writeByte(REMOVE);
+                    out.writeUTF(id);
+                } else {
+                    out.writeByte(GAME);
+                    out.writeUTF(id);
+                    out.writeInt(bytes.size());
+                    bytes.writeTo(out);
+                }
+            }
+            out.flush();
+            sent++;
+            batch.clear();
+        }
+    }
+
+    //Reads the standby's acknowledgements, each the number of the latest batch it has applied.
+    private void readAcks(Socket standby) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(standby.getInputStream()));
+            while (true) {
+                acked = in.readLong();
+            }
+        } catch (IOException e) {
+            //The standby has gone. The sender finds out when it next writes.
+        }
+    }
+}
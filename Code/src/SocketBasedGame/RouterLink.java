@@ -0,0 +1,42 @@
+package SocketBasedGame;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+/*This class reports a GameServer's load to a GameRouter, when the server is run as a backend of a cluster. The
+ *report is sent whenever a player joins and on a timer, so the router also notices when the game has finished.*/
+public class RouterLink implements Runnable {
+
+    //This is the connection to the routers control port.
+    private final Socket connection;
+    //This is used to send reports to the router.
+    private final PrintWriter output;
+
+    //RouterLink constructor to connect to the router and tell it the port this server's clients connect to.
+    public RouterLink(String router, int controlPort, int port) throws IOException {
+        connection = new Socket(router, controlPort);
+        output = new PrintWriter(connection.getOutputStream(), true);
+        output.println("BACKEND " + port);
+    }
+
+    //Sends the current load to the router on a timer until the connection to the router is lost.
+    @Override
+    public void run() {
+        try {
+            while (!output.checkError()) {
+                report();
+                Thread.sleep(ServerConfig.LOAD_REPORT_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            //The server is stopping.
+        }
+        EventLog.log(LogLevel.WARN, "routerLost");
+    }
+
+    //Sends LOAD players seats waiting to the router.
+    public synchronized void report() {
+        output.println("LOAD " + GameServer.getPlayerCount() + " " + GameServer.getFreeSeats() + " "
+                + GameServer.getWaitingCount());
+    }
+}
@@ -0,0 +1,137 @@
+package SocketBasedGame;
+
+/*This class holds the server settings that can be changed without rebuilding. Each one is read once from a system
+ *property, e.g. java -Dgame.outbound.highWater=512 -jar GameServer.jar, and falls back to the default shown.
+ *Properties are named game.<area>.<setting>, e.g. game.resume.windowMillis, with the area left out for the few that
+ *stand on their own, e.g. game.headless.*/
+public class ServerConfig {
+
+    /*The most messages that can be waiting to be sent to one client. A client that falls this far behind is treated
+     *as a slow consumer and disconnected, so it can't hold up the game or use up the servers memory.*/
+    public static final int OUTBOUND_HIGH_WATER = Integer.getInteger("game.outbound.highWater", 256);
+    /*If true, a full board waiting to be sent to a client is dropped when a newer board is queued for them.
+     *A board message always holds the whole board, so the client only ever needs the latest one.*/
+    public static final boolean OUTBOUND_COALESCE_BOARDS =
+            Boolean.parseBoolean(System.getProperty("game.outbound.coalesceBoards", "true"));
+    /*The number of threads writing to clients, shared by every client. A thread is only used while a client has
+     *something waiting to be sent, so a few can serve many clients.*/
+    public static final int OUTBOUND_WRITERS = Integer.getInteger("game.outbound.writers", 8);
+    /*How long, in milliseconds, a write to one client can be stuck before the client is disconnected. A client that
+     *stops reading fills its socket's buffers and then holds a writer thread until this runs out. 0 turns this off.*/
+    public static final int OUTBOUND_WRITE_TIMEOUT_MILLIS =
+            Integer.getInteger("game.outbound.writeTimeoutMillis", 5000);
+
+    //How long, in milliseconds, a new connection is given to send RESUME before it is treated as a new player.
+    public static final int HANDSHAKE_MILLIS = Integer.getInteger("game.resume.handshakeMillis", 200);
+    /*How long, in milliseconds, a disconnected player's seat is kept for them to reconnect. If they don't come back in
+     *time they are treated as blocked, so the game carries on without them.*/
+    public static final int RESUME_WINDOW_MILLIS = Integer.getInteger("game.resume.windowMillis", 30000);
+    /*The number of recent game events kept for reconnecting clients. A client that missed more than this is sent the
+     *full board instead.*/
+    public static final int REPLAY_CAPACITY = Integer.getInteger("game.resume.replayCapacity", 64);
+
+    //How often, in milliseconds, a server run behind a GameRouter reports its load to the router.
+    public static final int LOAD_REPORT_MILLIS = Integer.getInteger("game.router.loadReportMillis", 1000);
+    /*The most clients a GameRouter passes on to backends at once. Each one uses two threads while connected, one for
+     *each direction, and clients over the limit are turned away.*/
+    public static final int ROUTER_MAX_CONNECTIONS = Integer.getInteger("game.router.maxConnections", 1024);
+
+    /*The number of commands each client can send per second, and how many they can send in a burst. Commands over the
+     *limit are dropped before they are parsed. 0 turns the limit off.*/
+    public static final int CLIENT_COMMANDS_PER_SECOND = Integer.getInteger("game.rate.perSecond", 20);
+    public static final int CLIENT_COMMAND_BURST = Integer.getInteger("game.rate.burst", 40);
+    //The same limit for all the clients in one game together, so a game can't use more than its share of the server.
+    public static final int GAME_COMMANDS_PER_SECOND = Integer.getInteger("game.rate.gamePerSecond", 200);
+    public static final int GAME_COMMAND_BURST = Integer.getInteger("game.rate.gameBurst", 400);
+    //The number of commands in a row a client can send over its own limit before it is disconnected.
+    public static final int RATE_LIMIT_STRIKES = Integer.getInteger("game.rate.strikes", 100);
+
+    //The lowest level of event that is logged: DEBUG, INFO, WARN or ERROR. DEBUG logs every command received.
+    public static final String LOG_LEVEL = System.getProperty("game.log.level", "INFO");
+    //Which of the time, level and thread fields are written with each event, separated by commas.
+    public static final String LOG_FIELDS = System.getProperty("game.log.fields", "time,level,thread");
+    /*The file events are logged to. Empty, the default, logs to standard error and - to standard output, so nothing is
+     *written to disk unless a file is named, e.g. -Dgame.log.file=server.log. Either way it is written by a background
+     *thread.*/
+    public static final String LOG_FILE = System.getProperty("game.log.file", "");
+    //The size, in bytes, a log file can reach before a new one is started, and the number of files kept.
+    public static final long LOG_MAX_BYTES = Long.getLong("game.log.maxBytes", 10 * 1024 * 1024);
+    public static final int LOG_FILES = Integer.getInteger("game.log.files", 5);
+    //The number of events that can wait to be written. Events logged while it is full are dropped and counted.
+    public static final int LOG_CAPACITY = Integer.getInteger("game.log.capacity", 8192);
+    //How often, in milliseconds, waiting events are written.
+    public static final int LOG_FLUSH_MILLIS = Integer.getInteger("game.log.flushMillis", 100);
+
+    //The most players a server will take, counting those waiting for a game. Players over this are turned away.
+    public static final int MAX_PLAYERS = Integer.getInteger("game.maxPlayers", 1000);
+    //How often, in milliseconds, the matchmaker looks at the queue again when no new players have joined.
+    public static final int MATCH_TICK_MILLIS = Integer.getInteger("game.match.tickMillis", 50);
+    /*How long, in milliseconds, a player waits before they will accept a game with one fewer player. A player first
+     *waits for a full table of 5, and will take a game of 2 after three times this.*/
+    public static final int MATCH_SHRINK_MILLIS = Integer.getInteger("game.match.shrinkMillis", 1000);
+    /*How far apart in rating players can be to be matched straight away, and how much further apart for each second
+     *the player who has waited longest has been waiting.*/
+    public static final int MATCH_RATING_SPREAD = Integer.getInteger("game.match.ratingSpread", 100);
+    public static final int MATCH_SPREAD_PER_SECOND = Integer.getInteger("game.match.spreadPerSecond", 100);
+
+    //If true, the server runs without a window, e.g. as a service or in a container.
+    public static final boolean HEADLESS = Boolean.getBoolean("game.headless");
+    //How long, in milliseconds, games are given to finish once the server has been told to stop.
+    public static final int DRAIN_MILLIS = Integer.getInteger("game.drain.millis", 60000);
+    /*How long, in milliseconds, the server waits once the games have ended for the last messages to be sent and the
+     *ratings to be written, before it exits.*/
+    public static final int DRAIN_GRACE_MILLIS = Integer.getInteger("game.drain.graceMillis", 2000);
+
+    /*How long, in milliseconds, a game can go without a command from any player before it is written to disk and
+     *dropped from memory, along with its players' connections. It is read back when any of them reconnects. 0, the
+     *default, turns this off, e.g. -Dgame.hibernate.millis=600000 writes out games idle for 10 minutes.*/
+    public static final int HIBERNATE_MILLIS = Integer.getInteger("game.hibernate.millis", 0);
+    /*The most games kept in memory. When there are more, the games that have gone longest without a command are
+     *written to disk first, even if they haven't been idle for HIBERNATE_MILLIS. 0 means no limit.*/
+    public static final int MAX_RESIDENT_GAMES = Integer.getInteger("game.hibernate.maxResidentGames", 0);
+    //How often, in milliseconds, the games are checked for ones to write to disk.
+    public static final int HIBERNATE_TICK_MILLIS = Integer.getInteger("game.hibernate.tickMillis", 5000);
+    //The folder that games written to disk are kept in. It is only created once a game is written.
+    public static final String HIBERNATE_DIR = System.getProperty("game.hibernate.dir", "hibernated");
+
+    //The port a standby server connects to, to be sent a copy of every game as it changes. 0 turns this off.
+    public static final int REPLICATE_PORT = Integer.getInteger("game.replicate.port", 0);
+    /*The host:port of a primary server's replication port, to run this server as its standby. The standby keeps a
+     *copy of the primary's games and takes over its port when the primary goes away. Empty to run normally.*/
+    public static final String STANDBY = System.getProperty("game.standby", "");
+    //How often, in milliseconds, a primary with nothing to send tells its standby it is still up.
+    public static final int REPLICATE_HEARTBEAT_MILLIS = Integer.getInteger("game.replicate.heartbeatMillis", 1000);
+    /*How long, in milliseconds, a standby waits after last hearing from its primary before taking over. Until then it
+     *keeps trying to reconnect, so a dropped connection or a long pause on the primary doesn't start a second server.*/
+    public static final int STANDBY_LEASE_MILLIS = Integer.getInteger("game.standby.leaseMillis", 5000);
+
+    /*The file finished games are added to for offline analysis. It is created if it doesn't exist. Empty, the default,
+     *turns this off, e.g. -Dgame.archive.file=games.arc turns it on.*/
+    public static final String ARCHIVE_FILE = System.getProperty("game.archive.file", "");
+    //The most finished games written to the archive together, as one row group.
+    public static final int ARCHIVE_ROW_GROUP = Integer.getInteger("game.archive.rowGroup", 4096);
+    //How long, in milliseconds, a part-filled row group waits for more games before it is written anyway.
+    public static final int ARCHIVE_FLUSH_MILLIS = Integer.getInteger("game.archive.flushMillis", 10000);
+
+    /*The shape of every board on the server: RECTANGULAR, TOROIDAL, HEX or VON_NEUMANN, see BoardTopology, and its
+     *dimensions. Clients are sent the shape when they join. A board can have up to BoardTopology.MAX_TILES tiles,
+     *and games written to disk can only be read back by a server using the same shape.*/
+    public static final String BOARD_TOPOLOGY = System.getProperty("game.board.topology", "RECTANGULAR");
+    public static final int BOARD_ROWS = Integer.getInteger("game.board.rows", 6);
+    public static final int BOARD_COLUMNS = Integer.getInteger("game.board.columns", 10);
+
+    /*How long, in milliseconds, a player waits for other players before the empty seats at their table are filled
+     *with bots played by the server. 0, the default, turns this off, e.g. -Dgame.bot.fillMillis=10000 seats bots after
+     *10 seconds.*/
+    public static final int BOT_FILL_MILLIS = Integer.getInteger("game.bot.fillMillis", 0);
+    //The number of threads that play all the bots on the server, and the most bot seats there can be at once.
+    public static final int BOT_THREADS = Integer.getInteger("game.bot.threads", 2);
+    public static final int MAX_BOT_SEATS = Integer.getInteger("game.bot.maxSeats", 10000);
+    /*How long, in milliseconds, a bot has to make its move once its turn starts. A bot that only gets a thread after
+     *this takes the first legal move it finds rather than looking for the best.*/
+    public static final int BOT_MOVE_MILLIS = Integer.getInteger("game.bot.moveMillis", 200);
+
+    /*The file that players' ratings are kept in. It is created if it doesn't exist. Empty, the default, turns ratings
+     *off, e.g. -Dgame.ratings.file=ratings.dat turns them on.*/
+    public static final String RATINGS_FILE = System.getProperty("game.ratings.file", "");
+}
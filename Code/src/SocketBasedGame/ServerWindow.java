@@ -0,0 +1,25 @@
+package SocketBasedGame;
+
+import javax.swing.*;
+import java.awt.*;
+
+/*This class shows a small window while the server runs, so the host can see that it is running and can stop the server
+ *by closing the window. It is kept out of GameServer so a headless server never loads any of the GUI classes.*/
+public class ServerWindow {
+
+    //Opens the server window.
+    public static void open() {
+        //Construct a frame which has a default close operation to allow the host to see that it is running
+        //and to be able to close the server by closing the window. Closing it drains the server like any other stop.
+        JFrame frame = new JFrame();
+        frame.setTitle("Server Window");
+        frame.setSize(1000, 600);
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setVisible(true);
+
+        //Place a simple message in the middle of the window to indicate its purpose.
+        JLabel serverText = new JLabel("This is the Server window. Close this window to end the server.");
+        serverText.setHorizontalAlignment(SwingConstants.CENTER);
+        frame.add(serverText, BorderLayout.CENTER);
+    }
+}
@@ -0,0 +1,52 @@
+package SocketBasedGame;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*This class keeps track of every connected or recently disconnected player by their session token, so a client that
+ *loses its connection can come back as the same player. Tokens are random, so they can't be guessed by other clients.*/
+public class SessionRegistry {
+
+    //Used to generate the session tokens.
+    private static final SecureRandom random = new SecureRandom();
+    //All current sessions, indexed by their token.
+    private static final Map<String, GameService> sessions = new ConcurrentHashMap<>();
+    //Added to the start of every token, so a GameRouter can tell which server a token came from. Empty if unused.
+    private static volatile String node = "";
+
+    //Sets the name of this server in a cluster. Tokens made after this start with the name and a dot.
+    public static void setNode(String name) {
+        node = name + ".";
+    }
+
+    //Creates a new unique session token for a player and registers the player under it.
+    public static String register(GameService gameService) {
+        String token;
+        do {
+            token = node + Long.toHexString(random.nextLong() | Long.MIN_VALUE) + Long.toHexString(random.nextLong() | Long.MIN_VALUE);
+        } while (sessions.putIfAbsent(token, gameService) != null);
+        return token;
+    }
+
+    //Registers a player under the token they already had, when their game is read back from disk.
+    public static void restore(String token, GameService gameService) {
+        sessions.put(token, gameService);
+    }
+
+    //Returns the player with the given session token, or null if there isn't one.
+    public static GameService find(String token) {
+        return sessions.get(token);
+    }
+
+    //Returns the number of players with a session, connected or waiting to reconnect.
+    public static int size() {
+        return sessions.size();
+    }
+
+    /*Removes a session once its player has left the game for good. Nothing is removed if the token now belongs to
+     *a newer copy of the player, read back from disk after their game was dropped from memory.*/
+    public static void remove(String token, GameService gameService) {
+        sessions.remove(token, gameService);
+    }
+}
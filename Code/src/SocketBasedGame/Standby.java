@@ -0,0 +1,115 @@
+package SocketBasedGame;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+/*This class is the standby end of replication. It follows a primary server's Replicator and keeps the latest copy of
+ *every game being played there. When the primary goes away, the copies are handed back so the standby server can
+ *take over: each one is stored as a game on disk, which its players are put back into when they reconnect. The
+ *primary only counts as gone once nothing has been heard from it for ServerConfig.STANDBY_LEASE_MILLIS, so losing
+ *the connection, or a pause on the primary, is ridden out by reconnecting rather than by starting a second server.
+ *To run a primary and a standby on one machine:
+ *  java -Dgame.replicate.port=8070 SocketBasedGame.GameServer 8080
+ *  java -Dgame.standby=localhost:8070 -Dgame.hibernate.dir=standby SocketBasedGame.GameServer 8080*/
+public class Standby {
+
+    //How long, in milliseconds, to wait before trying the primary again when it can't be reached.
+    private static final int RETRY_MILLIS = 1000;
+
+    //The address of the primary's replication port.
+    private final String host;
+    private final int port;
+    //The latest copy of each game, indexed by the token of its first player.
+    private final Map<String, byte[]> games;
+    //The number of the last batch applied.
+    private long applied;
+
+    //Standby constructor. Nothing is copied until follow() is called.
+    public Standby(String host, int port) {
+        this.host = host;
+        this.port = port;
+        games = new HashMap<>();
+        applied = 0;
+    }
+
+    /*Connects to the primary, waiting until it is up, and keeps the copies up to date until nothing has been heard
+     *from it for the lease. Returns the copy of every game that hadn't finished.*/
+    public Map<String, byte[]> follow() {
+        //There is nothing to take over until the primary has been reached once.
+        long leaseEnds = Long.MAX_VALUE;
+        while (true) {
+            Socket primary = connect(leaseEnds);
+            if (primary == null) {
+                return games;
+            }
+            try (Socket connection = primary) {
+                connection.setTcpNoDelay(true);
+                //The primary sends at least a heartbeat well within the lease, so a longer silence means it has gone.
+                connection.setSoTimeout(ServerConfig.STANDBY_LEASE_MILLIS);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+                //The first batch holds every game the primary has, so it replaces the copies from before.
+                Map<String, byte[]> current = new HashMap<>();
+                applyBatch(in, current);
+                games.clear();
+                games.putAll(current);
+                while (true) {
+                    leaseEnds = System.currentTimeMillis() + ServerConfig.STANDBY_LEASE_MILLIS;
+                    //Acknowledge once there is nothing more already waiting, so a burst of batches gets one reply.
+                    if (in.available() == 0) {
+                        out.writeLong(applied);
+                        out.flush();
+                    }
+                    applyBatch(in, games);
+                }
+            } catch (IOException e) {
+                EventLog.log(LogLevel.WARN, "primaryLost", "games", games.size(), "batch", applied);
+            }
+        }
+    }
+
+    /*Connects to the primary, trying again until it answers. Returns null if it hasn't answered by the end of the
+     *lease, or the thread is interrupted, so the standby should take over.*/
+    private Socket connect(long leaseEnds) {
+        while (true) {
+            try {
+                Socket connection = new Socket(host, port);
+                EventLog.log(LogLevel.INFO, "following", "primary", host + ":" + port);
+                return connection;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() >= leaseEnds) {
+                    return null;
+                }
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    //Reads one batch and applies each record to the given copies.
+    void applyBatch(DataInputStream in, Map<String, byte[]> games) throws IOException {
+        long batch = in.readLong();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int type = in.readByte();
+            String id = in.readUTF();
+            if (type == Replicator.GAME) {
+                byte[] game = new byte[in.readInt()];
+                in.readFully(game);
+                games.put(id, game);
+            } else {
+                games.remove(id);
+            }
+        }
+        applied = batch;
+    }
+}
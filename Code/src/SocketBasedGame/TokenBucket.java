@@ -0,0 +1,48 @@
+package SocketBasedGame;
+
+/*This class limits how often something can happen, such as a client sending commands. It holds up to burst tokens and
+ *gains perSecond tokens every second. Each command uses one token, and commands that find no tokens left are refused,
+ *so short bursts are allowed but the average rate can't go over perSecond.*/
+public class TokenBucket {
+
+    //The number of tokens gained each nanosecond.
+    private final double perNano;
+    //The most tokens the bucket can hold.
+    private final double burst;
+    //The tokens in the bucket the last time it was used.
+    private double tokens;
+    //The time the bucket was last used, from System.nanoTime().
+    private long last;
+
+    //TokenBucket constructor. The bucket starts full. A perSecond of 0 or less means there is no limit.
+    public TokenBucket(int perSecond, int burst) {
+        perNano = perSecond / 1e9;
+        this.burst = Math.max(burst, 1);
+        tokens = this.burst;
+        last = System.nanoTime();
+    }
+
+    //Takes a token if there is one. Returns false if the limit has been reached.
+    public boolean tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    //Takes a token if there is one at the given time. Separate so tests don't depend on the clock.
+    synchronized boolean tryAcquire(long now) {
+        if (perNano <= 0) {
+            return true;
+        }
+        tokens = Math.min(burst, tokens + (now - last) * perNano);
+        last = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    //Gives back a token that was taken for a command that was then refused for another reason.
+    public synchronized void release() {
+        tokens = Math.min(burst, tokens + 1);
+    }
+}